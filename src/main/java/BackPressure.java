@@ -0,0 +1,20 @@
+/**
+ * BackPressure details what a {@link Sender} does when a message is sent while
+ * its queue of messages waiting to be written is full
+ */
+public enum BackPressure {
+    /**
+     * The sending thread waits until the queue has room for the message
+     */
+    BLOCK,
+    
+    /**
+     * The oldest queued message is dropped to make room for the message
+     */
+    DROP_OLDEST,
+    
+    /**
+     * The message is not sent and an {@link IllegalStateException} is thrown
+     */
+    FAIL_FAST
+}
@@ -0,0 +1,97 @@
+import LanChatMessages.FrameDecoder;
+import LanChatMessages.WireFormat;
+
+import java.nio.file.Path;
+
+/**
+ * ConnectionOptions holds the settings that every connection of a process is made
+ * with. The options are immutable, so one instance is shared by every
+ * {@link Session}
+ */
+public class ConnectionOptions {
+    
+    /**
+     * The options used when none are given
+     */
+    public static final ConnectionOptions DEFAULT = new ConnectionOptions(1000, 64, BackPressure.BLOCK,
+            FrameDecoder.DEFAULT_MAX_FRAME_SIZE, WireFormat.BINARY, false, null, 60_000);
+    
+    /**
+     * How often, in milliseconds, {@link LanChatMessages.MessageTypes#WATCHDOG_KICK WATCHDOG_KICKs}
+     * are sent when no other message has been
+     */
+    public final long kickRate;
+    
+    /**
+     * The number of messages that a {@link Sender} or {@link SelectorConnection} will
+     * hold while waiting to be written
+     */
+    public final int queueCapacity;
+    
+    /**
+     * What a {@link Sender} or {@link SelectorConnection} does when its queue is full
+     */
+    public final BackPressure backPressure;
+    
+    /**
+     * The largest message, in bytes, that a connection will receive. A message that
+     * claims to be larger is treated as a broken connection
+     */
+    public final int maxFrameSize;
+    
+    /**
+     * The {@link WireFormat} that connections offer to use in place of JSON, when the
+     * other node supports it. {@link WireFormat#JSON JSON} offers nothing else
+     */
+    public final WireFormat wireFormat;
+    
+    /**
+     * Indicates if connections offer to {@link LanChatMessages.FrameCompressor compress}
+     * their frames. A connection is only compressed if both nodes offer to
+     */
+    public final boolean compress;
+    
+    /**
+     * The directory that each conversation's {@link Outbox} is kept in, or {@code null}
+     * to only keep unacknowledged messages in memory
+     */
+    public final Path outboxDirectory;
+    
+    /**
+     * How long, in milliseconds, a session tries to resume a lost connection before it
+     * ends the conversation. 0 never resumes one
+     */
+    public final long resumeMillis;
+    
+    /**
+     * Creates connection options
+     *
+     * @param kickRate      How often watchdog kicks are sent
+     * @param queueCapacity The capacity of a sender's queue
+     * @param backPressure  What a sender does when its queue is full
+     * @param maxFrameSize  The largest message that a connection will receive
+     * @param wireFormat    The wire format that connections offer to use
+     * @param compress      Whether connections offer to compress their frames
+     * @param outboxDirectory The directory that outboxes are kept in, or {@code null}
+     *                        to keep them in memory
+     * @param resumeMillis  How long a session tries to resume a lost connection
+     * @throws IllegalArgumentException If the kick rate, queue capacity or max frame
+     * size are not positive, or the resume time is negative
+     */
+    public ConnectionOptions(long kickRate, int queueCapacity, BackPressure backPressure, int maxFrameSize,
+                             WireFormat wireFormat, boolean compress, Path outboxDirectory, long resumeMillis) {
+        if (kickRate <= 0) {throw new IllegalArgumentException("The kick rate must be positive");}
+        if (queueCapacity <= 0) {throw new IllegalArgumentException("The queue capacity must be positive");}
+        if (maxFrameSize <= 0) {throw new IllegalArgumentException("The max frame size must be positive");}
+        if (resumeMillis < 0) {throw new IllegalArgumentException("The resume time must not be negative");}
+        
+        this.kickRate = kickRate;
+        this.queueCapacity = queueCapacity;
+        this.backPressure = backPressure;
+        this.maxFrameSize = maxFrameSize;
+        this.wireFormat = wireFormat;
+        this.compress = compress;
+        this.outboxDirectory = outboxDirectory;
+        this.resumeMillis = resumeMillis;
+    }
+}
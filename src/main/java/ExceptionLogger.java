@@ -10,7 +10,7 @@ public class ExceptionLogger {
     private final static Random r = new Random();
     
     
-    public static int log(Level level, Exception e) {
+    public static int log(Level level, Throwable e) {
         int code = r.nextInt(10000);
         
         logger.log(level, "["+code+"]", e);
@@ -18,7 +18,7 @@ public class ExceptionLogger {
         return code;
     }
     
-    public static int log(Level level, String msg, Exception e) {
+    public static int log(Level level, String msg, Throwable e) {
         int code = r.nextInt(10000);
         
         logger.log(level, msg + " ["+code+"]", e);
@@ -0,0 +1,170 @@
+import LanChatMessages.MessageTypes;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Heartbeat decides how long a {@link Session} waits for the other node before
+ * checking on it. Every frame received counts as a sign of life, not just
+ * {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICKs}, so busy connections never
+ * need to be checked. <br>
+ * The timeouts adapt to the connection: the round trip time is measured from each
+ * {@link MessageTypes#WATCHDOG_BARK WATCHDOG_BARK} to the
+ * {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK} that answers it, and the jitter from
+ * how late the other node's kicks arrive when it has nothing else to send. Barks are
+ * sent as probes every few kick rates, so the round trip time is measured even on a
+ * connection that never times out. A slow or congested link therefore gets longer timeouts rather than being
+ * disconnected. <br>
+ * The other node's kick rate is not known, so it is assumed to be the same as this
+ * node's. The timeouts never fall below what LanChat has always used, so nodes that
+ * do not adapt are not disconnected early
+ */
+public class Heartbeat {
+    
+    /**
+     * The gain of the smoothed round trip time and jitter, as in RFC 6298
+     */
+    private static final double GAIN = 1.0 / 8;
+    
+    /**
+     * The gain of the round trip time variation, as in RFC 6298
+     */
+    private static final double VARIATION_GAIN = 1.0 / 4;
+    
+    /**
+     * How often the other node is expected to send a
+     * {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK} when idle, in milliseconds
+     */
+    private final long kickRate;
+    
+    /**
+     * The {@link System#nanoTime()} of the last received frame, or -1 before the first
+     */
+    private long lastReceived = -1;
+    
+    /**
+     * The {@link System#nanoTime()} that the unanswered bark was sent at, or -1 if
+     * there is none
+     */
+    private long barkSent = -1;
+    
+    /**
+     * The smoothed round trip time in milliseconds, or -1 before it has been measured
+     */
+    private double smoothedRtt = -1;
+    
+    /**
+     * The variation of the round trip time in milliseconds
+     */
+    private double rttVariation = 0;
+    
+    /**
+     * The smoothed amount, in milliseconds, by which idle gaps between frames differ
+     * from the {@link #kickRate}
+     */
+    private double jitter = 0;
+    
+    /**
+     * The {@link System#nanoTime()} that the last bark was sent at
+     */
+    private long lastProbe = System.nanoTime();
+    
+    /**
+     * Creates a heartbeat
+     *
+     * @param kickRate How often the other node sends a kick when idle, in milliseconds
+     */
+    public Heartbeat(long kickRate) {
+        this.kickRate = kickRate;
+    }
+    
+    /**
+     * Records that a frame has been received
+     *
+     * @param now The {@link System#nanoTime()}
+     */
+    public synchronized void frameReceived(long now) {
+        if (lastReceived != -1) {
+            double gap = millis(now - lastReceived);
+            
+            // Shorter gaps are real traffic, which says nothing of how late kicks are
+            if (gap >= kickRate) {jitter += (gap - kickRate - jitter) * GAIN;}
+        }
+        lastReceived = now;
+    }
+    
+    /**
+     * Records that a {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK} has been received,
+     * which answers an outstanding bark
+     *
+     * @param now The {@link System#nanoTime()}
+     * @return The round trip time in nanoseconds, or -1 if no bark was outstanding
+     */
+    public synchronized long kickReceived(long now) {
+        if (barkSent == -1) {return -1;}
+        
+        long rttNanos = now - barkSent;
+        double rtt = millis(rttNanos);
+        barkSent = -1;
+        
+        if (smoothedRtt == -1) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        } else {
+            rttVariation += (Math.abs(smoothedRtt - rtt) - rttVariation) * VARIATION_GAIN;
+            smoothedRtt += (rtt - smoothedRtt) * GAIN;
+        }
+        
+        return rttNanos;
+    }
+    
+    /**
+     * Records that a {@link MessageTypes#WATCHDOG_BARK WATCHDOG_BARK} has been sent
+     *
+     * @param now The {@link System#nanoTime()}
+     */
+    public synchronized void barkSent(long now) {
+        barkSent = lastProbe = now;
+    }
+    
+    /**
+     * Indicates if a bark should be sent to measure the round trip time. One is due
+     * every five kick rates, unless a bark is already waiting to be answered
+     *
+     * @param now The {@link System#nanoTime()}
+     * @return True if a bark is due
+     */
+    public synchronized boolean probeDue(long now) {
+        return barkSent == -1 && now - lastProbe >= TimeUnit.MILLISECONDS.toNanos(kickRate * 5);
+    }
+    
+    /**
+     * Returns how long to wait for any frame before sending a bark. This is the kick
+     * rate with room for the measured jitter and round trip time
+     *
+     * @return The timeout in milliseconds
+     */
+    public synchronized int idleTimeout() {
+        double margin = Math.max(kickRate / 2.0, 4 * jitter);
+        if (smoothedRtt != -1) {margin = Math.max(margin, smoothedRtt + 4 * rttVariation);}
+        
+        return (int) Math.min(kickRate + margin, kickRate * 10);
+    }
+    
+    /**
+     * Returns how long to wait for the answer to a bark before the connection is
+     * considered lost. The other node answers straight away, so this is the round
+     * trip time with room for its variation once it has been measured
+     *
+     * @return The timeout in milliseconds
+     */
+    public synchronized int barkTimeout() {
+        if (smoothedRtt == -1) {return idleTimeout();}
+        
+        double timeout = Math.max(smoothedRtt + 4 * rttVariation + 4 * jitter, kickRate / 2.0);
+        return (int) Math.min(timeout, kickRate * 10);
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,204 @@
+import LanChatElements.ConnectionKey;
+import LanChatMessages.MessageTypes;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The Hub runs LanChat as a relay without a window. It accepts every node that
+ * connects to its port, accepts each {@link MessageTypes#NEW_CONNECTION NEW_CONNECTION}
+ * and puts the node in the {@link Room} it asked for, or the {@link #DEFAULT_ROOM}.
+ * Every {@link MessageTypes#MSG MSG} received is relayed to the rest of the room
+ */
+public class Hub implements Sessionable, AutoCloseable {
+    
+    private static final Logger logger = LogManager.getLogger(Hub.class);
+    
+    /**
+     * The room of nodes that did not ask for one
+     */
+    public static final String DEFAULT_ROOM = "Lobby";
+    
+    private final Transport transport;
+    private final ConnectionOptions options;
+    private final int port;
+    
+    /**
+     * The username that the hub accepts connections with
+     */
+    private final String name;
+    
+    /**
+     * Every open session, keyed by {@link Session#id}
+     */
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    
+    /**
+     * Every room that has members, keyed by {@link Room#name}. A room is removed when
+     * its last member leaves
+     */
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    
+    /**
+     * The server accepting connections. {@code null} until {@link #start() started}
+     */
+    private AutoCloseable server;
+    
+    /**
+     * Released when the hub is closed
+     */
+    private final CountDownLatch closed = new CountDownLatch(1);
+    
+    /**
+     * Creates a hub that has not started accepting connections
+     *
+     * @param transport The transport that will carry the connections
+     * @param options   The settings that the connections will be made with
+     * @param port      The port to accept connections on
+     * @param name      The username to accept connections with
+     */
+    public Hub(Transport transport, ConnectionOptions options, int port, String name) {
+        this.transport = transport;
+        this.options = options;
+        this.port = port;
+        this.name = name;
+    }
+    
+    /**
+     * Starts accepting connections
+     *
+     * @throws IOException If the port could not be listened on
+     */
+    public void start() throws IOException {
+        server = transport.serve(port, options, () -> {
+            Session session = new Session(this, transport, options);
+            sessions.put(session.id, session);
+            
+            return session;
+        });
+        
+        try {
+            ConnectionKey key = new ConnectionKey(port);
+            logger.info("Listening with connection key {} ({})", key.ConnectionKey, key.uncondensedConnectionKey);
+        } catch (IOException | UncheckedIOException e) {
+            logger.info("Listening on port {}", port);
+        }
+    }
+    
+    /**
+     * Blocks until the hub is closed
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+    
+    /**
+     * Returns the name of the room that a session's node asked for
+     *
+     * @param session The session
+     * @return The name of the room
+     */
+    private static String roomName(Session session) {
+        return session.getRoom() == null ? DEFAULT_ROOM : session.getRoom();
+    }
+    
+    /**
+     * Puts a session in the room its node asked for, creating the room if needed
+     *
+     * @param session The session
+     * @return The room
+     */
+    private Room join(Session session) {
+        return rooms.compute(roomName(session), (name, room) -> {
+            if (room == null) {room = new Room(name);}
+            room.join(session);
+            
+            return room;
+        });
+    }
+    
+    /**
+     * Takes a session out of its room, removing the room once its last member leaves
+     *
+     * @param session The session
+     */
+    private void leave(Session session) {
+        rooms.computeIfPresent(roomName(session), (name, room) -> {
+            room.leave(session);
+            
+            return room.size() == 0 ? null : room;
+        });
+    }
+    
+    /**
+     * Stops accepting connections and ends the connection of every session
+     */
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (Exception e) {
+            ExceptionLogger.log(Level.INFO, e);
+        }
+        
+        for (Session session : sessions.values()) {
+            session.endConnection();
+        }
+        
+        closed.countDown();
+    }
+    
+    
+    
+    // Sessionable methods
+    @Override
+    public void connectionRequested(Session session, String username) {
+        try {
+            session.allowConnection(true, name);
+        } catch (IOException | UncheckedIOException e) {
+            ExceptionLogger.log(Level.WARN, "Couldn't accept " + username, e);
+            return;
+        }
+        
+        Room room = join(session);
+        logger.info("{} joined {} ({} members)", username, room.name, room.size());
+    }
+    
+    @Override
+    public void connectionMade(Session session, String username) {}
+    
+    @Override
+    public void connectionDeclined(Session session) {}
+    
+    @Override
+    public void messageReceived(Session session, String content, String username) {
+        Room room = rooms.get(roomName(session));
+        if (room != null) {room.relay(session, content, username);}
+    }
+    
+    @Override
+    public void connectionEnded(Session session, String errMsg) {
+        logger.info("{} left ({})", session.getUsername(), errMsg);
+    }
+    
+    @Override
+    public void connectionInterrupted(Session session) {}
+    
+    @Override
+    public void connectionResumed(Session session) {}
+    
+    @Override
+    public void sessionClosed(Session session) {
+        sessions.remove(session.id);
+        
+        if (session.getUsername() != null) {leave(session);}
+    }
+}
@@ -0,0 +1,248 @@
+import LanChatMessages.MessageTypes;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.apache.logging.log4j.Level;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The InboundPipeline stands between {@link Session Sessions} and their owner, so the
+ * threads that read from the sockets only publish what they have received to a ring
+ * buffer and go back to reading, however slow the owner is. <br>
+ * Every {@link Sessionable} call is published, in the order it was made, and passes
+ * through two stages, each on its own thread:
+ * <ol>
+ *     <li>The {@link InboundStage InboundStages} given to the pipeline, such as
+ *     persistence, which run alongside each other</li>
+ *     <li>Dispatch, which makes the call on the owner</li>
+ * </ol>
+ * Messages are passed on as they were received. They have already been validated as
+ * they were decoded, by {@link LanChatMessages.Message Message}. <br>
+ * Each stage handles whatever has been published since it last ran as a batch. When
+ * the ring buffer is full, the sessions wait for the stages to catch up. Calls made by
+ * the owner that lead straight back to the pipeline, such as closing a session when
+ * told it has ended, are dispatched straight away, so the owner never waits for itself
+ */
+public class InboundPipeline implements Sessionable, AutoCloseable {
+    
+    /**
+     * The owner that the calls are dispatched to
+     */
+    private final Sessionable owner;
+    
+    private final Disruptor<Event> disruptor;
+    private final RingBuffer<Event> ringBuffer;
+    
+    /**
+     * The thread that dispatches calls to the owner, once it has started
+     */
+    private volatile Thread dispatchThread;
+    
+    /**
+     * Creates a pipeline and starts its threads
+     *
+     * @param owner      The owner to dispatch calls to
+     * @param bufferSize The number of calls that may wait in the ring buffer, which
+     *                   must be a power of two
+     * @param stages     The stages that every {@link MessageTypes#MSG MSG} passes
+     *                   through before it is dispatched
+     */
+    public InboundPipeline(Sessionable owner, int bufferSize, List<InboundStage> stages) {
+        this.owner = owner;
+        
+        AtomicInteger threads = new AtomicInteger();
+        disruptor = new Disruptor<>(Event::new, bufferSize, task -> {
+            Thread thread = new Thread(task, "Inbound-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, ProducerType.MULTI, new BlockingWaitStrategy());
+        disruptor.setDefaultExceptionHandler(new StageExceptionHandler());
+        
+        if (stages.isEmpty()) {
+            disruptor.handleEventsWith(new Dispatcher());
+        } else {
+            @SuppressWarnings("unchecked") // The handlers are all built by handlerOf()
+            EventHandler<Event>[] handlers = stages.stream().map(InboundPipeline::handlerOf).toArray(EventHandler[]::new);
+            disruptor.handleEventsWith(handlers).then(new Dispatcher());
+        }
+        
+        ringBuffer = disruptor.start();
+    }
+    
+    /**
+     * The kinds of {@link Sessionable} call
+     */
+    private enum Kind {
+        CONNECTION_REQUESTED, CONNECTION_MADE, CONNECTION_DECLINED, MESSAGE_RECEIVED,
+        CONNECTION_ENDED, CONNECTION_INTERRUPTED, CONNECTION_RESUMED, SESSION_CLOSED
+    }
+    
+    /**
+     * An Event is a slot of the ring buffer holding a single {@link Sessionable} call.
+     * Slots are reused, so every field is set when a call is published
+     */
+    private static final class Event {
+        private Kind kind;
+        private Session session;
+        
+        /**
+         * The username, content or error message of the call, as it applies
+         */
+        private String text;
+        
+        /**
+         * The username that sent a {@link Kind#MESSAGE_RECEIVED MESSAGE_RECEIVED}
+         */
+        private String username;
+    }
+    
+    /**
+     * Publishes a call to the ring buffer, or dispatches it straight away if it is
+     * made by the owner while a call is being dispatched to it
+     */
+    private void publish(Kind kind, Session session, String text, String username) {
+        if (Thread.currentThread() == dispatchThread) {
+            Event event = new Event();
+            set(event, kind, session, text, username);
+            dispatch(event);
+            return;
+        }
+        
+        ringBuffer.publishEvent((event, sequence) -> set(event, kind, session, text, username));
+    }
+    
+    private static void set(Event event, Kind kind, Session session, String text, String username) {
+        event.kind = kind;
+        event.session = session;
+        event.text = text;
+        event.username = username;
+    }
+    
+    /**
+     * Wraps a stage so it is only given {@link MessageTypes#MSG MSGs}
+     */
+    private static EventHandler<Event> handlerOf(InboundStage stage) {
+        return (event, sequence, endOfBatch) -> {
+            try {
+                if (event.kind == Kind.MESSAGE_RECEIVED) {
+                    stage.messageReceived(event.session, event.text, event.username);
+                }
+            } finally {
+                if (endOfBatch) {stage.endOfBatch();}
+            }
+        };
+    }
+    
+    /**
+     * The dispatch stage, which makes every call on the owner
+     */
+    private final class Dispatcher implements EventHandler<Event> {
+        
+        @Override
+        public void onStart() {
+            dispatchThread = Thread.currentThread();
+        }
+        
+        @Override
+        public void onEvent(Event event, long sequence, boolean endOfBatch) {
+            dispatch(event);
+            
+            event.session = null; // Do not hold on to closed sessions
+        }
+    }
+    
+    private void dispatch(Event event) {
+        switch (event.kind) {
+            case CONNECTION_REQUESTED -> owner.connectionRequested(event.session, event.text);
+            case CONNECTION_MADE -> owner.connectionMade(event.session, event.text);
+            case CONNECTION_DECLINED -> owner.connectionDeclined(event.session);
+            case MESSAGE_RECEIVED -> owner.messageReceived(event.session, event.text, event.username);
+            case CONNECTION_ENDED -> owner.connectionEnded(event.session, event.text);
+            case CONNECTION_INTERRUPTED -> owner.connectionInterrupted(event.session);
+            case CONNECTION_RESUMED -> owner.connectionResumed(event.session);
+            case SESSION_CLOSED -> owner.sessionClosed(event.session);
+        }
+    }
+    
+    /**
+     * Logs exceptions thrown by the stages. The call is still passed on to the
+     * next stage, so a failing stage does not stop the pipeline
+     */
+    private static final class StageExceptionHandler implements ExceptionHandler<Event> {
+        
+        @Override
+        public void handleEventException(Throwable e, long sequence, Event event) {
+            ExceptionLogger.log(Level.ERROR, "Inbound stage failed on " + event.kind, e);
+        }
+        
+        @Override
+        public void handleOnStartException(Throwable e) {
+            ExceptionLogger.log(Level.ERROR, "Inbound stage failed to start", e);
+        }
+        
+        @Override
+        public void handleOnShutdownException(Throwable e) {
+            ExceptionLogger.log(Level.ERROR, "Inbound stage failed to shut down", e);
+        }
+    }
+    
+    /**
+     * Waits for the calls already published to be dispatched, then stops the threads
+     */
+    @Override
+    public void close() {
+        try {
+            disruptor.shutdown(5, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            ExceptionLogger.log(Level.WARN, "Inbound pipeline did not drain", e);
+            disruptor.halt();
+        }
+    }
+    
+    @Override
+    public void connectionRequested(Session session, String username) {
+        publish(Kind.CONNECTION_REQUESTED, session, username, null);
+    }
+    
+    @Override
+    public void connectionMade(Session session, String username) {
+        publish(Kind.CONNECTION_MADE, session, username, null);
+    }
+    
+    @Override
+    public void connectionDeclined(Session session) {
+        publish(Kind.CONNECTION_DECLINED, session, null, null);
+    }
+    
+    @Override
+    public void messageReceived(Session session, String content, String username) {
+        publish(Kind.MESSAGE_RECEIVED, session, content, username);
+    }
+    
+    @Override
+    public void connectionEnded(Session session, String errMsg) {
+        publish(Kind.CONNECTION_ENDED, session, errMsg, null);
+    }
+    
+    @Override
+    public void connectionInterrupted(Session session) {
+        publish(Kind.CONNECTION_INTERRUPTED, session, null, null);
+    }
+    
+    @Override
+    public void connectionResumed(Session session) {
+        publish(Kind.CONNECTION_RESUMED, session, null, null);
+    }
+    
+    @Override
+    public void sessionClosed(Session session) {
+        publish(Kind.SESSION_CLOSED, session, null, null);
+    }
+}
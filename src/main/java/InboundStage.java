@@ -0,0 +1,29 @@
+import LanChatMessages.MessageTypes;
+
+/**
+ * An InboundStage is a step of the {@link InboundPipeline} that every received
+ * {@link MessageTypes#MSG MSG} passes through before it is shown to the user, such
+ * as writing it to the chat history. Each stage runs on its own thread, alongside the
+ * other stages
+ */
+public interface InboundStage {
+    
+    /**
+     * Called with each {@link MessageTypes#MSG MSG}, in the order that its
+     * session received them
+     *
+     * @param session  The session that received the message
+     * @param content  The content of the message
+     * @param username The username of the node that sent it
+     * @throws Exception If the stage failed. It is logged and the message is still shown
+     */
+    void messageReceived(Session session, String content, String username) throws Exception;
+    
+    /**
+     * Called after the last message that was waiting for the stage, so work can be
+     * done once for a whole batch of messages, such as flushing a file
+     *
+     * @throws Exception If the stage failed. It is logged
+     */
+    default void endOfBatch() throws Exception {}
+}
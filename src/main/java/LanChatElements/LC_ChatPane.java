@@ -1,166 +1,427 @@
 package LanChatElements;
 
+import LanChatMetrics.RenderEvent;
+
 import javax.swing.*;
-import javax.swing.text.BadLocationException;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
-import javax.swing.text.StyledDocument;
 import java.awt.*;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+/**
+ * The LC_ChatPane shows the messages of a conversation. Messages are kept as compact
+ * {@link Entry Entries} along with the running total of their heights, and only the
+ * messages that are scrolled into view are wrapped and painted, so adding to or
+ * scrolling a conversation of any length costs the same
+ */
 public class LC_ChatPane extends JScrollPane{
-    private final JTextPane textPane = new JTextPane() {{
-        setEditable(false);
-    }};
+    
+    /**
+     * The width that messages are wrapped to, in pixels
+     */
+    private static final int WRAP_LENGTH = 280;
+    
+    /**
+     * The space around the messages, in pixels
+     */
+    private static final int MARGIN = 3;
+    
+    private final MessageView view = new MessageView();
+    
+    /**
+     * Wraps the messages, keeping the lines of those painted most recently
+     */
+    private final LC_LineLayout layout = new LC_LineLayout(view, 1024);
+    
+    /**
+     * Called when the chat is scrolled to the top while there are {@link #earlier}
+     * messages. {@code null} if nothing is listening
+     */
+    private Runnable topListener;
+    
+    /**
+     * Indicates if there are messages before those shown that have not been asked for
+     */
+    private boolean earlier = false;
     
     public LC_ChatPane() {
-        setViewportView(textPane);
+        setViewportView(view);
         
         getVerticalScrollBar().setBlockIncrement(10);
         getVerticalScrollBar().setUnitIncrement(15);
+        getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValue() == 0 && canScroll()) {requestEarlier();}
+        });
     }
     
-    final StyledDocument doc = textPane.getStyledDocument();
-    
     
     public void reset() {
-        textPane.setText("");
+        earlier = false;
+        view.clear();
+        layout.clear();
+    }
+    
+    /**
+     * Sets what is called when the chat is scrolled to the top, to show the messages
+     * before those shown
+     *
+     * @param topListener The listener, which is called on the event dispatch thread
+     */
+    public void setTopListener(Runnable topListener) {
+        this.topListener = topListener;
     }
     
     
     public void addSentMessage(String msg) {
-        String username = "You:  ";
-        int lengthAtStart = doc.getLength();
+        addMessages(List.of(Entry.sent(msg)));
+    }
+    
+    
+    public void addReceivedMessage(String msg, String username) {
+        addMessages(List.of(Entry.received(msg, username)));
+    }
+    
+    
+    public void addInformationMessage(String msg) {
+        addMessages(List.of(Entry.information(msg)));
+    }
+    
+    /**
+     * Adds messages to the end of the chat, laying out the pane once however many
+     * messages there are. If the chat was scrolled to the bottom it stays there.
+     * Must be called on the event dispatch thread
+     *
+     * @param entries The messages, in the order they should be shown
+     */
+    public void addMessages(List<Entry> entries) {
+        if (entries.isEmpty()) {return;}
+        
+        RenderEvent event = new RenderEvent();
+        event.begin();
         
-        try {
-            doc.insertString(lengthAtStart, username, LC_Constants.sendersNameStyle);
-        } catch (BadLocationException e) {
-            throw new RuntimeException(e);
+        JScrollBar scrollBar = getVerticalScrollBar();
+        boolean atBottom = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum();
+        
+        int length = 0;
+        for (Entry entry : entries) {
+            // The line after the message is left blank
+            view.append(entry, (wrap(entry).text.length + 1) * layout.metricsOf(entry.font()).getHeight());
+            length += entry.msg.length();
         }
-        doc.setParagraphAttributes(lengthAtStart, username.length(),
-                LC_Constants.sendersNameStyle, false);
         
-        lengthAtStart = doc.getLength();
+        view.revalidate();
+        if (atBottom) {
+            validate();
+            view.scrollRectToVisible(new Rectangle(0, view.getHeight() - 1, 1, 1));
+        }
+        view.repaint();
         
-        try {
-            doc.insertString(lengthAtStart, wrapString(msg,
-                    LC_Constants.sendersStyle,
-                            280) + "\n",
-                    LC_Constants.sendersStyle);
+        if (event.shouldCommit()) {
+            event.messageType = Entry.TYPES[entries.get(0).kind];
+            event.messages = entries.size();
+            event.length = length;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Adds messages to the start of the chat, keeping the messages that are in view
+     * where they are. If the chat cannot be scrolled yet and there are more messages,
+     * they are asked for straight away. Must be called on the event dispatch thread
+     *
+     * @param entries The messages, in the order they should be shown
+     * @param more    Whether there are more messages before these
+     */
+    public void addEarlierMessages(List<Entry> entries, boolean more) {
+        if (!entries.isEmpty()) {
+            int[] heights = new int[entries.size()];
+            for (int i = 0; i < heights.length; i++) {
+                Entry entry = entries.get(i);
+                heights[i] = (wrap(entry).text.length + 1) * layout.metricsOf(entry.font()).getHeight();
+            }
             
-        } catch (BadLocationException e) {
-            throw new RuntimeException(e);
+            JScrollBar scrollBar = getVerticalScrollBar();
+            int value = scrollBar.getValue();
+            int added = view.prepend(entries, heights);
+            
+            view.revalidate();
+            validate();
+            scrollBar.setValue(value + added);
+            view.repaint();
         }
-        doc.setParagraphAttributes(lengthAtStart, msg.length(),
-                LC_Constants.sendersStyle, false);
         
+        // Set once the messages are in place, as laying them out may scroll to the top
+        earlier = more;
+        if (!canScroll()) {requestEarlier();}
     }
     
+    /**
+     * Indicates if the messages are taller than the pane
+     */
+    private boolean canScroll() {
+        JScrollBar scrollBar = getVerticalScrollBar();
+        return scrollBar.getMaximum() - scrollBar.getMinimum() > scrollBar.getVisibleAmount();
+    }
     
-    public void addReceivedMessage(String msg, String username) {
-        int lengthAtStart = doc.getLength();
-        username = username + ":  ";
+    /**
+     * Asks the {@link #topListener} for the messages before those shown, once for
+     * each time that there are more
+     */
+    private void requestEarlier() {
+        if (!earlier || topListener == null) {return;}
         
-        try {
-            doc.insertString(lengthAtStart,
-                    username,
-                    LC_Constants.receivedNameStyle);
-            
-        } catch (BadLocationException e) {
-            throw new RuntimeException(e);
+        earlier = false;
+        // The listener adds to the chat, which should not be done while it is being scrolled
+        SwingUtilities.invokeLater(topListener);
+    }
+    
+    /**
+     * Wraps a message into the lines that it is shown on
+     *
+     * @param entry The message
+     * @return The lines
+     */
+    private LC_LineLayout.Lines wrap(Entry entry) {
+        return layout.wrap(entry.msg, entry.font(), WRAP_LENGTH);
+    }
+    
+    /**
+     * An Entry is a single message of the chat. Only what differs between messages
+     * is kept, as a conversation may hold a great many of them
+     */
+    public static final class Entry {
+        private static final byte SENT = 0;
+        private static final byte RECEIVED = 1;
+        private static final byte INFORMATION = 2;
+        
+        private static final String[] TYPES = {"SENT", "RECEIVED", "INFORMATION"};
+        private static final SimpleAttributeSet[] STYLES = {
+                LC_Constants.sendersStyle, LC_Constants.receivedStyle, LC_Constants.informationStyle};
+        private static final SimpleAttributeSet[] NAME_STYLES = {
+                LC_Constants.sendersNameStyle, LC_Constants.receivedNameStyle, null};
+        private static final Font[] FONTS = {
+                getFont(STYLES[SENT]), getFont(STYLES[RECEIVED]), getFont(STYLES[INFORMATION])};
+        private static final Font[] NAME_FONTS = {
+                getFont(NAME_STYLES[SENT]), getFont(NAME_STYLES[RECEIVED]), null};
+        
+        private final byte kind;
+        
+        /**
+         * The name shown before the message, or {@code null} if there is none
+         */
+        private final String name;
+        private final String msg;
+        
+        private Entry(byte kind, String name, String msg) {
+            this.kind = kind;
+            this.name = name;
+            this.msg = msg;
         }
-        doc.setParagraphAttributes(lengthAtStart, username.length(),
-                LC_Constants.receivedNameStyle, false);
         
-        lengthAtStart = doc.getLength();
+        public static Entry sent(String msg) {
+            return new Entry(SENT, "You:  ", msg);
+        }
         
-        try {
-            doc.insertString(lengthAtStart,
-                    wrapString(msg, LC_Constants.receivedStyle,
-                            280) + "\n",
-                    LC_Constants.receivedStyle);
-            
-        } catch (BadLocationException e) {
-            throw new RuntimeException(e);
+        public static Entry received(String msg, String username) {
+            return new Entry(RECEIVED, username + ":  ", msg);
         }
-        doc.setParagraphAttributes(lengthAtStart, msg.length(),
-                LC_Constants.receivedStyle, false);
         
-    }
-    
-    
-    public void addInformationMessage(String msg) {
-        int lengthAtStart = doc.getLength();
+        public static Entry information(String msg) {
+            return new Entry(INFORMATION, null, msg);
+        }
         
-        try {
-            doc.insertString(lengthAtStart, wrapString(msg,
-                            LC_Constants.informationStyle,
-                            280) + "\n",
-                    LC_Constants.informationStyle);
-            
-        } catch (BadLocationException e) {
-            throw new RuntimeException(e);
+        private SimpleAttributeSet style() {
+            return STYLES[kind];
         }
-        doc.setParagraphAttributes(lengthAtStart, msg.length(),
-                LC_Constants.informationStyle, false);
         
+        private SimpleAttributeSet nameStyle() {
+            return NAME_STYLES[kind];
+        }
+        
+        private Font font() {
+            return FONTS[kind];
+        }
+        
+        private Font nameFont() {
+            return NAME_FONTS[kind];
+        }
     }
     
-    
-    private String wrapString(String string, SimpleAttributeSet style, int wrapLength) {
-        String[] words = string.split(" ");
-        Font font = getFont(style);
+    /**
+     * The MessageView paints the messages of the chat. It keeps the bottom of each
+     * message, so the messages in view are found by a binary search
+     */
+    private final class MessageView extends JComponent implements Scrollable {
+        private Entry[] entries = new Entry[64];
+        
+        /**
+         * The y coordinate of the bottom of each message, below the {@link #MARGIN}
+         */
+        private int[] bottoms = new int[64];
         
-        FontMetrics fontMetrics = generateFontMetric();
+        private int count = 0;
         
-        int[] wordLengths = new int[words.length];
+        private MessageView() {
+            setOpaque(true);
+            setBackground(Color.WHITE);
+        }
         
-        for (int i=0; i<words.length; i++) {
-            wordLengths[i] = fontMetrics.stringWidth(words[i]);
+        private void append(Entry entry, int height) {
+            if (count == entries.length) {
+                entries = Arrays.copyOf(entries, count * 2);
+                bottoms = Arrays.copyOf(bottoms, count * 2);
+            }
+            
+            entries[count] = entry;
+            bottoms[count] = (count == 0 ? 0 : bottoms[count - 1]) + height;
+            count++;
         }
         
-        int spaceWidth = fontMetrics.stringWidth(" ");
+        /**
+         * Adds messages before the others
+         *
+         * @return The total height of the messages
+         */
+        private int prepend(List<Entry> added, int[] heights) {
+            int length = Math.max(64, Integer.highestOneBit(count + added.size()) * 2);
+            Entry[] newEntries = new Entry[length];
+            int[] newBottoms = new int[length];
+            
+            int bottom = 0;
+            for (int i = 0; i < heights.length; i++) {
+                newEntries[i] = added.get(i);
+                bottom += heights[i];
+                newBottoms[i] = bottom;
+            }
+            
+            for (int i = 0; i < count; i++) {
+                newEntries[heights.length + i] = entries[i];
+                newBottoms[heights.length + i] = bottoms[i] + bottom;
+            }
+            
+            entries = newEntries;
+            bottoms = newBottoms;
+            count += heights.length;
+            
+            return bottom;
+        }
         
-        ArrayList<StringBuilder> stringBuilderLines = new ArrayList<>();
-        stringBuilderLines.add(new StringBuilder());
+        private void clear() {
+            entries = new Entry[64];
+            bottoms = new int[64];
+            count = 0;
+            
+            revalidate();
+            repaint();
+        }
         
-        for (int i = 0; i < words.length; i++) {
-            if (fontMetrics.stringWidth(stringBuilderLines.get(stringBuilderLines.size()-1)
-                    .toString()) + wordLengths[i] <= wrapLength) {
-                
-                stringBuilderLines.get(stringBuilderLines.size() - 1)
-                        .append(words[i]).append(" ");
+        /**
+         * Returns the first message whose bottom is below the y coordinate
+         */
+        private int indexAt(int y) {
+            int low = 0;
+            int high = count;
             
-            } else if (wordLengths[i] >= wrapLength) {
-                for (String line : splitLargeString(words[i], fontMetrics, wrapLength)) {
-                    stringBuilderLines.add(new StringBuilder(line));
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                
+                if (bottoms[middle] + MARGIN <= y) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
                 }
-                stringBuilderLines.get(stringBuilderLines.size()-1).append(" ");
+            }
+            
+            return low;
+        }
+        
+        @Override
+        protected void paintComponent(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            
+            ((Graphics2D) g).setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            
+            for (int i = indexAt(clip.y); i < count; i++) {
+                int top = MARGIN + (i == 0 ? 0 : bottoms[i - 1]);
+                if (top >= clip.y + clip.height) {break;}
+                
+                paintEntry(g, entries[i], top);
+            }
+        }
+        
+        private void paintEntry(Graphics g, Entry entry, int top) {
+            SimpleAttributeSet style = entry.style();
+            Font font = entry.font();
+            FontMetrics metrics = layout.metricsOf(font);
+            
+            Font nameFont = entry.nameFont();
+            int nameWidth = entry.name == null ? 0 : layout.metricsOf(nameFont).stringWidth(entry.name);
+            
+            LC_LineLayout.Lines lines = wrap(entry);
+            int y = top + metrics.getAscent();
+            
+            for (int i = 0; i < lines.text.length; i++) {
+                int width = i == 0 ? nameWidth + lines.widths[i] : lines.widths[i];
                 
-            } else if (fontMetrics.stringWidth(stringBuilderLines.get(stringBuilderLines.size()-1)
-                    .toString()) + wordLengths[i] >= wrapLength) {
-                stringBuilderLines.add(new StringBuilder());
+                int x = switch (StyleConstants.getAlignment(style)) {
+                    case StyleConstants.ALIGN_RIGHT -> getWidth() - MARGIN - width;
+                    case StyleConstants.ALIGN_CENTER -> (getWidth() - width) / 2;
+                    default -> MARGIN;
+                };
                 
-                stringBuilderLines.get(stringBuilderLines.size() - 1)
-                        .append(words[i]).append(" ");
+                if (i == 0 && entry.name != null) {
+                    g.setFont(nameFont);
+                    g.setColor(StyleConstants.getForeground(entry.nameStyle()));
+                    g.drawString(entry.name, x, y);
+                    x += nameWidth;
+                }
+                
+                g.setFont(font);
+                g.setColor(StyleConstants.getForeground(style));
+                g.drawString(lines.text[i], x, y);
                 
-            } else {throw new RuntimeException("condition gap");}
+                y += metrics.getHeight();
+            }
         }
         
-        String output = "";
+        @Override
+        public Dimension getPreferredSize() {
+            int height = (count == 0 ? 0 : bottoms[count - 1]) + MARGIN * 2;
+            return new Dimension(WRAP_LENGTH + MARGIN * 2, height);
+        }
         
-        for (StringBuilder i : stringBuilderLines) {
-            output = output.concat(i.toString() + "\n");
+        @Override
+        public Dimension getPreferredScrollableViewportSize() {
+            return getPreferredSize();
+        }
+        
+        @Override
+        public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+            return 15;
+        }
+        
+        @Override
+        public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+            return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
         }
-        return output;
-    }
-    
-    private FontMetrics generateFontMetric() {
-        Graphics g = textPane.getGraphics();
         
-        return g.getFontMetrics();
+        @Override
+        public boolean getScrollableTracksViewportWidth() {
+            return true;
+        }
+        
+        @Override
+        public boolean getScrollableTracksViewportHeight() {
+            // Fills the viewport until there are enough messages to scroll
+            return getParent() instanceof JViewport viewport && viewport.getHeight() > getPreferredSize().height;
+        }
     }
     
+    
     private static Font getFont(SimpleAttributeSet style) {
         return new Font(
                 StyleConstants.getFontFamily(style),
@@ -168,38 +429,4 @@ public class LC_ChatPane extends JScrollPane{
                 StyleConstants.getFontSize(style)
         );
     }
-    
-    private ArrayList<String> splitLargeString(String longString,
-                                               FontMetrics fontMetrics,
-                                               int wrapLength) {
-        
-        StringBuilder line = new StringBuilder();
-        StringBuilder string = new StringBuilder();
-        string.append(longString);
-        
-        
-        while (
-                fontMetrics.stringWidth(line + (string.substring(string.length()-1)))
-                        <= wrapLength &&
-                        !string.isEmpty()) {
-            
-            line.append(string.substring(0,1));
-            
-            string.deleteCharAt(0);
-            
-            if (string.isEmpty()) {
-                break;
-            }
-        }
-        
-        if (string.isEmpty()) {
-            return new ArrayList<>() {{add(line.toString());}};
-        } else {
-            return new ArrayList<>() {{
-                add(line.toString());
-                addAll(splitLargeString(string.toString(), fontMetrics, wrapLength));
-            }};
-        }
-        
-    }
-}
+}
\ No newline at end of file
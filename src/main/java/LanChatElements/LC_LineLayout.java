@@ -0,0 +1,248 @@
+package LanChatElements;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The LC_LineLayout wraps text into lines that fit a width. Each word is measured
+ * once, from the widths of its characters, which are looked up once per font and
+ * kept. The lines of the most recently wrapped texts are kept as well, so text that
+ * is painted again, such as when scrolling, is not wrapped again. <br>
+ * Words are split on spaces and the text is broken at line breaks. A word wider than
+ * the width is split between characters. <br>
+ * The layout is not thread safe, and is only used on the event dispatch thread
+ */
+class LC_LineLayout {
+    
+    /**
+     * The component that the fonts are measured for
+     */
+    private final Component component;
+    
+    /**
+     * The character widths of every font used so far
+     */
+    private final Map<Font, Glyphs> glyphs = new HashMap<>();
+    
+    /**
+     * The most recently used layouts, the least recently used first
+     */
+    private final LinkedHashMap<Key, Lines> cache;
+    
+    /**
+     * Creates a layout
+     *
+     * @param component The component that the text is painted on
+     * @param cacheSize The number of layouts to keep
+     */
+    LC_LineLayout(Component component, int cacheSize) {
+        this.component = component;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Lines> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+    
+    /**
+     * The Lines of a wrapped text, and the width of each in pixels
+     */
+    static final class Lines {
+        final String[] text;
+        final int[] widths;
+        
+        private Lines(String[] text, int[] widths) {
+            this.text = text;
+            this.widths = widths;
+        }
+    }
+    
+    /**
+     * Returns the metrics of a font, which are measured once
+     *
+     * @param font The font
+     * @return The metrics
+     */
+    FontMetrics metricsOf(Font font) {
+        return glyphsOf(font).metrics;
+    }
+    
+    /**
+     * Wraps text into lines, or returns its lines if it has been wrapped recently
+     *
+     * @param text  The text
+     * @param font  The font that the text is painted in
+     * @param width The width of the lines in pixels
+     * @return The lines
+     */
+    Lines wrap(String text, Font font, int width) {
+        Key key = new Key(text, font, width);
+        
+        Lines lines = cache.get(key);
+        if (lines == null) {
+            lines = layOut(text, glyphsOf(font), width);
+            cache.put(key, lines);
+        }
+        
+        return lines;
+    }
+    
+    /**
+     * Forgets every layout, such as when the text of a chat is cleared
+     */
+    void clear() {
+        cache.clear();
+    }
+    
+    private Glyphs glyphsOf(Font font) {
+        return glyphs.computeIfAbsent(font, f -> new Glyphs(component.getFontMetrics(f)));
+    }
+    
+    /**
+     * Wraps text in a single pass, measuring each character once
+     */
+    private static Lines layOut(String text, Glyphs glyphs, int width) {
+        List<String> lines = new ArrayList<>();
+        List<Integer> widths = new ArrayList<>();
+        
+        int space = glyphs.width(' ');
+        int lineStart = 0;
+        int lineEnd = 0; // The end of the last word on the line
+        int lineWidth = 0;
+        boolean empty = true; // Indicates if the line has no words yet
+        int i = 0;
+        
+        while (i <= text.length()) {
+            // Find the next word
+            int wordStart = i;
+            int wordWidth = 0;
+            while (i < text.length() && text.charAt(i) != ' ' && text.charAt(i) != '\n') {
+                int codePoint = text.codePointAt(i);
+                wordWidth += glyphs.width(codePoint);
+                i += Character.charCount(codePoint);
+            }
+            int wordEnd = i;
+            
+            if (empty || lineWidth + space + wordWidth <= width) {
+                if (!empty) {lineWidth += space;}
+                lineEnd = wordEnd;
+                lineWidth += wordWidth;
+                empty = false;
+            } else {
+                lines.add(text.substring(lineStart, lineEnd));
+                widths.add(lineWidth);
+                
+                lineStart = wordStart;
+                lineEnd = wordEnd;
+                lineWidth = wordWidth;
+            }
+            
+            // Split a word that does not fit on a line of its own between characters
+            while (lineWidth > width) {
+                int split = lineStart;
+                int splitWidth = 0;
+                
+                while (split < lineEnd) {
+                    int codePoint = text.codePointAt(split);
+                    int charWidth = glyphs.width(codePoint);
+                    if (splitWidth + charWidth > width && split > lineStart) {break;}
+                    
+                    splitWidth += charWidth;
+                    split += Character.charCount(codePoint);
+                }
+                
+                lines.add(text.substring(lineStart, split));
+                widths.add(splitWidth);
+                
+                lineStart = split;
+                lineWidth -= splitWidth;
+            }
+            
+            if (i >= text.length() || text.charAt(i) == '\n') {
+                lines.add(text.substring(lineStart, lineEnd));
+                widths.add(lineWidth);
+                
+                lineStart = lineEnd = i + 1;
+                lineWidth = 0;
+                empty = true;
+            }
+            i++;
+        }
+        
+        int[] widthArray = new int[widths.size()];
+        for (int j = 0; j < widthArray.length; j++) {
+            widthArray[j] = widths.get(j);
+        }
+        
+        return new Lines(lines.toArray(new String[0]), widthArray);
+    }
+    
+    /**
+     * The Glyphs of a font keep the width of each character that has been measured
+     */
+    private static final class Glyphs {
+        private final FontMetrics metrics;
+        
+        /**
+         * The widths of the first 256 characters, or -1 if not yet measured
+         */
+        private final int[] latin = new int[256];
+        
+        /**
+         * The widths of the other characters that have been measured
+         */
+        private final Map<Integer, Integer> others = new HashMap<>();
+        
+        private Glyphs(FontMetrics metrics) {
+            this.metrics = metrics;
+            Arrays.fill(latin, -1);
+        }
+        
+        private int width(int codePoint) {
+            if (codePoint < latin.length) {
+                int width = latin[codePoint];
+                if (width == -1) {width = latin[codePoint] = metrics.charWidth(codePoint);}
+                
+                return width;
+            }
+            
+            return others.computeIfAbsent(codePoint, metrics::charWidth);
+        }
+    }
+    
+    /**
+     * The Key of a layout in the cache
+     */
+    private static final class Key {
+        private final String text;
+        private final Font font;
+        private final int width;
+        private final int hash;
+        
+        private Key(String text, Font font, int width) {
+            this.text = text;
+            this.font = font;
+            this.width = width;
+            this.hash = Objects.hash(text, font, width);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key key)) {return false;}
+            
+            return width == key.width && text.equals(key.text) && font.equals(key.font);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
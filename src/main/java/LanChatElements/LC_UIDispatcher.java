@@ -0,0 +1,141 @@
+package LanChatElements;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The LC_UIDispatcher queues messages for a {@link LC_ChatPane} from any thread and
+ * adds them on the event dispatch thread once per frame, so a burst of messages is
+ * laid out and painted once rather than once per message. <br>
+ * At most {@link #maxBatch} messages are added each frame, and the rest wait for the
+ * following frames, so a large backlog does not hold up the event dispatch thread
+ */
+public class LC_UIDispatcher {
+    
+    /**
+     * How long to gather messages for before adding them, in milliseconds
+     */
+    public static final int FRAME_MILLIS = 16;
+    
+    private final LC_ChatPane chatPane;
+    
+    /**
+     * The most messages that are added in a single frame
+     */
+    private final int maxBatch;
+    
+    /**
+     * The messages waiting to be added
+     */
+    private final Queue<LC_ChatPane.Entry> pending = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * Queued by {@link #reset()} in place of a message, to mark where the chat pane
+     * is reset
+     */
+    private static final LC_ChatPane.Entry RESET = LC_ChatPane.Entry.information("");
+    
+    /**
+     * The number of {@link #RESET resets} that are queued
+     */
+    private final AtomicInteger resets = new AtomicInteger();
+    
+    /**
+     * Indicates if the {@link #timer} is running or the pending messages are being added
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    
+    /**
+     * Adds the pending messages a frame after it is started
+     */
+    private final Timer timer;
+    
+    /**
+     * Creates a dispatcher
+     *
+     * @param chatPane The chat pane to add messages to
+     * @param maxBatch The most messages that are added in a single frame
+     * @throws IllegalArgumentException If the max batch is not positive
+     */
+    public LC_UIDispatcher(LC_ChatPane chatPane, int maxBatch) {
+        if (maxBatch <= 0) {throw new IllegalArgumentException("The max batch must be positive");}
+        
+        this.chatPane = chatPane;
+        this.maxBatch = maxBatch;
+        
+        timer = new Timer(FRAME_MILLIS, e -> drain());
+        timer.setRepeats(false);
+    }
+    
+    /**
+     * Queues a message to be added in the next frame. May be called by any thread
+     *
+     * @param entry The message
+     */
+    public void post(LC_ChatPane.Entry entry) {
+        pending.add(entry);
+        
+        if (scheduled.compareAndSet(false, true)) {timer.restart();}
+    }
+    
+    /**
+     * Queues the chat pane to be emptied. The pane is emptied, and the messages queued
+     * before this are forgotten, in one step on the event dispatch thread, so none of
+     * them, such as those of the conversation being left, are shown after it. The
+     * messages queued after this are added to the emptied pane. May be called by any
+     * thread
+     */
+    public void reset() {
+        pending.add(RESET);
+        resets.incrementAndGet();
+        
+        SwingUtilities.invokeLater(this::drain);
+    }
+    
+    /**
+     * Adds up to {@link #maxBatch} pending messages to the chat pane, and schedules
+     * the next frame if any are left, after doing the queued resets. Runs on the
+     * event dispatch thread
+     */
+    private void drain() {
+        List<LC_ChatPane.Entry> batch = new ArrayList<>();
+        
+        // A reset is done however many messages are queued before it
+        while (resets.get() > 0) {
+            LC_ChatPane.Entry dropped;
+            do {dropped = pending.poll();} while (dropped != RESET);
+            
+            resets.decrementAndGet();
+            chatPane.reset();
+        }
+        
+        LC_ChatPane.Entry entry;
+        while (batch.size() < maxBatch && (entry = pending.poll()) != null) {
+            if (entry == RESET) {
+                resets.decrementAndGet();
+                batch.clear();
+                chatPane.reset();
+            } else {
+                batch.add(entry);
+            }
+        }
+        
+        try {
+            chatPane.addMessages(batch);
+        } finally {
+            if (!pending.isEmpty()) {
+                timer.restart();
+            } else {
+                scheduled.set(false);
+                
+                // A message may have been queued after the check but before the flag was cleared
+                if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) {timer.restart();}
+            }
+        }
+    }
+}
@@ -4,16 +4,30 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.net.URL;
+import java.util.List;
 
 
 public class LC_Window extends JFrame {
     private final LC_Window This;
     private final LC_Windowable callback;
     
-    public LC_Window(LC_Windowable callback) {
+    /**
+     * Adds messages to the {@link #chatPane} in batches on the event dispatch thread
+     */
+    private final LC_UIDispatcher dispatcher;
+    
+    /**
+     * Creates and shows the window
+     *
+     * @param callback The callback that the window reports the user's actions to
+     * @param maxBatch The most messages that are added to the chat in a single frame
+     */
+    public LC_Window(LC_Windowable callback, int maxBatch) {
         This = this;
         this.callback = callback;
         setUpJframe();
+        dispatcher = new LC_UIDispatcher(chatPane, maxBatch);
+        chatPane.setTopListener(callback::historyRequested);
         
         URL iconURL = getClass().getResource("/Error.png");
         if (iconURL != null) {
@@ -162,16 +176,34 @@ public class LC_Window extends JFrame {
             setLayout(new BorderLayout());
         }};
         
-        chat.add(usernameArea = new LC_TextField() {{
-            setEditable(false);
+        chat.add(new LC_Panel() {{
+            setLayout(new BorderLayout());
             setBackground(LC_Constants.green);
-            setText("Username");
-            
-            setFont(LC_Constants.buttonFont);
-            setForeground(Color.WHITE);
             
-            setBorder(null);
+            add(usernameArea = new LC_TextField() {{
+                setEditable(false);
+                setBackground(LC_Constants.green);
+                setText("Username");
+                
+                setFont(LC_Constants.buttonFont);
+                setForeground(Color.WHITE);
+                
+                setBorder(null);
+                
+            }}, BorderLayout.CENTER);
             
+            add(searchInput = new LC_TextField() {{
+                setPreferredSize(new Dimension(150, LC_Constants.defaultFont.getSize()+10));
+                setFont(LC_Constants.defaultFont);
+                setToolTipText("<html>Search the history of this chat<br>" +
+                        "from:&lt;username&gt; after:&lt;yyyy-mm-dd&gt; before:&lt;yyyy-mm-dd&gt;</html>");
+                
+                addActionListener(e -> {
+                    if (getText().isBlank()) {return;}
+                    
+                    callback.search(getText());
+                });
+            }}, BorderLayout.EAST);
         }}, BorderLayout.NORTH);
         
         
@@ -346,30 +378,72 @@ public class LC_Window extends JFrame {
     }
     
     
+    /**
+     * Shows the chat for a new conversation. May be called by any thread
+     *
+     * @param userName The username of the peer
+     */
     public void connectionMade(String userName) {
-        chatPane.reset();
-        
-        usernameArea.setText(userName);
-        
-        messageInput.setText("");
-        
-        connectionKeyInput.setText("");
-        usernameInputEnterKey.setText("");
-        usernameInputCreateKey.setText("");
+        // Queued with the messages, so only those queued before this are dropped
+        dispatcher.reset();
         
-        
-        menuBarCards.show(menuBar, "chat");
-        bodyCards.show(body, "chat");
+        SwingUtilities.invokeLater(() -> {
+            usernameArea.setText(userName);
+            
+            messageInput.setText("");
+            searchInput.setText("");
+            
+            connectionKeyInput.setText("");
+            usernameInputEnterKey.setText("");
+            usernameInputCreateKey.setText("");
+            
+            
+            menuBarCards.show(menuBar, "chat");
+            bodyCards.show(body, "chat");
+        });
     }
     
+    // The messages are queued, so these may be called by any thread
     public void addSentMessage(String msg) {
-        chatPane.addSentMessage(msg);
+        dispatcher.post(LC_ChatPane.Entry.sent(msg));
     }
     public void addReceivedMessage(String msg, String username) {
-        chatPane.addReceivedMessage(msg, username);
+        dispatcher.post(LC_ChatPane.Entry.received(msg, username));
     }
     public void addInformationMessage(String msg) {
-        chatPane.addInformationMessage(msg);
+        dispatcher.post(LC_ChatPane.Entry.information(msg));
+    }
+    
+    /**
+     * Shows messages from before those in the chat, such as those of an earlier
+     * conversation. Must be called on the event dispatch thread
+     *
+     * @param entries The messages, in the order they should be shown
+     * @param more    Whether there are more messages before these
+     */
+    public void addEarlierMessages(List<LC_ChatPane.Entry> entries, boolean more) {
+        chatPane.addEarlierMessages(entries, more);
+    }
+    
+    /**
+     * Shows the messages found by a search in a dialog of their own. Must be called on
+     * the event dispatch thread
+     *
+     * @param query   The query that was searched for
+     * @param entries The messages found, in the order they should be shown
+     */
+    public void showSearchResults(String query, List<LC_ChatPane.Entry> entries) {
+        LC_ChatPane results = new LC_ChatPane();
+        
+        JDialog dialog = new JDialog(this, "Search: " + query, false);
+        dialog.setSize(400, 350);
+        dialog.setLocationRelativeTo(this);
+        dialog.add(results);
+        dialog.setVisible(true);
+        
+        results.addMessages(entries.isEmpty()
+                ? List.of(LC_ChatPane.Entry.information("No messages found"))
+                : entries);
     }
     
     public void checkAllowConnection(String username) {
@@ -379,6 +453,22 @@ public class LC_Window extends JFrame {
         menuBarCards.show(menuBar,"allowConnection");
     }
     
+    /**
+     * Asks the user whether to send the messages that earlier conversations with the
+     * other user left unsent. Must be called on the event dispatch thread
+     *
+     * @param username The username of the other user
+     * @param count    The number of messages left unsent
+     */
+    public void checkSendUnsent(String username, int count) {
+        int answer = JOptionPane.showConfirmDialog(this,
+                count + (count == 1 ? " message" : " messages") + " to \"" + username
+                        + "\" weren't delivered last time. \nSend them now?",
+                "Unsent messages", JOptionPane.YES_NO_OPTION);
+        
+        callback.sendUnsent(answer == JOptionPane.YES_OPTION);
+    }
+    
     public void resetAndDisplayError(String errMsg) {
         bodyCards.show(body, "start");
         menuBarCards.show(menuBar, "start");
@@ -407,6 +497,7 @@ public class LC_Window extends JFrame {
     private JTextField uncondensedKeyDisplay;
     
     private JTextField usernameArea;
+    private JTextField searchInput;
     private LC_ChatPane chatPane;
     private LC_MessageInput messageInput;
     
@@ -30,11 +30,13 @@ public interface LC_Windowable {
     void cancelListen();
     
     /**
-     * Sends a message through the sender
+     * Sends a message through the sender. This is called by the Swing event dispatch
+     * thread, so it must not wait for the message to be written
      *
-     * @throws IllegalStateException If the previous message hasn't yet sent
+     * @implSpec The manager must show the message with {@link LC_Window#addSentMessage(String)}
+     * once it has been sent, or show an error if it could not be
      */
-    void sendMessage(String message) throws IllegalStateException;
+    void sendMessage(String message);
     
     /**
      * Signals that the user has decided to end the connection
@@ -52,5 +54,39 @@ public interface LC_Windowable {
      */
     void allowConnection(boolean allowed, String username);
     
+    /**
+     * Signals that the user has scrolled to the top of the chat, so the messages
+     * before those shown should be shown. This is called by the Swing event dispatch
+     * thread
+     *
+     * @implSpec The manager must show the messages with
+     * {@link LC_Window#addEarlierMessages(java.util.List, boolean)}, or do nothing if
+     * it has none
+     */
+    void historyRequested();
+    
+    /**
+     * Signals that the user has searched the history of the conversation. This is
+     * called by the Swing event dispatch thread
+     *
+     * @param query The query typed into the search box, in the form read by
+     *              {@link LanChatHistory.SearchQuery#parse(String)}
+     * @implSpec The manager must show the messages found with
+     * {@link LC_Window#showSearchResults(String, java.util.List)}, or show an error
+     * if the query is not valid. The history should be searched off the event dispatch
+     * thread, and the results shown back on it
+     */
+    void search(String query);
+    
+    /**
+     * Signals whether the user wants the messages that earlier conversations left
+     * unsent to be sent now. This is called by the Swing event dispatch thread
+     *
+     * @param send True if the messages should be sent, false if they should be dropped
+     * @implSpec The manager must send the messages as if the user had sent them, or
+     * forget them
+     */
+    void sendUnsent(boolean send);
+    
 }
 
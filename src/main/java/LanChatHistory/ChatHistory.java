@@ -0,0 +1,302 @@
+package LanChatHistory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The ChatHistory keeps every message sent and received, in a {@link HistoryLog} for
+ * each node that messages were exchanged with, so conversations outlast the window
+ * and the process. <br>
+ * Messages are queued by the threads that send and receive them and written by a
+ * single writer thread, so saving a message never holds up a connection. The writer
+ * writes whatever has been queued as a batch, then forces the written messages to the
+ * disk once {@link HistoryOptions#syncEvery} of them are waiting or the oldest has
+ * waited {@link HistoryOptions#syncMillis}, so the disk is synced once for many
+ * messages. Messages that have been written but not synced survive the process
+ * stopping, but not the machine. <br>
+ * A compactor thread {@link HistoryLog#compact(long) compacts} every log in the
+ * directory each {@link #COMPACT_MINUTES} minutes, starting a minute after the history
+ * is opened, so old messages are compressed and the history keeps to its budget
+ */
+public final class ChatHistory implements AutoCloseable {
+    
+    private static final Logger logger = LogManager.getLogger(ChatHistory.class);
+    
+    /**
+     * Queued to stop the writer once the messages before it are written
+     */
+    private static final Pending CLOSE = new Pending(null, null, -1);
+    
+    /**
+     * How often the logs are compacted, in minutes
+     */
+    public static final int COMPACT_MINUTES = 10;
+    
+    private final Path directory;
+    private final HistoryOptions options;
+    
+    /**
+     * The logs that have been opened, keyed by the {@link #directoryName(String) name
+     * of their directory}. Guarded by {@code this}
+     */
+    private final Map<String, HistoryLog> logs = new HashMap<>();
+    
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final ScheduledExecutorService compactor;
+    
+    /**
+     * Opens the history in the directory, creating the directory if it does not
+     * exist, and starts the writer and compactor threads
+     *
+     * @param directory The directory to keep the history in
+     * @param options   The options to write and compact with
+     * @throws IOException If the directory could not be created
+     */
+    public ChatHistory(Path directory, HistoryOptions options) throws IOException {
+        Files.createDirectories(directory);
+        
+        this.directory = directory;
+        this.options = options;
+        
+        writer = new Thread(this::write, "History-Writer");
+        writer.setDaemon(true);
+        writer.start();
+        
+        compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "History-Compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, 1, COMPACT_MINUTES, TimeUnit.MINUTES);
+    }
+    
+    /**
+     * A message waiting to be written, or a message to delete if the record is {@code null}
+     */
+    private record Pending(String peer, HistoryRecord record, long deleted) {}
+    
+    /**
+     * Queues a message to be written to the log of the node. May be called by any
+     * thread, and does not wait for the message to be written
+     *
+     * @param peer   The username of the other node
+     * @param record The message
+     */
+    public void append(String peer, HistoryRecord record) {
+        queue.add(new Pending(peer, record, -1));
+    }
+    
+    /**
+     * Queues a message to be deleted from the log of the node. The message is no
+     * longer read once the deletion is written, and is removed from the disk when
+     * the log is next compacted. May be called by any thread
+     *
+     * @param peer  The username of the other node
+     * @param index The index of the message in the log
+     */
+    public void delete(String peer, long index) {
+        queue.add(new Pending(peer, null, index));
+    }
+    
+    /**
+     * Returns the log of the messages exchanged with a node, opening it if it has
+     * not been opened yet
+     *
+     * @param peer The username of the other node
+     * @return The log, which is empty if no messages have been exchanged with the node
+     * @throws UncheckedIOException If the log could not be opened
+     */
+    public HistoryLog log(String peer) {
+        try {
+            return logAt(directoryName(peer));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't open the history of " + peer, e);
+        }
+    }
+    
+    /**
+     * Returns the log in a directory of the history, opening it if it has not been
+     * opened yet
+     *
+     * @param name The name of the directory
+     * @return The log
+     * @throws IOException If the log could not be opened
+     */
+    private synchronized HistoryLog logAt(String name) throws IOException {
+        HistoryLog log = logs.get(name);
+        if (log == null) {
+            log = HistoryLog.open(directory.resolve(name), options);
+            logs.put(name, log);
+        }
+        
+        return log;
+    }
+    
+    /**
+     * Returns the name of the directory that the log of a node is kept in. Characters
+     * that may not be allowed in a file name are replaced, and a hash of the username
+     * is added so usernames that differ only in those characters are kept apart. The
+     * name is safe to use for any other file kept for the node
+     *
+     * @param peer The username of the node
+     * @return The name
+     */
+    public static String directoryName(String peer) {
+        StringBuilder name = new StringBuilder();
+        
+        peer.codePoints().limit(64).forEach(c -> {
+            if (c < 128 && (Character.isLetterOrDigit(c) || c == '-' || c == '_')) {
+                name.append((char) c);
+            } else {
+                name.append('_');
+            }
+        });
+        
+        int hash = 0;
+        for (byte b : peer.getBytes(StandardCharsets.UTF_8)) {
+            hash = 31 * hash + b;
+        }
+        
+        return name.append('-').append(String.format("%08x", hash)).toString();
+    }
+    
+    /**
+     * The writer thread. Writes the queued messages in batches and syncs them as the
+     * {@link #options} allow, until {@link #CLOSE} is queued
+     */
+    private void write() {
+        List<Pending> batch = new ArrayList<>();
+        Set<HistoryLog> unsynced = new LinkedHashSet<>();
+        int unsyncedCount = 0;
+        long oldestUnsynced = 0;
+        boolean running = true;
+        
+        while (running) {
+            try {
+                Pending first = unsynced.isEmpty() ? queue.take() : queue.poll(
+                        Math.max(0, oldestUnsynced + options.syncMillis - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            
+            for (Pending pending : batch) {
+                if (pending == CLOSE) {
+                    running = false;
+                    continue;
+                }
+                
+                try {
+                    HistoryLog log = log(pending.peer);
+                    if (pending.record == null) {
+                        log.delete(pending.deleted);
+                    } else {
+                        log.append(pending.record);
+                    }
+                    
+                    if (unsynced.isEmpty()) {oldestUnsynced = System.currentTimeMillis();}
+                    unsynced.add(log);
+                    unsyncedCount++;
+                } catch (IOException | UncheckedIOException e) {
+                    logger.error("Couldn't save a message to the history of {}", pending.peer, e);
+                }
+            }
+            batch.clear();
+            
+            boolean sync = !running || unsyncedCount >= options.syncEvery
+                    || System.currentTimeMillis() - oldestUnsynced >= options.syncMillis;
+            for (HistoryLog log : unsynced) {
+                try {
+                    log.flush(sync);
+                } catch (IOException e) {
+                    logger.error("Couldn't flush the history", e);
+                }
+            }
+            
+            if (sync) {
+                unsynced.clear();
+                unsyncedCount = 0;
+            }
+        }
+    }
+    
+    /**
+     * Compacts every log in the history, including those of nodes that no messages
+     * have been exchanged with since it was opened. A log that fails to compact is
+     * logged and left as it was
+     */
+    public void compact() {
+        List<Path> directories;
+        try (Stream<Path> list = Files.list(directory)) {
+            directories = list.filter(Files::isDirectory).toList();
+        } catch (IOException e) {
+            logger.error("Couldn't list the history to compact it", e);
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        for (Path path : directories) {
+            try {
+                logAt(path.getFileName().toString()).compact(now);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Couldn't compact the history in {}", path, e);
+            }
+        }
+    }
+    
+    /**
+     * Writes and syncs the messages already queued, then stops the writer and
+     * compactor and closes every log
+     */
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        queue.add(CLOSE);
+        
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        synchronized (this) {
+            for (HistoryLog log : logs.values()) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    logger.warn("Couldn't close a history log", e);
+                }
+            }
+            logs.clear();
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package LanChatHistory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongPredicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A ColdSegment is a {@link Segment} that older segments have been compacted into.
+ * It only holds the records that were kept, each after its index and length, in blocks
+ * of about {@link #BLOCK_SIZE} bytes that are compressed separately. The file is laid
+ * out as:
+ * <ol>
+ *     <li>The compressed blocks</li>
+ *     <li>The block index, holding the first index, position, compressed size and size
+ *     of each block</li>
+ *     <li>A footer, holding the base, end and last time of the segment, the number of
+ *     blocks and {@link #MAGIC}</li>
+ * </ol>
+ * A record is read by searching the block index for the block that holds it and
+ * decompressing only that block. The block that was read last is kept, so reading
+ * consecutive records decompresses each block once. <br>
+ * A cold segment is never changed once written. It is written to a temporary file that
+ * is then moved into place, so a segment that is being compacted is never half written
+ */
+final class ColdSegment implements Segment {
+    
+    /**
+     * The size that a block is filled to before it is compressed
+     */
+    static final int BLOCK_SIZE = 32 * 1024;
+    
+    /**
+     * The last int of every cold segment
+     */
+    private static final int MAGIC = 0x4C43_4331;
+    
+    /**
+     * The size of each entry of the block index
+     */
+    private static final int BLOCK_ENTRY = 8 + 4 + 4 + 4;
+    
+    private static final int FOOTER = 8 + 8 + 8 + 4 + 4;
+    
+    private final Path path;
+    
+    /**
+     * The whole file, which stays readable after the file is replaced or deleted
+     */
+    private final MappedByteBuffer buffer;
+    
+    private final long base;
+    private final long end;
+    private final long lastTime;
+    
+    private final long[] firstIndexes;
+    private final int[] positions;
+    private final int[] sizes;
+    private final int[] rawSizes;
+    
+    /**
+     * The block that was decompressed last, and its number. Guarded by {@code this}
+     */
+    private byte[] block;
+    private int blockNumber = -1;
+    
+    private ColdSegment(Path path, MappedByteBuffer buffer) throws IOException {
+        this.path = path;
+        this.buffer = buffer;
+        
+        int footer = buffer.capacity() - FOOTER;
+        if (footer < 0 || buffer.getInt(footer + FOOTER - 4) != MAGIC) {
+            throw new IOException("Not a cold segment: " + path);
+        }
+        
+        base = buffer.getLong(footer);
+        end = buffer.getLong(footer + 8);
+        lastTime = buffer.getLong(footer + 16);
+        
+        int blocks = buffer.getInt(footer + 24);
+        firstIndexes = new long[blocks];
+        positions = new int[blocks];
+        sizes = new int[blocks];
+        rawSizes = new int[blocks];
+        
+        int entry = footer - blocks * BLOCK_ENTRY;
+        for (int i = 0; i < blocks; i++, entry += BLOCK_ENTRY) {
+            firstIndexes[i] = buffer.getLong(entry);
+            positions[i] = buffer.getInt(entry + 8);
+            sizes[i] = buffer.getInt(entry + 12);
+            rawSizes[i] = buffer.getInt(entry + 16);
+        }
+    }
+    
+    /**
+     * Opens a cold segment
+     *
+     * @param path The file of the segment
+     * @return The segment
+     * @throws IOException If the file could not be read or is not a cold segment
+     */
+    static ColdSegment open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new ColdSegment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+    
+    /**
+     * Compacts segments into a cold segment, which covers the indexes from the base of
+     * the first to the end of the last. {@link HistoryRecord#tombstone(long) Tombstones}
+     * and the records that are dropped are left out. If a cold segment with the same
+     * base exists, it is replaced
+     *
+     * @param directory The directory of the log
+     * @param segments  The segments to compact, in the order of their indexes
+     * @param dropped   Tests the index of each record, returning true if it should be left out
+     * @return The cold segment
+     * @throws IOException If the segment could not be written
+     */
+    static ColdSegment write(Path directory, List<Segment> segments, LongPredicate dropped) throws IOException {
+        long base = segments.get(0).base();
+        Path path = directory.resolve(Segment.name(base) + ".cold");
+        Path temporary = directory.resolve(Segment.name(base) + ".cold.tmp");
+        
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            BlockWriter writer = new BlockWriter(channel, deflater);
+            
+            long lastTime = 0;
+            for (Segment segment : segments) {
+                lastTime = Math.max(lastTime, segment.lastTime());
+                
+                for (long index = segment.base(); index < segment.end(); index++) {
+                    byte[] encoded = segment.encoded(index);
+                    if (encoded == null || HistoryRecord.isTombstone(encoded) || dropped.test(index)) {continue;}
+                    
+                    writer.add(index, encoded);
+                }
+            }
+            
+            writer.finish(base, segments.get(segments.size() - 1).end(), lastTime);
+            channel.force(true);
+        } finally {
+            deflater.end();
+        }
+        
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return open(path);
+    }
+    
+    /**
+     * The BlockWriter fills blocks with records and writes each once it is full
+     */
+    private static final class BlockWriter {
+        private final FileChannel channel;
+        private final Deflater deflater;
+        
+        private final ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+        private final DataOutputStream rawData = new DataOutputStream(raw);
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final DataOutputStream indexData = new DataOutputStream(index);
+        
+        private byte[] compressed = new byte[BLOCK_SIZE];
+        private long firstIndex;
+        private int blocks = 0;
+        private int position = 0;
+        
+        private BlockWriter(FileChannel channel, Deflater deflater) {
+            this.channel = channel;
+            this.deflater = deflater;
+        }
+        
+        private void add(long index, byte[] encoded) throws IOException {
+            if (raw.size() == 0) {firstIndex = index;}
+            
+            rawData.writeLong(index);
+            rawData.writeInt(encoded.length);
+            rawData.write(encoded);
+            
+            if (raw.size() >= BLOCK_SIZE) {writeBlock();}
+        }
+        
+        private void writeBlock() throws IOException {
+            byte[] bytes = raw.toByteArray();
+            raw.reset();
+            
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == compressed.length) {compressed = Arrays.copyOf(compressed, size * 2);}
+                size += deflater.deflate(compressed, size, compressed.length - size);
+            }
+            
+            write(ByteBuffer.wrap(compressed, 0, size));
+            
+            indexData.writeLong(firstIndex);
+            indexData.writeInt(position);
+            indexData.writeInt(size);
+            indexData.writeInt(bytes.length);
+            
+            position += size;
+            blocks++;
+        }
+        
+        private void finish(long base, long end, long lastTime) throws IOException {
+            if (raw.size() > 0) {writeBlock();}
+            
+            write(ByteBuffer.wrap(index.toByteArray()));
+            write(ByteBuffer.allocate(FOOTER).putLong(base).putLong(end).putLong(lastTime)
+                    .putInt(blocks).putInt(MAGIC).flip());
+        }
+        
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+    
+    @Override
+    public long base() {
+        return base;
+    }
+    
+    @Override
+    public long end() {
+        return end;
+    }
+    
+    @Override
+    public byte[] encoded(long index) {
+        if (index < base || index >= end) {return null;}
+        
+        // The last block that starts at or before the index
+        int low = 0;
+        int high = firstIndexes.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            
+            if (firstIndexes[middle] <= index) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (high < 0) {return null;}
+        
+        ByteBuffer block = ByteBuffer.wrap(block(high));
+        while (block.hasRemaining()) {
+            long found = block.getLong();
+            int length = block.getInt();
+            
+            if (found == index) {
+                byte[] encoded = new byte[length];
+                block.get(encoded);
+                return encoded;
+            }
+            if (found > index) {return null;}
+            
+            block.position(block.position() + length);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns a block, decompressing it if it is not the one that was read last
+     */
+    private synchronized byte[] block(int number) {
+        if (number == blockNumber) {return block;}
+        
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buffer.slice(positions[number], sizes[number]));
+            
+            byte[] raw = new byte[rawSizes[number]];
+            int size = 0;
+            while (size < raw.length && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, size, raw.length - size);
+                if (inflated == 0 && inflater.needsInput()) {throw new DataFormatException("The block is truncated");}
+                size += inflated;
+            }
+            
+            block = raw;
+            blockNumber = number;
+            return raw;
+        } catch (DataFormatException e) {
+            throw new UncheckedIOException(new IOException("Block " + number + " of " + path + " is corrupt", e));
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    @Override
+    public long lastTime() {
+        return lastTime;
+    }
+    
+    @Override
+    public long bytes() {
+        return buffer.capacity();
+    }
+    
+    @Override
+    public List<Path> files() {
+        return List.of(path);
+    }
+    
+    /**
+     * Does nothing, as the file was closed once it was mapped. The mapped memory is
+     * released once it is no longer referenced
+     */
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,541 @@
+package LanChatHistory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * A HistoryLog holds the messages of the conversations with a single node, in the
+ * order they were sent and received. Every message is given the next index, from 0,
+ * and is never changed once written. A message is deleted by writing a
+ * {@link HistoryRecord#tombstone(long) tombstone} for it, which hides it until both are
+ * compacted away. <br>
+ * The log is split into {@link Segment Segments}, each a file named after the index
+ * of its first message. Messages are written to the last {@link HotSegment} until it
+ * is full, when a new one is started. A message is found by searching the segments for
+ * the one holding its index, then looking up its position in that segment's index, so
+ * a page of the history is read without reading the messages before it. <br>
+ * {@link #compact(long) Compaction} rewrites all but the most recent hot segments into
+ * a {@link ColdSegment}, leaving out the tombstones and the messages they delete, then
+ * deletes the oldest segments until the log keeps to its size and age budget. So the
+ * indexes of a compacted log have gaps, and its first index may be above 0. <br>
+ * Every message is also added to the log's {@link SearchIndex} as it is written, so
+ * the log can be {@link #search(SearchQuery, int) searched} without reading every
+ * message. <br>
+ * Messages are only written by the {@link ChatHistory} writer thread, and the log is
+ * only compacted by its compactor thread, but it may be read by any
+ */
+public final class HistoryLog implements Closeable {
+    
+    /**
+     * The file listing the segment files that have been retired but not yet deleted
+     */
+    private static final String RETIRED = "retired";
+    
+    private final Path directory;
+    private final HistoryOptions options;
+    
+    /**
+     * The segments, in the order of their indexes. The list is never changed but is
+     * replaced under the {@link #lock}, so a reader always sees a whole list. The cold
+     * segments come first, and the last segment is always hot
+     */
+    private volatile List<Segment> segments;
+    
+    /**
+     * Guards replacing the {@link #segments} and changing the {@link #deleted} indexes
+     */
+    private final Object lock = new Object();
+    
+    /**
+     * The indexes of the messages deleted by the tombstones in the hot segments
+     */
+    private final Set<Long> deleted = ConcurrentHashMap.newKeySet();
+    
+    private SearchIndex search;
+    
+    private HistoryLog(Path directory, HistoryOptions options) {
+        this.directory = directory;
+        this.options = options;
+    }
+    
+    /**
+     * Opens the log in the directory, creating it if it does not exist. Files left by
+     * a compaction that did not finish, and the files of {@link #retire(List) retired}
+     * segments, are deleted
+     *
+     * @param directory The directory of the log
+     * @param options   The options to write and compact with
+     * @return The log
+     * @throws IOException If the log could not be created or read
+     */
+    static HistoryLog open(Path directory, HistoryOptions options) throws IOException {
+        Files.createDirectories(directory);
+        HistoryLog log = new HistoryLog(directory, options);
+        
+        Set<String> retired = deleteRetired(directory);
+        
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> !retired.contains(file.getFileName().toString())).sorted().toList();
+        }
+        
+        List<Segment> segments = new ArrayList<>();
+        try {
+            for (Path file : files) {
+                if (file.getFileName().toString().matches("\\d{20}\\.cold")) {
+                    segments.add(ColdSegment.open(file));
+                } else if (file.getFileName().toString().endsWith(".cold.tmp")) {
+                    Files.delete(file);
+                }
+            }
+            
+            long coldEnd = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).end();
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.matches("\\d{20}\\.log")) {continue;}
+                
+                long base = Long.parseLong(name.substring(0, 20));
+                if (base < coldEnd) {
+                    // Already compacted, and deleted before it is mapped
+                    Files.delete(file);
+                    Files.deleteIfExists(directory.resolve(name.substring(0, 20) + ".idx"));
+                } else {
+                    segments.add(HotSegment.open(directory, base, options.segmentSize));
+                }
+            }
+            
+            if (segments.isEmpty() || !(segments.get(segments.size() - 1) instanceof HotSegment)) {
+                segments.add(HotSegment.open(directory, coldEnd, options.segmentSize));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            throw e;
+        }
+        
+        log.segments = List.copyOf(segments);
+        for (Segment segment : segments) {
+            if (segment instanceof HotSegment hot) {hot.tombstones(log.deleted::add);}
+        }
+        log.search = SearchIndex.open(directory, log);
+        
+        return log;
+    }
+    
+    /**
+     * Returns the index of the first message that the log may hold. Messages before
+     * it have been deleted to keep to the budget
+     *
+     * @return The index
+     */
+    public long first() {
+        return segments.get(0).base();
+    }
+    
+    /**
+     * Returns the index that the next message will be written at
+     *
+     * @return The index
+     */
+    public long count() {
+        List<Segment> segments = this.segments;
+        return segments.get(segments.size() - 1).end();
+    }
+    
+    /**
+     * Reads a message
+     *
+     * @param index The index of the message
+     * @return The message, or {@code null} if there is none at the index, such as if
+     * it has been deleted
+     */
+    public HistoryRecord read(long index) {
+        if (deleted.contains(index)) {return null;}
+        
+        Segment segment = segmentOf(segments, index);
+        return segment == null ? null : segment.read(index);
+    }
+    
+    /**
+     * Reads the messages in a range of indexes, such as a page of the history
+     *
+     * @param from The first index of the range
+     * @param max  The size of the range
+     * @return The messages in the range, which may be fewer than its size if some
+     * have been deleted or it passes the end of the log
+     */
+    public List<HistoryRecord> read(long from, int max) {
+        List<Segment> segments = this.segments;
+        long to = Math.min(from + max, segments.get(segments.size() - 1).end());
+        
+        List<HistoryRecord> records = new ArrayList<>();
+        for (long index = Math.max(from, segments.get(0).base()); index < to; index++) {
+            if (deleted.contains(index)) {continue;}
+            
+            Segment segment = segmentOf(segments, index);
+            HistoryRecord record = segment == null ? null : segment.read(index);
+            if (record != null) {records.add(record);}
+        }
+        
+        return records;
+    }
+    
+    /**
+     * Finds the newest messages that match a query. The messages are assumed to have
+     * been written in the order of their times, so the time range of the query is
+     * found by a binary search, and only the messages that hold every term of the
+     * query are read
+     *
+     * @param query The query
+     * @param max   The most messages to return
+     * @return The newest messages that match, in the order they were written
+     */
+    public List<HistoryRecord> search(SearchQuery query, int max) {
+        long from = query.from == Long.MIN_VALUE ? first() : firstAtOrAfter(query.from);
+        long to = query.to == Long.MAX_VALUE ? count() : firstAtOrAfter(query.to);
+        
+        List<HistoryRecord> found = new ArrayList<>();
+        long[] candidates = search.candidates(query, from, to);
+        
+        if (candidates == null) {
+            for (long index = to - 1; index >= from && found.size() < max; index--) {
+                HistoryRecord record = read(index);
+                if (record != null) {found.add(record);}
+            }
+        } else {
+            for (int i = 0; i < candidates.length && found.size() < max; i++) {
+                HistoryRecord record = read(candidates[i]);
+                if (record != null) {found.add(record);}
+            }
+        }
+        
+        Collections.reverse(found);
+        return found;
+    }
+    
+    /**
+     * Finds the index of the first message written at or after a time by a binary search
+     *
+     * @return The index, or {@link #count()} if every message is older
+     */
+    private long firstAtOrAfter(long time) {
+        long low = first();
+        long high = count();
+        
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            
+            // Deleted messages leave gaps, so the first message from the middle is used
+            long probe = middle;
+            HistoryRecord record = null;
+            while (probe < high && (record = read(probe)) == null) {probe++;}
+            
+            if (record != null && record.time < time) {
+                low = probe + 1;
+            } else {
+                high = middle;
+            }
+        }
+        
+        return low;
+    }
+    
+    /**
+     * Finds the segment that may hold the index by a binary search on the segments' bases
+     *
+     * @return The segment, or {@code null} if no segment covers the index
+     */
+    private static Segment segmentOf(List<Segment> segments, long index) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            
+            if (segments.get(middle).base() <= index) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        
+        Segment segment = segments.get(low);
+        return index < segment.base() || index >= segment.end() ? null : segment;
+    }
+    
+    /**
+     * Writes a message to the end of the log. Only called by the writer thread
+     *
+     * @param record The message
+     * @throws IOException If a new segment could not be started
+     */
+    void append(HistoryRecord record) throws IOException {
+        long index = count();
+        append(record.encode());
+        search.add(index, record);
+    }
+    
+    /**
+     * Writes a tombstone that deletes a message. Only called by the writer thread
+     *
+     * @param index The index of the message
+     * @throws IOException If a new segment could not be started
+     */
+    void delete(long index) throws IOException {
+        synchronized (lock) {
+            append(HistoryRecord.tombstone(index));
+            deleted.add(index);
+        }
+    }
+    
+    /**
+     * Writes an encoded record to the last segment, starting a new segment if the
+     * last is full
+     */
+    private void append(byte[] encoded) throws IOException {
+        List<Segment> segments = this.segments;
+        HotSegment last = (HotSegment) segments.get(segments.size() - 1);
+        if (last.append(encoded)) {return;}
+        
+        int capacity = Math.max(options.segmentSize, HotSegment.FRAME_HEADER + encoded.length);
+        if (last.count() == 0) {
+            // Too small for the message, so its file is grown and mapped again. The file
+            // cannot be replaced, as some systems do not delete a file while it is mapped
+            HotSegment segment = HotSegment.open(directory, last.base, capacity);
+            segment.append(encoded);
+            replaceLast(segment, false);
+            last.close();
+            return;
+        }
+        
+        last.flush(true);
+        
+        HotSegment segment = HotSegment.open(directory, last.end(), capacity);
+        segment.append(encoded);
+        replaceLast(segment, true);
+    }
+    
+    private void replaceLast(HotSegment segment, boolean keepLast) {
+        synchronized (lock) {
+            List<Segment> next = new ArrayList<>(segments);
+            if (!keepLast) {next.remove(next.size() - 1);}
+            next.add(segment);
+            
+            segments = List.copyOf(next);
+        }
+    }
+    
+    /**
+     * Writes the index of the messages written since the last flush. Only called by
+     * the writer thread
+     *
+     * @param sync Whether to force the messages to the disk as well
+     * @throws IOException If the index could not be written or the messages could not be forced
+     */
+    void flush(boolean sync) throws IOException {
+        List<Segment> segments = this.segments;
+        ((HotSegment) segments.get(segments.size() - 1)).flush(sync);
+    }
+    
+    /**
+     * Compacts the log, then deletes the oldest segments until it keeps to its budget.
+     * The segments are compacted into new files, which replace them once written, so
+     * the log may be read and written throughout. Only called by the compactor thread
+     * <ol>
+     *     <li>Every cold segment holding a deleted message is rewritten without it</li>
+     *     <li>The hot segments before the {@link HistoryOptions#hotSegments} most
+     *     recent are compacted into a single cold segment</li>
+     *     <li>Segments are deleted from the oldest while the log is larger than
+     *     {@link HistoryOptions#maxBytes}, or their last message is older than
+     *     {@link HistoryOptions#maxAgeMillis}. The last segment is never deleted</li>
+     * </ol>
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @throws IOException If a segment could not be written or deleted
+     */
+    void compact(long now) throws IOException {
+        List<Segment> snapshot = segments;
+        Set<Long> dropped = Set.copyOf(deleted);
+        
+        int hot = 0;
+        while (!(snapshot.get(hot) instanceof HotSegment)) {hot++;}
+        int keep = Math.max(hot, snapshot.size() - options.hotSegments);
+        
+        Map<Segment, Segment> rewritten = new IdentityHashMap<>();
+        for (Segment cold : snapshot.subList(0, hot)) {
+            if (dropped.stream().anyMatch(index -> cold.encoded(index) != null)) {
+                rewritten.put(cold, ColdSegment.write(directory, List.of(cold), dropped::contains));
+            }
+        }
+        
+        List<Segment> compacted = snapshot.subList(hot, keep);
+        ColdSegment merged = compacted.isEmpty() ? null
+                : ColdSegment.write(directory, compacted, dropped::contains);
+        
+        if (merged != null || !rewritten.isEmpty()) {
+            synchronized (lock) {
+                // The writer may have added segments after the snapshot, but not changed those before them
+                List<Segment> current = segments;
+                List<Segment> next = new ArrayList<>();
+                
+                for (Segment segment : current.subList(0, hot)) {
+                    next.add(rewritten.getOrDefault(segment, segment));
+                }
+                if (merged != null) {next.add(merged);}
+                next.addAll(current.subList(keep, current.size()));
+                
+                segments = List.copyOf(next);
+                
+                // Tombstones that were compacted away took the messages they deleted with them
+                Set<Long> remaining = new HashSet<>();
+                for (Segment segment : next) {
+                    if (segment instanceof HotSegment hotSegment) {hotSegment.tombstones(remaining::add);}
+                }
+                deleted.retainAll(remaining);
+            }
+            
+            // A rewritten cold segment has replaced the file of the old one
+            for (Segment segment : rewritten.keySet()) {
+                segment.close();
+            }
+            retire(compacted);
+        }
+        
+        deleteOldest(now);
+        search.save(first());
+    }
+    
+    /**
+     * Deletes segments from the oldest until the log keeps to its size and age budget
+     */
+    private void deleteOldest(long now) throws IOException {
+        List<Segment> removed;
+        
+        synchronized (lock) {
+            List<Segment> current = segments;
+            
+            long bytes = 0;
+            for (Segment segment : current) {
+                bytes += segment.bytes();
+            }
+            
+            int count = 0;
+            while (count < current.size() - 1) {
+                Segment segment = current.get(count);
+                if (bytes <= options.maxBytes && segment.lastTime() >= now - options.maxAgeMillis) {break;}
+                
+                bytes -= segment.bytes();
+                count++;
+            }
+            
+            removed = current.subList(0, count);
+            segments = List.copyOf(current.subList(count, current.size()));
+        }
+        
+        retire(removed);
+    }
+    
+    /**
+     * Closes segments that have been removed from the log and adds their files to the
+     * {@link #RETIRED} list, to be deleted when the log is next opened. The files are
+     * not deleted straight away, as they are still mapped until the segments are no
+     * longer referenced, and some systems do not delete a file while it is mapped.
+     * Only called by the compactor thread
+     *
+     * @param segments The segments to retire
+     * @throws IOException If the list could not be written
+     */
+    private void retire(List<Segment> segments) throws IOException {
+        if (segments.isEmpty()) {return;}
+        
+        StringBuilder names = new StringBuilder();
+        for (Segment segment : segments) {
+            segment.close();
+            for (Path file : segment.files()) {
+                names.append(file.getFileName()).append('\n');
+            }
+        }
+        
+        // Forced, as a retired segment that is opened again would bring back the messages it held
+        try (FileChannel channel = FileChannel.open(directory.resolve(RETIRED),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(names.toString());
+            while (bytes.hasRemaining()) {channel.write(bytes);}
+            channel.force(false);
+        }
+    }
+    
+    /**
+     * Deletes the files on the {@link #RETIRED} list. A file that cannot be deleted,
+     * such as one still mapped by another log of this process, is kept on the list
+     *
+     * @param directory The directory of the log
+     * @return The names of the files that are still retired
+     * @throws IOException If the list could not be read or written
+     */
+    private static Set<String> deleteRetired(Path directory) throws IOException {
+        Path list = directory.resolve(RETIRED);
+        if (!Files.exists(list)) {return Set.of();}
+        
+        Set<String> remaining = new LinkedHashSet<>();
+        for (String name : Files.readAllLines(list, StandardCharsets.UTF_8)) {
+            if (name.isEmpty()) {continue;}
+            
+            try {
+                Files.deleteIfExists(directory.resolve(name));
+            } catch (IOException e) {
+                remaining.add(name);
+            }
+        }
+        
+        if (remaining.isEmpty()) {
+            Files.delete(list);
+        } else {
+            Files.write(list, remaining, StandardCharsets.UTF_8);
+        }
+        
+        return remaining;
+    }
+    
+    /**
+     * Saves the search index and closes every segment of the log
+     *
+     * @throws IOException If the index could not be saved or a segment could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        
+        try {
+            search.save(first());
+        } catch (IOException e) {
+            failure = e;
+        }
+        
+        for (Segment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                if (failure == null) {failure = e;} else {failure.addSuppressed(e);}
+            }
+        }
+        
+        if (failure != null) {throw failure;}
+    }
+}
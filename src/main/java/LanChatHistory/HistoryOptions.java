@@ -0,0 +1,77 @@
+package LanChatHistory;
+
+/**
+ * HistoryOptions holds the settings that a {@link ChatHistory} writes and compacts
+ * with. The options are immutable
+ */
+public final class HistoryOptions {
+    
+    /**
+     * The options used when none are given
+     */
+    public static final HistoryOptions DEFAULT = new HistoryOptions(4 << 20, 64, 1000,
+            4, 256L << 20, 365L * 24 * 60 * 60 * 1000);
+    
+    /**
+     * The size of a segment file in bytes. A message larger than this is given a
+     * segment of its own
+     */
+    public final int segmentSize;
+    
+    /**
+     * The number of messages that may be written before they are forced to the disk
+     */
+    public final int syncEvery;
+    
+    /**
+     * The longest, in milliseconds, that a written message may wait to be forced to
+     * the disk
+     */
+    public final long syncMillis;
+    
+    /**
+     * The number of most recent segments of each log that are left uncompressed when
+     * the log is compacted
+     */
+    public final int hotSegments;
+    
+    /**
+     * The most bytes that the files of each log may take up. The oldest segments are
+     * deleted to keep to it when the log is compacted
+     */
+    public final long maxBytes;
+    
+    /**
+     * The longest, in milliseconds, that a message is kept for. Segments whose
+     * messages are all older are deleted when the log is compacted
+     */
+    public final long maxAgeMillis;
+    
+    /**
+     * Creates history options
+     *
+     * @param segmentSize  The size of a segment file in bytes
+     * @param syncEvery    The number of messages written before they are forced to the disk
+     * @param syncMillis   The longest that a message may wait to be forced to the disk
+     * @param hotSegments  The number of most recent segments that are left uncompressed
+     * @param maxBytes     The most bytes that the files of each log may take up
+     * @param maxAgeMillis The longest that a message is kept for
+     * @throws IllegalArgumentException If any of the options are not positive
+     */
+    public HistoryOptions(int segmentSize, int syncEvery, long syncMillis, int hotSegments, long maxBytes,
+                          long maxAgeMillis) {
+        if (segmentSize <= 0) {throw new IllegalArgumentException("The segment size must be positive");}
+        if (syncEvery <= 0) {throw new IllegalArgumentException("The sync count must be positive");}
+        if (syncMillis <= 0) {throw new IllegalArgumentException("The sync interval must be positive");}
+        if (hotSegments <= 0) {throw new IllegalArgumentException("The number of hot segments must be positive");}
+        if (maxBytes <= 0) {throw new IllegalArgumentException("The size budget must be positive");}
+        if (maxAgeMillis <= 0) {throw new IllegalArgumentException("The age budget must be positive");}
+        
+        this.segmentSize = segmentSize;
+        this.syncEvery = syncEvery;
+        this.syncMillis = syncMillis;
+        this.hotSegments = hotSegments;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+}
@@ -0,0 +1,140 @@
+package LanChatHistory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A HistoryRecord is a single message of a conversation, as it is kept in the
+ * {@link ChatHistory}. Records are immutable
+ */
+public final class HistoryRecord {
+    
+    /**
+     * The first byte of an encoded tombstone, in place of a {@link Direction}
+     */
+    static final byte TOMBSTONE = -1;
+    
+    /**
+     * Whether a message was sent to or received from the other node
+     */
+    public enum Direction {SENT, RECEIVED}
+    
+    public final Direction direction;
+    
+    /**
+     * When the message was sent or received, in milliseconds since the epoch
+     */
+    public final long time;
+    
+    /**
+     * The username of the node that wrote the message, or {@code null} for a sent message
+     */
+    public final String username;
+    public final String content;
+    
+    /**
+     * Creates a record
+     *
+     * @param direction Whether the message was sent or received
+     * @param time      When it was sent or received, in milliseconds since the epoch
+     * @param username  The username of the node that wrote it, or {@code null} if it was sent
+     * @param content   The content of the message
+     */
+    public HistoryRecord(Direction direction, long time, String username, String content) {
+        this.direction = direction;
+        this.time = time;
+        this.username = username;
+        this.content = content;
+    }
+    
+    /**
+     * Creates a record of a message that has just been sent
+     *
+     * @param content The content of the message
+     * @return The record
+     */
+    public static HistoryRecord sent(String content) {
+        return new HistoryRecord(Direction.SENT, System.currentTimeMillis(), null, content);
+    }
+    
+    /**
+     * Creates a record of a message that has just been received
+     *
+     * @param username The username of the node that wrote it
+     * @param content  The content of the message
+     * @return The record
+     */
+    public static HistoryRecord received(String username, String content) {
+        return new HistoryRecord(Direction.RECEIVED, System.currentTimeMillis(), username, content);
+    }
+    
+    /**
+     * Encodes the record as the direction, the time, then the username and content
+     * as UTF-8, each after its length. A {@code null} username has a length of -1
+     *
+     * @return The encoded record
+     */
+    byte[] encode() {
+        byte[] user = username == null ? null : username.getBytes(StandardCharsets.UTF_8);
+        byte[] text = content.getBytes(StandardCharsets.UTF_8);
+        
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 4 + (user == null ? 0 : user.length) + 4 + text.length);
+        buffer.put((byte) direction.ordinal()).putLong(time);
+        
+        buffer.putInt(user == null ? -1 : user.length);
+        if (user != null) {buffer.put(user);}
+        buffer.putInt(text.length).put(text);
+        
+        return buffer.array();
+    }
+    
+    /**
+     * Encodes a tombstone, which is written to a log in place of a message to delete
+     * an earlier message. It is encoded as {@link #TOMBSTONE}, the time, then the
+     * index of the deleted message, so it starts like an encoded message
+     *
+     * @param deleted The index of the deleted message
+     * @return The encoded tombstone
+     */
+    static byte[] tombstone(long deleted) {
+        return ByteBuffer.allocate(1 + 8 + 8).put(TOMBSTONE).putLong(System.currentTimeMillis())
+                .putLong(deleted).array();
+    }
+    
+    /**
+     * Indicates if an encoded record is a {@link #tombstone(long) tombstone}
+     *
+     * @param encoded The encoded record
+     * @return True if it is a tombstone
+     */
+    static boolean isTombstone(byte[] encoded) {
+        return encoded[0] == TOMBSTONE;
+    }
+    
+    /**
+     * Decodes a record encoded by {@link #encode()}
+     *
+     * @param encoded The encoded record
+     * @return The record
+     */
+    static HistoryRecord decode(byte[] encoded) {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        
+        Direction direction = Direction.values()[buffer.get()];
+        long time = buffer.getLong();
+        String username = readString(buffer);
+        String content = readString(buffer);
+        
+        return new HistoryRecord(direction, time, username, content);
+    }
+    
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1) {return null;}
+        
+        String string = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        
+        return string;
+    }
+}
@@ -0,0 +1,306 @@
+package LanChatHistory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * A HotSegment is a {@link Segment} that records are written to, holding a record at
+ * every index from its {@link #base} onwards. Each record is written as a frame:
+ * <ol>
+ *     <li>The length of the encoded record, as an int</li>
+ *     <li>The CRC32C of the encoded record, as an int</li>
+ *     <li>The {@link HistoryRecord#encode() encoded} record</li>
+ * </ol>
+ * The file is created at its full size and memory mapped, so records are written and
+ * read by copying to and from memory. The space after the last frame is left as zeros. <br>
+ * The position of every frame is kept in memory and in a companion index file, so a
+ * record is found from its index without reading the frames before it. The index is
+ * only trusted as far as it points at whole frames, and the frames written after the
+ * last that it points at are found again when the segment is opened, so neither file
+ * needs to be forced to the disk before the other. <br>
+ * Records are only written by a single thread, but may be read by any
+ */
+final class HotSegment implements Segment {
+    
+    /**
+     * The size of the length and checksum before each record
+     */
+    static final int FRAME_HEADER = 8;
+    
+    /**
+     * The index of the first record in the segment
+     */
+    final long base;
+    
+    private final Path logPath;
+    private final Path indexPath;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer buffer;
+    
+    /**
+     * The position of each frame. Replaced with a larger array when full, before the
+     * {@link #count} that needs it is published
+     */
+    private volatile int[] positions;
+    
+    /**
+     * The number of records in the segment. Written last, so a reader that sees a
+     * record counted also sees the record
+     */
+    private volatile int count;
+    
+    /**
+     * The number of positions that have been written to the index file
+     */
+    private int indexed;
+    
+    /**
+     * The end of the last frame, where the next is written
+     */
+    private int size;
+    
+    private HotSegment(long base, Path logPath, Path indexPath, FileChannel channel, FileChannel indexChannel,
+                    MappedByteBuffer buffer) {
+        this.base = base;
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+        this.channel = channel;
+        this.indexChannel = indexChannel;
+        this.buffer = buffer;
+    }
+    
+    /**
+     * Opens the segment starting at the index, creating it if it does not exist
+     *
+     * @param directory The directory of the log
+     * @param base      The index of the first record in the segment
+     * @param capacity  The size of the file, which is grown to it if it is smaller
+     * @return The segment
+     * @throws IOException If the files could not be opened or read
+     */
+    static HotSegment open(Path directory, long base, int capacity) throws IOException {
+        String name = Segment.name(base);
+        Path logPath = directory.resolve(name + ".log");
+        Path indexPath = directory.resolve(name + ".idx");
+        
+        FileChannel channel = FileChannel.open(logPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel indexChannel = null;
+        try {
+            indexChannel = FileChannel.open(indexPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            
+            long length = Math.max(channel.size(), capacity);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            
+            HotSegment segment = new HotSegment(base, logPath, indexPath, channel, indexChannel, buffer);
+            segment.recover();
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (indexChannel != null) {indexChannel.close();}
+            throw e;
+        }
+    }
+    
+    /**
+     * Reads the index file, drops the positions that do not point at whole frames and
+     * adds the frames after the last position, then writes the index back if it changed
+     */
+    private void recover() throws IOException {
+        ByteBuffer index = ByteBuffer.allocate((int) (indexChannel.size() & ~3));
+        while (index.hasRemaining() && indexChannel.read(index, index.position()) >= 0) {}
+        index.flip();
+        
+        int[] read = new int[Math.max(64, index.remaining() / 4)];
+        int found = 0;
+        while (index.hasRemaining()) {
+            read[found++] = index.getInt();
+        }
+        
+        while (found > 0 && frameEnd(read[found - 1]) == -1) {found--;}
+        int trusted = found;
+        
+        int position = found == 0 ? 0 : frameEnd(read[found - 1]);
+        int end;
+        while ((end = frameEnd(position)) != -1) {
+            if (found == read.length) {read = Arrays.copyOf(read, found * 2);}
+            read[found++] = position;
+            position = end;
+        }
+        
+        positions = read;
+        size = position;
+        count = found;
+        
+        if (trusted != index.limit() / 4 || found != trusted) {
+            indexChannel.truncate((long) trusted * 4);
+            indexed = trusted;
+            flush(true);
+        } else {
+            indexed = found;
+        }
+    }
+    
+    /**
+     * Returns the end of the frame at the position
+     *
+     * @return The end, or -1 if there is no whole frame at the position
+     */
+    private int frameEnd(int position) {
+        if (position < 0 || position > buffer.capacity() - FRAME_HEADER) {return -1;}
+        
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.capacity() - position - FRAME_HEADER) {return -1;}
+        
+        byte[] encoded = new byte[length];
+        buffer.get(position + FRAME_HEADER, encoded);
+        
+        CRC32C crc = new CRC32C();
+        crc.update(encoded);
+        if ((int) crc.getValue() != buffer.getInt(position + 4)) {return -1;}
+        
+        return position + FRAME_HEADER + length;
+    }
+    
+    /**
+     * Writes a record to the end of the segment
+     *
+     * @param encoded The encoded record
+     * @return False if the segment does not have room for the record
+     */
+    boolean append(byte[] encoded) {
+        if (FRAME_HEADER + encoded.length > buffer.capacity() - size) {return false;}
+        
+        CRC32C crc = new CRC32C();
+        crc.update(encoded);
+        
+        buffer.put(size + FRAME_HEADER, encoded);
+        buffer.putInt(size + 4, (int) crc.getValue());
+        buffer.putInt(size, encoded.length);
+        
+        int[] positions = this.positions;
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, count * 2);
+            this.positions = positions;
+        }
+        positions[count] = size;
+        count++;
+        
+        size += FRAME_HEADER + encoded.length;
+        return true;
+    }
+    
+    /**
+     * Returns the number of records in the segment
+     *
+     * @return The number of records
+     */
+    int count() {
+        return count;
+    }
+    
+    @Override
+    public long base() {
+        return base;
+    }
+    
+    @Override
+    public long end() {
+        return base + count;
+    }
+    
+    @Override
+    public byte[] encoded(long index) {
+        if (index < base || index >= base + count) {return null;}
+        
+        int position = positions[(int) (index - base)];
+        byte[] encoded = new byte[buffer.getInt(position)];
+        buffer.get(position + FRAME_HEADER, encoded);
+        
+        return encoded;
+    }
+    
+    @Override
+    public long lastTime() {
+        int count = this.count;
+        return count == 0 ? 0 : buffer.getLong(positions[count - 1] + FRAME_HEADER + 1);
+    }
+    
+    @Override
+    public long bytes() {
+        return buffer.capacity() + (long) count * 4;
+    }
+    
+    /**
+     * Passes the index that every {@link HistoryRecord#tombstone(long) tombstone} in the
+     * segment deletes to the consumer, reading only the start of each frame
+     *
+     * @param consumer The consumer of the deleted indexes
+     */
+    void tombstones(LongConsumer consumer) {
+        int count = this.count;
+        int[] positions = this.positions;
+        
+        for (int i = 0; i < count; i++) {
+            int position = positions[i] + FRAME_HEADER;
+            if (buffer.get(position) == HistoryRecord.TOMBSTONE) {consumer.accept(buffer.getLong(position + 9));}
+        }
+    }
+    
+    /**
+     * Writes the positions of the new records to the index file
+     *
+     * @param sync Whether to force both files to the disk as well
+     * @throws IOException If the index could not be written or the files could not be forced
+     */
+    void flush(boolean sync) throws IOException {
+        int count = this.count;
+        if (indexed < count) {
+            ByteBuffer index = ByteBuffer.allocate((count - indexed) * 4);
+            for (int i = indexed; i < count; i++) {
+                index.putInt(positions[i]);
+            }
+            index.flip();
+            
+            long position = (long) indexed * 4;
+            while (index.hasRemaining()) {
+                position += indexChannel.write(index, position);
+            }
+            indexed = count;
+        }
+        
+        if (sync) {
+            buffer.force();
+            indexChannel.force(false);
+        }
+    }
+    
+    @Override
+    public List<Path> files() {
+        return List.of(logPath, indexPath);
+    }
+    
+    /**
+     * Closes the files. The mapped memory is released once it is no longer referenced
+     *
+     * @throws IOException If the files could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            indexChannel.close();
+        }
+    }
+}
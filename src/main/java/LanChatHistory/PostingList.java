@@ -0,0 +1,195 @@
+package LanChatHistory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A PostingList holds the indexes of the messages that contain a term, in increasing
+ * order. Each index is stored as its difference from the one before, as a varint of
+ * 7 bits a byte with the top bit set on every byte but the last, so the indexes of a
+ * common term take about a byte each. <br>
+ * A posting list is not thread safe
+ */
+final class PostingList {
+    
+    private byte[] bytes = new byte[8];
+    private int size = 0;
+    
+    /**
+     * The number of indexes in the list
+     */
+    private int count = 0;
+    
+    /**
+     * The last index added, which the next is stored relative to
+     */
+    private long last = -1;
+    
+    /**
+     * Adds an index to the end of the list, if it is not already the last
+     *
+     * @param index The index, which must not be below the last
+     */
+    void add(long index) {
+        if (index == last) {return;}
+        
+        long delta = last == -1 ? index : index - last;
+        if (size + 10 > bytes.length) {bytes = Arrays.copyOf(bytes, bytes.length * 2);}
+        
+        while (delta >= 0x80) {
+            bytes[size++] = (byte) (delta | 0x80);
+            delta >>>= 7;
+        }
+        bytes[size++] = (byte) delta;
+        
+        last = index;
+        count++;
+    }
+    
+    /**
+     * Returns the number of indexes in the list
+     *
+     * @return The number of indexes
+     */
+    int count() {
+        return count;
+    }
+    
+    /**
+     * Decodes the list
+     *
+     * @return The indexes, in increasing order
+     */
+    long[] toArray() {
+        long[] indexes = new long[count];
+        
+        long index = 0;
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            
+            index = i == 0 ? delta : index + delta;
+            indexes[i] = index;
+        }
+        
+        return indexes;
+    }
+    
+    /**
+     * Returns a cursor over the list, starting before its lowest index
+     *
+     * @return The cursor
+     */
+    Cursor cursor() {
+        return new Cursor();
+    }
+    
+    /**
+     * A Cursor reads the indexes of its list in increasing order, decoding each one
+     * only as it is passed, so lists can be walked alongside each other without being
+     * decoded whole. The list must not be added to while a cursor is in use
+     */
+    final class Cursor {
+        
+        /**
+         * The position of the next index to decode
+         */
+        private int position = 0;
+        
+        /**
+         * The number of indexes decoded
+         */
+        private int read = 0;
+        
+        /**
+         * The index that the cursor is at, or -1 before the first
+         */
+        private long index = -1;
+        
+        /**
+         * Moves the cursor forwards to the first index that is not below a target. The
+         * cursor does not move if it is already there
+         *
+         * @param target The lowest index to stop at, which must not be negative
+         * @return The index, or -1 if every index left is below the target
+         */
+        long seek(long target) {
+            while (index < target) {
+                if (read == count) {return -1;}
+                
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                
+                index = read++ == 0 ? delta : index + delta;
+            }
+            
+            return index;
+        }
+    }
+    
+    /**
+     * Returns a copy of the list without the indexes below a bound
+     *
+     * @param first The lowest index to keep
+     * @return The copy, or this list if it has no indexes below the bound
+     */
+    PostingList from(long first) {
+        long[] indexes = toArray();
+        if (count == 0 || indexes[0] >= first) {return this;}
+        
+        PostingList kept = new PostingList();
+        for (long index : indexes) {
+            if (index >= first) {kept.add(index);}
+        }
+        
+        return kept;
+    }
+    
+    /**
+     * Writes the list as the count, the last index, the size of the encoded indexes
+     * and the encoded indexes
+     *
+     * @param out The output to write to
+     * @throws IOException If the output could not be written
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(count);
+        out.writeLong(last);
+        out.writeInt(size);
+        out.write(bytes, 0, size);
+    }
+    
+    /**
+     * Reads a list written by {@link #write(DataOutput)}
+     *
+     * @param in The input to read from
+     * @return The list
+     * @throws IOException If the input could not be read
+     */
+    static PostingList read(DataInput in) throws IOException {
+        PostingList list = new PostingList();
+        
+        list.count = in.readInt();
+        list.last = in.readLong();
+        list.size = in.readInt();
+        list.bytes = new byte[Math.max(8, list.size)];
+        in.readFully(list.bytes, 0, list.size);
+        
+        return list;
+    }
+}
@@ -0,0 +1,229 @@
+package LanChatHistory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The SearchIndex of a {@link HistoryLog} maps every {@link SearchQuery#terms(String)
+ * term} of its messages, and the username of every received message, to the
+ * {@link PostingList} of the indexes of the messages that hold it, so a search only
+ * reads the messages that it finds. <br>
+ * Messages are added to the index as they are written to the log. The index is saved
+ * to {@link #FILE} in the directory of the log when the log is compacted or closed,
+ * along with the index of the next message to add, and when the log is opened the
+ * messages written after it was last saved are added again. The indexes of messages
+ * that have been compacted away are left out when the index is saved. <br>
+ * The index is guarded by its monitor, so it may be searched while it is added to
+ */
+final class SearchIndex {
+    
+    /**
+     * The name of the file that the index is saved to
+     */
+    static final String FILE = "search.idx";
+    
+    /**
+     * The first int of the file
+     */
+    private static final int MAGIC = 0x4C43_5349;
+    
+    /**
+     * The prefix of the terms that usernames are indexed under, which no word has
+     */
+    private static final char USERNAME = '\u0001';
+    
+    private final Path path;
+    private final Map<String, PostingList> terms;
+    
+    /**
+     * The index of the next message to add
+     */
+    private long next;
+    
+    private SearchIndex(Path path, Map<String, PostingList> terms, long next) {
+        this.path = path;
+        this.terms = terms;
+        this.next = next;
+    }
+    
+    /**
+     * Loads the index of a log, then adds the messages written since it was saved.
+     * The index is built again from the whole log if it was never saved or cannot be read
+     *
+     * @param directory The directory of the log
+     * @param log       The log
+     * @return The index
+     */
+    static SearchIndex open(Path directory, HistoryLog log) {
+        Path path = directory.resolve(FILE);
+        
+        SearchIndex index;
+        try {
+            index = load(path);
+        } catch (IOException | RuntimeException e) {
+            index = new SearchIndex(path, new HashMap<>(), 0);
+        }
+        if (index.next > log.count()) {
+            // Saved for a log that has since been removed
+            index = new SearchIndex(path, new HashMap<>(), 0);
+        }
+        
+        long count = log.count();
+        for (long i = Math.max(index.next, log.first()); i < count; i++) {
+            HistoryRecord record = log.read(i);
+            if (record != null) {index.add(i, record);}
+        }
+        index.next = count;
+        
+        return index;
+    }
+    
+    private static SearchIndex load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {throw new IOException("Not a search index: " + path);}
+            
+            long next = in.readLong();
+            int count = in.readInt();
+            
+            Map<String, PostingList> terms = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                terms.put(in.readUTF(), PostingList.read(in));
+            }
+            
+            return new SearchIndex(path, terms, next);
+        }
+    }
+    
+    /**
+     * Adds a message to the index
+     *
+     * @param index  The index of the message, which must be above those already added
+     * @param record The message
+     */
+    synchronized void add(long index, HistoryRecord record) {
+        for (String term : SearchQuery.terms(record.content)) {
+            terms.computeIfAbsent(term, t -> new PostingList()).add(index);
+        }
+        if (record.username != null) {
+            terms.computeIfAbsent(usernameTerm(record.username), t -> new PostingList()).add(index);
+        }
+        
+        next = index + 1;
+    }
+    
+    /**
+     * Returns the term that messages received from a username are indexed under
+     */
+    private static String usernameTerm(String username) {
+        String lower = username.toLowerCase(Locale.ROOT);
+        return USERNAME + lower.substring(0, Math.min(lower.length(), 64));
+    }
+    
+    /**
+     * Finds the indexes of the messages that may match a query, from the newest. Only
+     * the indexes that hold every term of the query are returned, so each must still
+     * be read to check that it has not been deleted and is in the time range
+     *
+     * @param query The query
+     * @param from  The lowest index to return
+     * @param to    The index to return indexes below
+     * @return The indexes, from the highest, or {@code null} if the query has no
+     * terms, so any index in the range may match
+     */
+    synchronized long[] candidates(SearchQuery query, long from, long to) {
+        Set<String> wanted = new HashSet<>(query.words);
+        if (query.username != null) {wanted.add(usernameTerm(query.username));}
+        if (wanted.isEmpty()) {return null;}
+        
+        List<PostingList> lists = new ArrayList<>();
+        for (String term : wanted) {
+            PostingList list = terms.get(term);
+            if (list == null) {return new long[0];}
+            
+            lists.add(list);
+        }
+        
+        // Walks the lists together from the rarest term, each cursor skipping ahead to
+        // the index that the others are at, so no list is decoded further than needed
+        lists.sort(Comparator.comparingInt(PostingList::count));
+        List<PostingList.Cursor> cursors = new ArrayList<>();
+        for (PostingList list : lists) {cursors.add(list.cursor());}
+        
+        long[] found = new long[lists.get(0).count()];
+        int count = 0;
+        long target = from;
+        walk:
+        while (true) {
+            long index = cursors.get(0).seek(target);
+            if (index == -1 || index >= to) {break;}
+            
+            target = index + 1;
+            for (int j = 1; j < cursors.size(); j++) {
+                long other = cursors.get(j).seek(index);
+                if (other == -1) {break walk;}
+                if (other != index) {
+                    target = other;
+                    continue walk;
+                }
+            }
+            
+            found[count++] = index;
+        }
+        
+        // Found from the lowest, and returned from the highest
+        for (int i = 0, j = count - 1; i < j; i++, j--) {
+            long swap = found[i];
+            found[i] = found[j];
+            found[j] = swap;
+        }
+        
+        return Arrays.copyOf(found, count);
+    }
+    
+    /**
+     * Saves the index, leaving out the indexes below the first index of the log. The
+     * file is written whole and then moved into place
+     *
+     * @param first The first index that the log may hold
+     * @throws IOException If the file could not be written
+     */
+    void save(long first) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        synchronized (this) {
+            terms.replaceAll((term, list) -> list.from(first));
+            terms.values().removeIf(list -> list.count() == 0);
+            
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeLong(next);
+            out.writeInt(terms.size());
+            for (Map.Entry<String, PostingList> entry : terms.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+        
+        Path temporary = path.resolveSibling(FILE + ".tmp");
+        try (BufferedOutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+            bytes.writeTo(out);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,122 @@
+package LanChatHistory;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A SearchQuery selects the messages of a {@link HistoryLog} that contain every one of
+ * its words, were written by its username and fall in its time range. Every part is
+ * optional, and a query with none selects every message. Queries are immutable
+ */
+public final class SearchQuery {
+    
+    /**
+     * The words that a message must contain, as {@link #terms(String) terms}
+     */
+    public final List<String> words;
+    
+    /**
+     * The username that a message must have been received from, or {@code null} to
+     * allow any. Sent messages have no username, so they never match one
+     */
+    public final String username;
+    
+    /**
+     * The earliest time a message may have been sent or received at, in milliseconds
+     * since the epoch
+     */
+    public final long from;
+    
+    /**
+     * The time that a message must have been sent or received before, in milliseconds
+     * since the epoch
+     */
+    public final long to;
+    
+    /**
+     * Creates a query
+     *
+     * @param words    The words that a message must contain. They are split into terms
+     * @param username The username that a message must have been received from, or
+     *                 {@code null} to allow any
+     * @param from     The earliest time a message may have been sent or received at
+     * @param to       The time a message must have been sent or received before
+     */
+    public SearchQuery(String words, String username, long from, long to) {
+        this.words = terms(words);
+        this.username = username;
+        this.from = from;
+        this.to = to;
+    }
+    
+    /**
+     * Parses a query typed into a search box. It is made of words separated by spaces,
+     * along with any of:
+     * <ul>
+     *     <li>{@code from:<username>} - Only messages received from the username</li>
+     *     <li>{@code after:<yyyy-mm-dd>} - Only messages from the start of the day on</li>
+     *     <li>{@code before:<yyyy-mm-dd>} - Only messages from before the start of the day</li>
+     * </ul>
+     *
+     * @param text The text of the query
+     * @return The query
+     * @throws IllegalArgumentException If a date is not valid
+     */
+    public static SearchQuery parse(String text) {
+        StringBuilder words = new StringBuilder();
+        String username = null;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        
+        for (String part : text.trim().split("\\s+")) {
+            if (part.startsWith("from:") && part.length() > 5) {
+                username = part.substring(5);
+            } else if (part.startsWith("after:")) {
+                from = startOfDay(part.substring(6));
+            } else if (part.startsWith("before:")) {
+                to = startOfDay(part.substring(7));
+            } else {
+                words.append(part).append(' ');
+            }
+        }
+        
+        return new SearchQuery(words.toString(), username, from, to);
+    }
+    
+    private static long startOfDay(String date) {
+        try {
+            return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("\"" + date + "\" is not a date in the form yyyy-mm-dd", e);
+        }
+    }
+    
+    /**
+     * Splits text into the terms that it is indexed and searched by, which are its runs
+     * of letters and digits in lower case. Terms longer than 64 characters are cut short
+     *
+     * @param text The text
+     * @return The terms, in the order they appear, which may repeat
+     */
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            
+            if (inWord && start == -1) {
+                start = i;
+            } else if (!inWord && start != -1) {
+                terms.add(text.substring(start, Math.min(i, start + 64)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        
+        return terms;
+    }
+}
@@ -0,0 +1,79 @@
+package LanChatHistory;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A Segment is one file of a {@link HistoryLog}, holding records with indexes from
+ * its {@link #base()} up to its {@link #end()}. Recent segments are {@link HotSegment
+ * HotSegments}, which hold a record at every index. Older segments are compacted into
+ * {@link ColdSegment ColdSegments}, which only hold the records that were kept. <br>
+ * Segments may be read by any thread
+ */
+interface Segment extends Closeable {
+    
+    /**
+     * Returns the name of the files of a segment, without their extension
+     *
+     * @param base The base index of the segment
+     * @return The name, which sorts in the order of the segments
+     */
+    static String name(long base) {
+        return String.format("%020d", base);
+    }
+    
+    /**
+     * Returns the index of the first record that the segment may hold
+     *
+     * @return The index
+     */
+    long base();
+    
+    /**
+     * Returns the index after the last record that the segment may hold
+     *
+     * @return The index
+     */
+    long end();
+    
+    /**
+     * Returns the encoded record at an index
+     *
+     * @param index The index of the record in the log
+     * @return The encoded record, or {@code null} if the segment does not hold it
+     */
+    byte[] encoded(long index);
+    
+    /**
+     * Reads the message at an index
+     *
+     * @param index The index of the message in the log
+     * @return The message, or {@code null} if the segment does not hold one at the index
+     */
+    default HistoryRecord read(long index) {
+        byte[] encoded = encoded(index);
+        return encoded == null || HistoryRecord.isTombstone(encoded) ? null : HistoryRecord.decode(encoded);
+    }
+    
+    /**
+     * Returns when the last record of the segment was written
+     *
+     * @return The time in milliseconds since the epoch, or 0 if the segment is empty
+     */
+    long lastTime();
+    
+    /**
+     * Returns the size of the segment's files
+     *
+     * @return The size in bytes
+     */
+    long bytes();
+    
+    /**
+     * Returns the files of the segment
+     *
+     * @return The files
+     */
+    List<Path> files();
+}
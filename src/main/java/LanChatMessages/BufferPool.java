@@ -0,0 +1,79 @@
+package LanChatMessages;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A BufferPool hands out {@link ByteBuffer ByteBuffers} of a fixed size and takes
+ * them back once they are no longer needed, so frames can be encoded into reused
+ * buffers instead of newly allocated ones. The pool may be used by many threads
+ */
+public final class BufferPool {
+    
+    /**
+     * The capacity of every buffer of the pool
+     */
+    public final int bufferSize;
+    
+    /**
+     * Whether the pool's buffers are {@link ByteBuffer#allocateDirect(int) direct}.
+     * Direct buffers can be written to a channel without being copied first
+     */
+    public final boolean direct;
+    
+    /**
+     * The most buffers that the pool will hold on to. Buffers released beyond this
+     * are left to the garbage collector
+     */
+    private final int maxPooled;
+    
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    
+    /**
+     * Creates an empty pool
+     *
+     * @param bufferSize The capacity of every buffer
+     * @param direct     Whether the buffers are direct
+     * @param maxPooled  The most buffers that the pool will hold on to
+     */
+    public BufferPool(int bufferSize, boolean direct, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxPooled = maxPooled;
+    }
+    
+    /**
+     * Takes a cleared buffer from the pool, or allocates one if the pool is empty
+     *
+     * @return The buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        
+        freeCount.decrementAndGet();
+        return buffer.clear();
+    }
+    
+    /**
+     * Returns a buffer to the pool. Buffers that were not {@link #acquire() acquired}
+     * from a pool like this one are ignored. The buffer must not be used afterwards
+     *
+     * @param buffer The buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {return;}
+        
+        if (freeCount.incrementAndGet() <= maxPooled) {
+            free.add(buffer);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+}
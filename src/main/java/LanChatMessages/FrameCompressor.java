@@ -0,0 +1,91 @@
+package LanChatMessages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * The FrameCompressor compresses the frames that a connection sends, once both
+ * nodes have agreed to compression in the handshake. <br>
+ * A single {@link Deflater} is kept for the whole connection, so every frame is
+ * compressed with what has been sent before it as context, and the deflater is
+ * seeded with the {@link #DICTIONARY} so even the first frames are small. The
+ * output is sync-flushed after every batch, so the other node can read each
+ * batch as soon as it arrives. <br>
+ * The compressed bytes are sent in compressed frames: a length prefix, a single
+ * {@code 0} byte and at most {@link #MAX_CHUNK} bytes of the deflate stream. No
+ * {@link WireFormat} starts a frame with {@code 0}, so the {@link FrameDecoder} tells
+ * them apart, and a batch may be split over several compressed frames. <br>
+ * A compressor belongs to one connection and must only be used by one thread at a time.
+ * The deflater's native memory is released once the compressor is garbage collected
+ */
+public final class FrameCompressor {
+    
+    /**
+     * The first byte of every compressed frame
+     */
+    static final byte COMPRESSED = 0;
+    
+    /**
+     * The most deflate stream bytes held by a single compressed frame
+     */
+    public static final int MAX_CHUNK = 64 * 1024;
+    
+    /**
+     * The preset dictionary that both ends of a compressed connection start with.
+     * It holds the text that almost every frame repeats, with the most common last,
+     * where deflate reaches it most cheaply
+     */
+    static final byte[] DICTIONARY = ("\"Compression\":\"DEFLATE\",\"Formats\":\"BINARY\",\"Format\":\"BINARY\"," +
+            "\"Room\":\"\",\"Message\":\"\",\"MsgType\":\"NEW_CONNECTION\",\"Username\":\"\"," +
+            "{\"MsgType\":\"ACCEPT_CONNECTION\",\"Username\":\"\"}" +
+            "{\"MsgType\":\"END_CONNECTION\"}{\"MsgType\":\"WATCHDOG_BARK\"}{\"MsgType\":\"WATCHDOG_KICK\"}" +
+            "{\"MsgType\":\"MSG\",\"Content\":\"").getBytes(StandardCharsets.UTF_8);
+    
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    
+    /**
+     * Receives the compressed frames. It grows to fit the largest batch
+     */
+    private ByteBuffer compressed = ByteBuffer.allocate(8192);
+    
+    public FrameCompressor() {
+        deflater.setDictionary(DICTIONARY);
+    }
+    
+    /**
+     * Compresses encoded frames into compressed frames. The returned buffer is reused
+     * by the next call, so it must be fully written before the compressor is used again
+     *
+     * @param frames The encoded frames, ready to be read. They are all read
+     * @return The compressed frames, ready to be read
+     */
+    public ByteBuffer compress(ByteBuffer frames) {
+        compressed.clear();
+        deflater.setInput(frames);
+        
+        int written;
+        do {
+            if (compressed.remaining() < MAX_CHUNK + 5) {
+                ByteBuffer larger = ByteBuffer.allocate(compressed.capacity() + MAX_CHUNK + 5);
+                compressed = larger.put(compressed.flip());
+            }
+            
+            int header = compressed.position();
+            compressed.position(header + 5);
+            
+            int limit = compressed.limit();
+            compressed.limit(header + 5 + MAX_CHUNK);
+            written = deflater.deflate(compressed, Deflater.SYNC_FLUSH);
+            compressed.limit(limit);
+            
+            if (written == 0) {
+                compressed.position(header);
+            } else {
+                compressed.putInt(header, written + 1).put(header + 4, COMPRESSED);
+            }
+        } while (written == MAX_CHUNK); // The chunk was filled, so there may be more
+        
+        return compressed.flip();
+    }
+}
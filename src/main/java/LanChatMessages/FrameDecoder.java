@@ -0,0 +1,342 @@
+package LanChatMessages;
+
+import LanChatMetrics.ParseEvent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The FrameDecoder takes received bytes, in whatever pieces they arrive in, and
+ * splits them into the frames written by the {@link FrameEncoder}, decoding the
+ * {@link Message} of each. <br>
+ * Bytes are held in a single buffer that is reused for every frame and only grows
+ * for frames that do not fit, up to the {@link #maxFrameSize}. The payload of a
+ * frame is only decoded once all of its bytes have arrived. <br>
+ * A decoder belongs to one connection and must only be used by one thread at a time.
+ * The native memory of its inflater is released once it is garbage collected
+ */
+public final class FrameDecoder {
+    
+    /**
+     * The largest frame payload accepted unless another is given, in bytes
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    
+    /**
+     * The capacity that the buffers start at, and are shrunk back to once a
+     * frame larger than {@link #SHRINK_THRESHOLD} has been decoded
+     */
+    private static final int INITIAL_CAPACITY = 8192;
+    
+    /**
+     * Buffers larger than this are let go of once they are empty, so one large
+     * frame does not hold on to its memory for the rest of the connection
+     */
+    private static final int SHRINK_THRESHOLD = 1024 * 1024;
+    
+    /**
+     * The largest frame payload that will be accepted, in bytes. A length prefix
+     * above this is treated as a broken stream rather than allocated for
+     */
+    public final int maxFrameSize;
+    
+    /**
+     * Holds the received bytes, which are between {@link #start} and the buffer's
+     * position. The buffer is always left ready to be written to
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    
+    /**
+     * The index of the first received byte that has not been decoded
+     */
+    private int start = 0;
+    
+    /**
+     * Receives the characters of a frame's payload
+     */
+    private CharBuffer chars = CharBuffer.allocate(INITIAL_CAPACITY);
+    
+    /**
+     * Decodes the payloads. Malformed bytes become replacement characters rather
+     * than failing the connection
+     */
+    private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    
+    /**
+     * Inflates the deflate stream of the compressed frames. {@code null} until the
+     * first compressed frame arrives
+     *
+     * @see FrameCompressor
+     */
+    private Inflater inflater;
+    
+    /**
+     * Splits the inflated bytes into frames. {@code null} until the first compressed
+     * frame arrives
+     */
+    private FrameDecoder inflated;
+    
+    /**
+     * Indicates if this decoder reads the frames {@link #inflated} by another decoder,
+     * which can not themselves be compressed
+     */
+    private final boolean nested;
+    
+    /**
+     * Creates a decoder that accepts frames up to the {@link #DEFAULT_MAX_FRAME_SIZE}
+     */
+    public FrameDecoder() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+    
+    /**
+     * Creates a decoder
+     *
+     * @param maxFrameSize The largest frame payload that will be accepted, in bytes
+     */
+    public FrameDecoder(int maxFrameSize) {
+        this(maxFrameSize, false);
+    }
+    
+    private FrameDecoder(int maxFrameSize, boolean nested) {
+        if (maxFrameSize <= 0) {throw new IllegalArgumentException("The max frame size must be positive");}
+        this.maxFrameSize = maxFrameSize;
+        this.nested = nested;
+    }
+    
+    /**
+     * Reads what the stream has available, blocking until at least one byte arrives
+     *
+     * @param stream The stream to read from
+     * @return The number of bytes read, or -1 if the stream has ended
+     * @throws IOException If an IOException occurs while reading
+     */
+    public int readFrom(InputStream stream) throws IOException {
+        ensureWritable();
+        
+        int read = stream.read(buffer.array(),
+                buffer.arrayOffset() + buffer.position(),
+                buffer.remaining());
+        if (read > 0) {buffer.position(buffer.position() + read);}
+        
+        return read;
+    }
+    
+    /**
+     * Reads what the channel has available
+     *
+     * @param channel The channel to read from
+     * @return The number of bytes read, or -1 if the channel has ended
+     * @throws IOException If an IOException occurs while reading
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        ensureWritable();
+        return channel.read(buffer);
+    }
+    
+    /**
+     * Decodes the next whole frame of the received bytes. This should be called
+     * until it returns {@code null} before more bytes are read. Frames of either
+     * {@link WireFormat} are read, as are the frames of {@link FrameCompressor compressed}
+     * frames, told apart by their first byte
+     *
+     * @param currentStage The current connection stage of the manager
+     * @return The message of the frame or {@code null} if the frame has not fully arrived
+     * @throws IOException If the frame's length prefix is negative or above the
+     * {@link #maxFrameSize}, or a compressed frame is invalid. The stream can not be
+     * recovered from this
+     * @throws InvalidMessageException If the frame does not hold a valid message. The
+     * frame is skipped, so the next call carries on with the following frame
+     */
+    public Message next(int currentStage) throws IOException, InvalidMessageException {
+        while (true) {
+            if (inflated != null) {
+                Message message = inflated.next(currentStage);
+                if (message != null) {return message;}
+                
+                if (inflated.inflateFrom(inflater) > 0) {continue;}
+            }
+            
+            int available = buffer.position() - start;
+            if (available < 4) {
+                makeRoom(4);
+                return null;
+            }
+            
+            int length = buffer.getInt(start);
+            if (length < 0 || length > maxFrameSize) {
+                throw new IOException("Invalid message length: " + length);
+            }
+            
+            if (available < length + 4) {
+                makeRoom(length + 4);
+                return null;
+            }
+            
+            int offset = start + 4;
+            start += length + 4;
+            
+            try {
+                if (length == 0 || buffer.get(offset) != FrameCompressor.COMPRESSED) {
+                    return parse(offset, length, currentStage);
+                }
+                
+                startInflating(offset + 1, length - 1);
+            } finally {
+                if (start == buffer.position()) {
+                    start = 0;
+                    buffer.clear();
+                    
+                    if (buffer.capacity() > SHRINK_THRESHOLD) {buffer = ByteBuffer.allocate(INITIAL_CAPACITY);}
+                }
+            }
+        }
+    }
+    
+    /**
+     * Decodes and validates the message of a frame, recording a {@link ParseEvent}
+     *
+     * @param offset       The index of the frame's payload
+     * @param length       The length of the frame's payload
+     * @param currentStage The current connection stage of the manager
+     * @return The message
+     * @throws InvalidMessageException If the frame does not hold a valid message
+     */
+    private Message parse(int offset, int length, int currentStage) throws InvalidMessageException {
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        
+        boolean json = length == 0 || buffer.get(offset) == '{';
+        try {
+            Message message = json ?
+                    new Message(decode(offset, length), currentStage) :
+                    new Message(MessageCodec.decodeBinary(buffer, offset, length), currentStage);
+            
+            event.messageType = message.type.name();
+            event.valid = true;
+            return message;
+        } finally {
+            if (event.shouldCommit()) {
+                event.format = json ? WireFormat.JSON.name() : WireFormat.BINARY.name();
+                event.size = length;
+                event.commit();
+            }
+        }
+    }
+    
+    /**
+     * Hands the deflate stream bytes of a compressed frame to the {@link #inflater}.
+     * The inflater reads them through a view of the buffer, which is not written to
+     * again until the inflater has taken them all
+     *
+     * @param offset The index of the first deflate stream byte
+     * @param length The number of deflate stream bytes
+     * @throws IOException If this decoder is itself reading inflated frames
+     */
+    private void startInflating(int offset, int length) throws IOException {
+        if (nested) {throw new IOException("Compressed frame inside a compressed frame");}
+        
+        if (inflater == null) {
+            inflater = new Inflater();
+            inflated = new FrameDecoder(maxFrameSize, true);
+        }
+        
+        inflater.setInput(buffer.slice(offset, length));
+    }
+    
+    /**
+     * Inflates as much of the inflater's input as fits in the buffer
+     *
+     * @param inflater The inflater of the compressed frames
+     * @return The number of bytes inflated, which is 0 once the inflater needs more input
+     * @throws IOException If the compressed bytes are invalid
+     */
+    private int inflateFrom(Inflater inflater) throws IOException {
+        ensureWritable();
+        
+        try {
+            int inflatedBytes = inflater.inflate(buffer);
+            
+            if (inflatedBytes == 0 && inflater.needsDictionary()) {
+                inflater.setDictionary(FrameCompressor.DICTIONARY);
+                inflatedBytes = inflater.inflate(buffer);
+            }
+            
+            return inflatedBytes;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed frame", e);
+        }
+    }
+    
+    /**
+     * Decodes UTF-8 bytes of the buffer
+     *
+     * @param offset The index of the first byte
+     * @param length The number of bytes
+     * @return The decoded characters
+     */
+    private String decode(int offset, int length) {
+        // UTF-8 never takes fewer bytes than UTF-16 takes chars
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        }
+        
+        int written = buffer.position();
+        buffer.limit(offset + length).position(offset);
+        
+        utf8.reset();
+        utf8.decode(buffer, chars, true);
+        utf8.flush(chars);
+        
+        buffer.limit(buffer.capacity()).position(written);
+        
+        String decoded = chars.flip().toString();
+        chars.clear();
+        
+        if (chars.capacity() > SHRINK_THRESHOLD) {chars = CharBuffer.allocate(INITIAL_CAPACITY);}
+        
+        return decoded;
+    }
+    
+    /**
+     * Makes sure the undecoded bytes and the rest of a frame of the given size fit
+     * in the buffer, moving them to its start or growing it as needed
+     *
+     * @param needed The number of bytes, from the {@link #start}, that must fit
+     */
+    private void makeRoom(int needed) {
+        if (start + needed <= buffer.capacity()) {return;}
+        
+        ByteBuffer target = buffer;
+        if (needed > buffer.capacity()) {
+            long grown = Math.min((long) buffer.capacity() * 2, (long) maxFrameSize + 4);
+            target = ByteBuffer.allocate((int) Math.max(grown, needed));
+        }
+        
+        buffer.limit(buffer.position()).position(start);
+        if (target == buffer) {
+            buffer.compact();
+        } else {
+            target.put(buffer);
+            buffer = target;
+        }
+        start = 0;
+    }
+    
+    /**
+     * Makes sure there is room to read into
+     */
+    private void ensureWritable() {
+        if (!buffer.hasRemaining()) {makeRoom(buffer.position() - start + 1);}
+    }
+}
@@ -0,0 +1,137 @@
+package LanChatMessages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The FrameEncoder writes {@link Message Messages} as frames, which are the message
+ * in one of the {@link WireFormat WireFormats} headed with its length in bytes (the
+ * form of {@link Message#toSendableBytes(WireFormat)}). <br>
+ * The frame is written straight into the caller's buffer, so a sender can encode
+ * many messages into one reused (and possibly direct) buffer without allocating
+ * anything per message
+ */
+public final class FrameEncoder {
+    
+    private FrameEncoder() {}
+    
+    /**
+     * Writes the {@link WireFormat#JSON JSON} frame of the message into the buffer,
+     * starting at its position
+     *
+     * @param message The message to encode
+     * @param buffer  The buffer to write into
+     * @return True if the frame was written, false if the buffer did not have room
+     * for it, in which case the buffer is unchanged
+     * @see #encode(Message, WireFormat, ByteBuffer)
+     */
+    public static boolean encode(Message message, ByteBuffer buffer) {
+        return encode(message, WireFormat.JSON, buffer);
+    }
+    
+    /**
+     * Writes the frame of the message into the buffer, starting at its position.
+     * If the message has already been encoded in the format by
+     * {@link Message#toSendableBytes(WireFormat)}, those bytes are copied rather
+     * than being encoded again
+     *
+     * @param message The message to encode
+     * @param format  The wire format to write the message in
+     * @param buffer  The buffer to write into
+     * @return True if the frame was written, false if the buffer did not have room
+     * for it, in which case the buffer is unchanged
+     */
+    public static boolean encode(Message message, WireFormat format, ByteBuffer buffer) {
+        byte[] encoded = message.encoded(format);
+        if (encoded != null) {
+            if (buffer.remaining() < encoded.length) {return false;}
+            
+            buffer.put(encoded);
+            return true;
+        }
+        
+        if (format == WireFormat.BINARY) {
+            int length = MessageCodec.binaryLength(message.fields());
+            if (buffer.remaining() < length + 4) {return false;}
+            
+            buffer.putInt(length);
+            MessageCodec.putBinary(message.fields(), buffer);
+            
+            return true;
+        }
+        
+        String json = message.toJson();
+        int length = utf8Length(json);
+        if (buffer.remaining() < length + 4) {return false;}
+        
+        buffer.putInt(length);
+        putUtf8(json, buffer);
+        
+        return true;
+    }
+    
+    /**
+     * Returns the number of bytes the characters take in UTF-8. Unpaired surrogates
+     * are counted as the single byte {@code '?'} that {@link #putUtf8} replaces them with
+     *
+     * @param chars The characters
+     * @return The UTF-8 length
+     */
+    public static int utf8Length(CharSequence chars) {
+        int length = chars.length();
+        int bytes = length;
+        
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                bytes += 2; // 4 bytes for the 2 chars
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        
+        return bytes;
+    }
+    
+    /**
+     * Writes the characters into the buffer as UTF-8. The buffer must have
+     * {@link #utf8Length} bytes remaining
+     *
+     * @param chars  The characters
+     * @param buffer The buffer to write into
+     */
+    public static void putUtf8(CharSequence chars, ByteBuffer buffer) {
+        int length = chars.length();
+        
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+}
@@ -1,18 +1,17 @@
 package LanChatMessages;
 
-import com.github.cliftonlabs.json_simple.JsonException;
 import com.github.cliftonlabs.json_simple.JsonObject;
-import com.github.cliftonlabs.json_simple.Jsoner;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
 /**
  * The message class is used to carry json messages
  * that are received or are to be sent through LanChat.
  * <br>
- * This class stores the and parses the data using a private instance
- * of the {@link com.github.cliftonlabs.json_simple} library
+ * This class stores the fields declared by the message's {@link MessageTypes}
+ * constant directly, reading and writing the json with the {@link MessageCodec}.
+ * Any other field is kept as raw json and is only parsed, by the
+ * {@link com.github.cliftonlabs.json_simple} library, if it is asked for
  * <br>
  * Should be fully
  * compliant with the enum constant requirements of the {@link MessageTypes}
@@ -21,7 +20,7 @@ import java.nio.charset.StandardCharsets;
  * in the {@link MessageTypes} class
  */
 public final class Message {
-
+    
     /**
      * Creates a message object using a json object
      *
@@ -30,12 +29,7 @@ public final class Message {
      * @throws InvalidMessageException if the message was invalid
      */
     public Message(JsonObject message, int currentStage) throws InvalidMessageException {
-        if(!isValidMessage(message, currentStage)) {
-            throw new InvalidMessageException("Message contained invalid contents");
-        }
-        
-        this.message = message;
-        this.type = MessageTypes.valueOf(get("MsgType"));
+        this(MessageCodec.fromJsonObject(message), null, currentStage);
     }
     
     /**
@@ -47,18 +41,29 @@ public final class Message {
      */
     
     public Message(String message, int currentStage) throws InvalidMessageException {
-        
-        try {
-            this.message = (JsonObject) Jsoner.deserialize(message);
-        } catch (JsonException e) {
-            throw new InvalidMessageException(e.getMessage());
-        }
-        
-        if(!isValidMessage(this.message, currentStage)) {
+        this(MessageCodec.decode(message), message, currentStage);
+    }
+    
+    /**
+     * Creates a message object from decoded fields, such as those of a
+     * {@link WireFormat#BINARY BINARY} frame
+     *
+     * @param fields the decoded fields
+     * @param currentStage the current connection stage of the manager
+     * @throws InvalidMessageException if the message was invalid
+     */
+    Message(MessageCodec.Fields fields, int currentStage) throws InvalidMessageException {
+        this(fields, null, currentStage);
+    }
+    
+    private Message(MessageCodec.Fields fields, String json, int currentStage) throws InvalidMessageException {
+        if(!isValidMessage(fields, currentStage)) {
             throw new InvalidMessageException("Message contained invalid contents");
         }
-        this.type = MessageTypes.valueOf(get("MsgType"));
         
+        this.fields = fields;
+        this.type = fields.type;
+        this.json = json;
     }
     
     /**
@@ -72,7 +77,7 @@ public final class Message {
      * than a string
      */
     public String get(String key) {
-        Object value = message.get(key);
+        Object value = find(key);
         
         if (value == null) {throw new NullPointerException("There was no" +
                 " field of that name");}
@@ -85,9 +90,67 @@ public final class Message {
     }
     
     /**
-     * Contains the {@code final} message that the {@link Message} will carry
+     * Gets the string base on the assigned key, or the default if there is no such
+     * field. Used for the optional fields of a {@link MessageTypes} constant
+     *
+     * @param key The name of the json field
+     * @param defaultValue The value to return if there is no such field
+     * @return The value of the field or the default
+     *
+     * @throws InvalidMessageException If the field is something other than a string
+     */
+    public String getOrDefault(String key, String defaultValue) {
+        if (find(key) == null) {return defaultValue;}
+        
+        return get(key);
+    }
+    
+    /**
+     * Looks a field up, first in the declared fields and then in the
+     * {@link #unknown unknown} ones
+     *
+     * @param key The name of the json field
+     * @return The value of the field or {@code null} if there is no such field
+     */
+    private Object find(String key) {
+        int index = type.indexOf(key);
+        if (index >= 0 && fields.values[index] != null) {return fields.values[index];}
+        
+        if (fields.unknown == null) {return null;}
+        if (unknown == null) {unknown = MessageCodec.parseUnknown(fields.unknown);}
+        
+        return unknown.get(key);
+    }
+    
+    /**
+     * Contains the {@code final} fields that the {@link Message} will carry
+     */
+    private final MessageCodec.Fields fields;
+    
+    /**
+     * The fields that the {@link #type} does not declare, parsed the first time
+     * one of them is asked for
+     */
+    private volatile JsonObject unknown;
+    
+    /**
+     * The serialized {@link #fields}, kept after the first {@link #toJson()} so a
+     * message that is sent to many nodes is only serialized once. A received
+     * message keeps the json it was received as
+     */
+    private volatile String json;
+    
+    /**
+     * The bytes returned by {@link #toSendableBytes()}, kept after the first call so
+     * a message that is sent to many nodes is only encoded once
      */
-    private final JsonObject message;
+    private volatile byte[] sendableBytes;
+    
+    /**
+     * The bytes returned by {@link #toSendableBytes(WireFormat) toSendableBytes(BINARY)},
+     * kept in the same way as the {@link #sendableBytes}
+     */
+    private volatile byte[] binaryBytes;
     
     /**
      * The type of the message
@@ -96,56 +159,98 @@ public final class Message {
     
     
     /**
-     * Checks if the given {@code JsonObject} contains all the
-     * required fields and is a message of the correct connection
+     * Checks if the given fields contain all the
+     * required fields and are a message of the correct connection
      * stage.
      * <br>
      * The Json message is final so this is only necessary
      * at initialisation
      *
-     * @param test the JSON message to be tested
+     * @param test the fields to be tested
      * @param currentStage the connection stage
      * @return a boolean indicating whether the message is valid
      */
-    static private boolean isValidMessage(JsonObject test, int currentStage) {
-        MessageTypes type;
-        try {
-            type = MessageTypes.valueOf((String) test.get("MsgType"));
-            
-            
-            for (String argument : type.arguments) {
-                if(test.get(argument) == null) {return false;}
-            }
-            
-            if (type.stage == Integer.MAX_VALUE) {return true;}
-            if (type.stage != currentStage) {return false;}
-            
-        } catch (ClassCastException e) {
-            return false; //Should not be possible
-        } catch (IllegalArgumentException e) {
-            return false; //Unknown message type or missing "MsgType"
+    static private boolean isValidMessage(MessageCodec.Fields test, int currentStage) {
+        for (int i = 0; i < test.type.arguments.length; i++) {
+            if (test.values[i] == null) {return false;}
         }
         
-        return true;
+        if (test.type.stage == Integer.MAX_VALUE) {return true;}
+        return test.type.stage == currentStage;
     }
     
     public String toJson() {
-        return message.toJson();
+        if (json == null) {json = MessageCodec.encode(fields);}
+        
+        return json;
     }
     
+    /**
+     * Returns the message as bytes headed with their length, ready to be written
+     * to a socket. The same array is returned by every call, so it must not be
+     * modified
+     *
+     * @return The sendable bytes
+     */
     public byte[] toSendableBytes() {
-        byte[] json = toJson().getBytes(StandardCharsets.UTF_8);
-        byte[] send;
+        return toSendableBytes(WireFormat.JSON);
+    }
+    
+    /**
+     * Returns the message, written in the format, as bytes headed with their length,
+     * ready to be written to a socket. The same array is returned by every call for
+     * the format, so it must not be modified
+     *
+     * @param format The wire format to write the message in
+     * @return The sendable bytes
+     */
+    public byte[] toSendableBytes(WireFormat format) {
+        byte[] send = encoded(format);
+        if (send != null) {return send;}
         
-        send = ByteBuffer.allocate(json.length+4).putInt(json.length).array();
-        System.arraycopy(json, 0, send, 4, json.length);
+        if (format == WireFormat.BINARY) {
+            send = new byte[MessageCodec.binaryLength(fields) + 4];
+            
+            ByteBuffer buffer = ByteBuffer.wrap(send).putInt(send.length - 4);
+            MessageCodec.putBinary(fields, buffer);
+            
+            binaryBytes = send;
+        } else {
+            String json = toJson();
+            send = new byte[FrameEncoder.utf8Length(json) + 4];
+            
+            ByteBuffer buffer = ByteBuffer.wrap(send).putInt(send.length - 4);
+            FrameEncoder.putUtf8(json, buffer);
+            
+            sendableBytes = send;
+        }
         
         return send;
     }
     
+    /**
+     * Returns the bytes of {@link #toSendableBytes(WireFormat)} if they have already
+     * been encoded
+     *
+     * @param format The wire format
+     * @return The sendable bytes or {@code null} if they have not been encoded
+     */
+    byte[] encoded(WireFormat format) {
+        return format == WireFormat.BINARY ? binaryBytes : sendableBytes;
+    }
+    
+    /**
+     * Returns the fields of the message, for the encoders of the package
+     *
+     * @return The fields
+     */
+    MessageCodec.Fields fields() {
+        return fields;
+    }
+    
     @Override
     public String toString() {
-        return message.toJson();
+        return toJson();
     }
     
 }
@@ -0,0 +1,602 @@
+package LanChatMessages;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The MessageCodec reads and writes the JSON of {@link Message Messages} without
+ * building a generic JSON tree. <br>
+ * Only the fields that the message's {@link MessageTypes} declares are decoded,
+ * straight into an array in the order of {@link MessageTypes#fields}. Any other
+ * member is skipped and kept as raw JSON, which is only parsed if one of its
+ * fields is asked for. <br>
+ * {@code MsgType} is always written first, so a receiver knows the message's
+ * shape before reading the rest. JSON with {@code MsgType} elsewhere, such as
+ * that written by json-simple, is still read
+ */
+final class MessageCodec {
+    
+    /**
+     * Every field name declared by any {@link MessageTypes}, {@code MsgType} first.
+     * Before {@code MsgType} has been read, members of these names are decoded in
+     * case they are declared
+     */
+    private static final String[] KNOWN_FIELDS = Arrays.stream(MessageTypes.values())
+            .flatMap(type -> Arrays.stream(type.fields))
+            .distinct()
+            .toArray(String[]::new);
+    
+    /**
+     * The message types, by their {@link WireFormat#BINARY BINARY} type tag minus one
+     */
+    private static final MessageTypes[] TYPES = MessageTypes.values();
+    
+    private MessageCodec() {}
+    
+    /**
+     * The decoded fields of a message
+     */
+    static final class Fields {
+        
+        /**
+         * The type of the message
+         */
+        final MessageTypes type;
+        
+        /**
+         * The values of the {@link MessageTypes#fields} of the type, with {@code null}
+         * for those that are missing or are not strings
+         */
+        final String[] values;
+        
+        /**
+         * The members that the type does not declare, as comma separated raw JSON,
+         * or {@code null} if there were none
+         */
+        final String unknown;
+        
+        Fields(MessageTypes type, String[] values, String unknown) {
+            this.type = type;
+            this.values = values;
+            this.unknown = unknown;
+        }
+    }
+    
+    /**
+     * Decodes the JSON of a message
+     *
+     * @param json The JSON
+     * @return The decoded fields
+     * @throws InvalidMessageException If the JSON is malformed, is not an object, or
+     * does not have a known {@code MsgType}
+     */
+    static Fields decode(String json) {
+        return new Reader(json).readMessage();
+    }
+    
+    /**
+     * Takes the fields of a message from a {@link JsonObject}
+     *
+     * @param object The object
+     * @return The fields
+     * @throws InvalidMessageException If the object does not have a known {@code MsgType}
+     */
+    static Fields fromJsonObject(JsonObject object) {
+        if (!(object.get("MsgType") instanceof String msgType)) {
+            throw new InvalidMessageException("Missing MsgType");
+        }
+        
+        MessageTypes type = typeOf(msgType);
+        String[] values = new String[type.fields.length];
+        StringBuilder unknown = null;
+        
+        for (Map.Entry<String, Object> member : object.entrySet()) {
+            int index = type.indexOf(member.getKey());
+            
+            if (index >= 0 && member.getValue() instanceof String value) {
+                values[index] = value;
+            } else {
+                unknown = unknown == null ? new StringBuilder() : unknown.append(',');
+                unknown.append(Jsoner.serialize(member.getKey()))
+                        .append(':')
+                        .append(Jsoner.serialize(member.getValue()));
+            }
+        }
+        
+        return new Fields(type, values, unknown == null ? null : unknown.toString());
+    }
+    
+    /**
+     * Writes the JSON of a message, {@code MsgType} first
+     *
+     * @param fields The fields of the message
+     * @return The JSON
+     */
+    static String encode(Fields fields) {
+        StringBuilder json = new StringBuilder(64);
+        json.append('{');
+        
+        String[] names = fields.type.fields;
+        for (int i = 0; i < names.length; i++) {
+            if (fields.values[i] == null) {continue;}
+            
+            if (json.length() > 1) {json.append(',');}
+            quote(names[i], json);
+            json.append(':');
+            quote(fields.values[i], json);
+        }
+        
+        if (fields.unknown != null) {json.append(',').append(fields.unknown);}
+        
+        return json.append('}').toString();
+    }
+    
+    /**
+     * Returns the number of bytes that the {@link WireFormat#BINARY BINARY} form of a
+     * message takes, without the length prefix
+     *
+     * @param fields The fields of the message
+     * @return The length in bytes
+     */
+    static int binaryLength(Fields fields) {
+        int length = 1;
+        
+        int last = lastPresent(fields);
+        for (int i = 1; i <= last; i++) {
+            length += binaryParamLength(fields.values[i]);
+        }
+        if (fields.unknown != null) {length += binaryParamLength(fields.unknown);}
+        
+        return length;
+    }
+    
+    /**
+     * Writes the {@link WireFormat#BINARY BINARY} form of a message, without the length
+     * prefix. The buffer must have {@link #binaryLength} bytes remaining
+     *
+     * @param fields The fields of the message
+     * @param buffer The buffer to write into
+     */
+    static void putBinary(Fields fields, ByteBuffer buffer) {
+        buffer.put((byte) (fields.type.ordinal() + 1));
+        
+        int last = lastPresent(fields);
+        for (int i = 1; i <= last; i++) {
+            putBinaryParam(fields.values[i], buffer);
+        }
+        if (fields.unknown != null) {putBinaryParam(fields.unknown, buffer);}
+    }
+    
+    /**
+     * Reads the {@link WireFormat#BINARY BINARY} form of a message
+     *
+     * @param buffer The buffer holding the message
+     * @param offset The index of the type tag
+     * @param length The number of bytes of the message
+     * @return The decoded fields
+     * @throws InvalidMessageException If the message is malformed or has an unknown type tag
+     */
+    static Fields decodeBinary(ByteBuffer buffer, int offset, int length) {
+        int end = offset + length;
+        int tag = buffer.get(offset) & 0xFF;
+        if (tag < 1 || tag > TYPES.length) {throw new InvalidMessageException("Unknown type tag: " + tag);}
+        
+        MessageTypes type = TYPES[tag - 1];
+        String[] values = new String[type.fields.length];
+        values[0] = type.name();
+        String unknown = null;
+        
+        int[] position = {offset + 1};
+        for (int i = 1; i < values.length && position[0] < end; i++) {
+            values[i] = readBinaryParam(buffer, position, end);
+        }
+        if (position[0] < end) {
+            unknown = readBinaryParam(buffer, position, end);
+            if (unknown == null || position[0] != end) {throw new InvalidMessageException("Malformed binary message");}
+        }
+        
+        return new Fields(type, values, unknown);
+    }
+    
+    /**
+     * Returns the index of the last declared field that is present
+     */
+    private static int lastPresent(Fields fields) {
+        int last = fields.values.length - 1;
+        while (last > 0 && fields.values[last] == null) {last--;}
+        
+        // Missing params can only be left out at the end, so extra fields need them all
+        return fields.unknown == null ? last : fields.values.length - 1;
+    }
+    
+    private static int binaryParamLength(String value) {
+        if (value == null) {return 1;}
+        
+        int length = FrameEncoder.utf8Length(value);
+        return varintLength(length + 1) + length;
+    }
+    
+    private static void putBinaryParam(String value, ByteBuffer buffer) {
+        if (value == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        
+        int length = FrameEncoder.utf8Length(value) + 1;
+        while ((length & ~0x7F) != 0) {
+            buffer.put((byte) (length & 0x7F | 0x80));
+            length >>>= 7;
+        }
+        buffer.put((byte) length);
+        
+        FrameEncoder.putUtf8(value, buffer);
+    }
+    
+    /**
+     * Reads a binary param, moving the position past it
+     *
+     * @param buffer   The buffer holding the message
+     * @param position The index of the param, as a single element array
+     * @param end      The index after the last byte of the message
+     * @return The param or {@code null} if it is missing
+     */
+    private static String readBinaryParam(ByteBuffer buffer, int[] position, int end) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        
+        do {
+            if (position[0] >= end || shift > 28) {throw new InvalidMessageException("Malformed binary message");}
+            
+            b = buffer.get(position[0]++);
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        
+        if (length == 0) {return null;}
+        length--;
+        if (length < 0 || length > end - position[0]) {throw new InvalidMessageException("Malformed binary message");}
+        
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + position[0], length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(position[0], bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        
+        position[0] += length;
+        return value;
+    }
+    
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        
+        return length;
+    }
+    
+    /**
+     * Parses the raw JSON of the members that a type does not declare
+     *
+     * @param unknown The members, as kept by {@link Fields#unknown}
+     * @return The members
+     * @throws InvalidMessageException If the members are malformed
+     */
+    static JsonObject parseUnknown(String unknown) {
+        try {
+            return (JsonObject) Jsoner.deserialize("{" + unknown + "}");
+        } catch (Exception e) {
+            throw new InvalidMessageException(e.getMessage());
+        }
+    }
+    
+    /**
+     * Returns the message type of a {@code MsgType}
+     *
+     * @param msgType The name of the type
+     * @return The type
+     * @throws InvalidMessageException If there is no such type
+     */
+    private static MessageTypes typeOf(String msgType) {
+        try {
+            return MessageTypes.valueOf(msgType);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidMessageException("Unknown MsgType: " + msgType);
+        }
+    }
+    
+    /**
+     * Writes a string as a quoted JSON string
+     *
+     * @param value The string
+     * @param json  The JSON being written
+     */
+    private static void quote(String value, StringBuilder json) {
+        json.append('"');
+        
+        int length = value.length();
+        int plain = 0; // Start of the characters that need no escaping
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {continue;}
+            
+            json.append(value, plain, i);
+            plain = i + 1;
+            
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                case '\b' -> json.append("\\b");
+                case '\f' -> json.append("\\f");
+                default -> json.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        
+        json.append(value, plain, length).append('"');
+    }
+    
+    /**
+     * Reads a single message from its JSON
+     */
+    private static final class Reader {
+        
+        private final String json;
+        private int position = 0;
+        
+        private MessageTypes type;
+        private String[] values;
+        private StringBuilder unknown;
+        
+        /**
+         * Known members read before {@code MsgType}, with where they start and end
+         */
+        private final String[] early = new String[KNOWN_FIELDS.length];
+        private final int[] earlyStart = new int[KNOWN_FIELDS.length];
+        private final int[] earlyEnd = new int[KNOWN_FIELDS.length];
+        
+        Reader(String json) {
+            this.json = json;
+        }
+        
+        Fields readMessage() {
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            
+            if (peek() == '}') {
+                position++;
+            } else {
+                do {
+                    readMember();
+                    skipWhitespace();
+                } while (next() == ',');
+                
+                position--;
+                expect('}');
+            }
+            
+            skipWhitespace();
+            if (position != json.length()) {throw malformed();}
+            if (type == null) {throw new InvalidMessageException("Missing MsgType");}
+            
+            return new Fields(type, values, unknown == null ? null : unknown.toString());
+        }
+        
+        /**
+         * Reads a member. Once the type is known only its declared fields are decoded
+         */
+        private void readMember() {
+            skipWhitespace();
+            int start = position;
+            String name = readString();
+            
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            
+            boolean isString = peek() == '"';
+            
+            if (type != null) {
+                int index = type.indexOf(name);
+                
+                if (index >= 0 && isString) {
+                    values[index] = readString();
+                } else {
+                    skipValue();
+                    addUnknown(start, position);
+                }
+            } else if (name.equals("MsgType") && isString) {
+                resolveType(readString());
+            } else {
+                int known = knownIndex(name);
+                
+                if (known >= 0 && isString) {
+                    early[known] = readString();
+                    earlyStart[known] = start;
+                    earlyEnd[known] = position;
+                } else {
+                    skipValue();
+                    addUnknown(start, position);
+                }
+            }
+        }
+        
+        /**
+         * Sets the type of the message and sorts the known members read before it
+         *
+         * @param msgType The name of the type
+         */
+        private void resolveType(String msgType) {
+            type = typeOf(msgType);
+            values = new String[type.fields.length];
+            values[0] = msgType;
+            
+            for (int known = 1; known < KNOWN_FIELDS.length; known++) {
+                if (early[known] == null) {continue;}
+                
+                int index = type.indexOf(KNOWN_FIELDS[known]);
+                if (index >= 0) {
+                    values[index] = early[known];
+                } else {
+                    addUnknown(earlyStart[known], earlyEnd[known]);
+                }
+            }
+        }
+        
+        private static int knownIndex(String name) {
+            for (int i = 0; i < KNOWN_FIELDS.length; i++) {
+                if (KNOWN_FIELDS[i].equals(name)) {return i;}
+            }
+            
+            return -1;
+        }
+        
+        private void addUnknown(int start, int end) {
+            unknown = unknown == null ? new StringBuilder() : unknown.append(',');
+            unknown.append(json, start, end);
+        }
+        
+        /**
+         * Reads a quoted string, only copying character by character if it has escapes
+         *
+         * @return The string
+         */
+        private String readString() {
+            expect('"');
+            int start = position;
+            
+            while (true) {
+                char c = next();
+                if (c == '"') {return json.substring(start, position - 1);}
+                if (c == '\\') {break;}
+                if (c < 0x20) {throw malformed();}
+            }
+            
+            position--;
+            StringBuilder string = new StringBuilder(position - start + 16);
+            string.append(json, start, position);
+            
+            while (true) {
+                char c = next();
+                
+                if (c == '"') {return string.toString();}
+                if (c < 0x20) {throw malformed();}
+                if (c != '\\') {
+                    string.append(c);
+                    continue;
+                }
+                
+                char escaped = next();
+                switch (escaped) {
+                    case '"', '\\', '/' -> string.append(escaped);
+                    case 'n' -> string.append('\n');
+                    case 'r' -> string.append('\r');
+                    case 't' -> string.append('\t');
+                    case 'b' -> string.append('\b');
+                    case 'f' -> string.append('\f');
+                    case 'u' -> {
+                        if (position + 4 > json.length()) {throw malformed();}
+                        
+                        try {
+                            string.append((char) Integer.parseInt(json, position, position + 4, 16));
+                        } catch (NumberFormatException e) {
+                            throw malformed();
+                        }
+                        position += 4;
+                    }
+                    default -> throw malformed();
+                }
+            }
+        }
+        
+        /**
+         * Skips over a value of any kind without decoding it
+         */
+        private void skipValue() {
+            char c = peek();
+            
+            if (c == '"') {
+                skipString();
+            } else if (c == '{' || c == '[') {
+                int depth = 0;
+                
+                do {
+                    c = peek();
+                    
+                    if (c == '"') {
+                        skipString();
+                        continue;
+                    }
+                    
+                    if (c == '{' || c == '[') {depth++;}
+                    if (c == '}' || c == ']') {depth--;}
+                    position++;
+                } while (depth > 0);
+            } else {
+                int start = position;
+                
+                while (position < json.length() && isLiteralChar(json.charAt(position))) {
+                    position++;
+                }
+                if (position == start) {throw malformed();}
+            }
+        }
+        
+        private void skipString() {
+            expect('"');
+            
+            char c;
+            while ((c = next()) != '"') {
+                if (c == '\\') {next();}
+            }
+        }
+        
+        private static boolean isLiteralChar(char c) {
+            return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || c == '-' || c == '+' || c == '.';
+        }
+        
+        private void skipWhitespace() {
+            while (position < json.length()) {
+                char c = json.charAt(position);
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {return;}
+                
+                position++;
+            }
+        }
+        
+        private char peek() {
+            if (position >= json.length()) {throw malformed();}
+            
+            return json.charAt(position);
+        }
+        
+        private char next() {
+            char c = peek();
+            position++;
+            
+            return c;
+        }
+        
+        private void expect(char expected) {
+            if (next() != expected) {throw malformed();}
+        }
+        
+        private InvalidMessageException malformed() {
+            return new InvalidMessageException("Malformed JSON at character " + position);
+        }
+    }
+}
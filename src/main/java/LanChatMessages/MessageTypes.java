@@ -18,6 +18,19 @@ public enum MessageTypes {
      * <br>
      * Params: <br>
      * <i>Username -</i> the username of the sending node <br>
+     * <i>Room (optional) -</i> the room to join, when the receiving node is a hub <br>
+     * <i>Formats (optional) -</i> the comma separated {@link WireFormat WireFormats}, other
+     * than JSON, that the sending node can use <br>
+     * <i>Compression (optional) -</i> {@code DEFLATE} if the sending node can
+     * {@link FrameCompressor compress} the connection <br>
+     * <i>Resume (optional) -</i> the token that names the conversation, if the sending
+     * node can resume it after its connection is lost <br>
+     * <i>Received (optional) -</i> the highest {@code Seq} of the {@link #MSG MSGs} that
+     * the sending node has received in the conversation, when it is resuming it <br>
+     * <br>
+     * A node that has lost a conversation it can resume listens again on the same port,
+     * and only accepts a NEW_CONNECTION with the conversation's Resume token. It accepts
+     * it without asking the user and declines any other. <br>
      * <br>
      * Action taken: <br>
      * The sending node must begin listening for a {@link #DECLINE_CONNECTION}
@@ -27,7 +40,8 @@ public enum MessageTypes {
      * through the same port as it is listening on and through the IP it received and
      * listen for {@link #stage} 3 messages
      */
-    NEW_CONNECTION(new String[]{"MsgType", "Username"}, 1),
+    NEW_CONNECTION(new String[]{"MsgType", "Username"},
+            new String[]{"Room", "Formats", "Compression", "Resume", "Received"}, 1),
     
     /**
      * The {@code DECLINE_CONNECTION} is a {@link #stage} 2 message, that is sent to a listening
@@ -48,6 +62,16 @@ public enum MessageTypes {
      * <br>
      * Params: <br>
      * <i>Username -</i> the username of the sending node <br>
+     * <i>Format (optional) -</i> the {@link WireFormat}, picked from the Formats of the
+     * {@link #NEW_CONNECTION}, that both nodes send every later message in. JSON if missing <br>
+     * <i>Compression (optional) -</i> {@code DEFLATE} if both nodes compress every later
+     * frame. Only sent if the {@link #NEW_CONNECTION} offered it <br>
+     * <i>Resume (optional) -</i> the Resume token of the {@link #NEW_CONNECTION}, if the
+     * sending node can resume the conversation too. Only sent if the
+     * {@link #NEW_CONNECTION} offered it <br>
+     * <i>Received (optional) -</i> the highest {@code Seq} of the {@link #MSG MSGs} that
+     * the sending node has received in the conversation. Each node then sends again
+     * every MSG after the other's Received that it has not had an {@link #ACK} for <br>
      * <br>
      * Action taken: <br>
      * The sending node must begin listening for {@link #stage} 3 messages
@@ -55,7 +79,7 @@ public enum MessageTypes {
      * The receiving node must begin listening for {@link #stage} 3 messages
      * and display and chat window.
      */
-    ACCEPT_CONNECTION(new String[]{"MsgType", "Username"}, 2),
+    ACCEPT_CONNECTION(new String[]{"MsgType", "Username"}, new String[]{"Format", "Compression", "Resume", "Received"}, 2),
     
     /**
      * The {@code MSG} is a {@link #stage} 3 message, that is sent to a listening
@@ -63,14 +87,22 @@ public enum MessageTypes {
      * <br>
      * Params: <br>
      * <i>Content -</i> the content of the message <br>
+     * <i>Username (optional) -</i> the username of the node that wrote the message,
+     * when it has been relayed by a hub <br>
+     * <i>Sent (optional) -</i> the time that the message was sent at, in microseconds
+     * since the epoch, used to measure how long messages take to arrive <br>
+     * <i>Seq (optional) -</i> the sequence number of the message in the conversation,
+     * counting up from 1. Only sent when both nodes can resume the conversation <br>
      * <br>
      * Action taken: <br>
      * The sending node must display the message itself and continue
-     * listening on stage 3<br>
+     * listening on stage 3. A message with a Seq must be kept until an {@link #ACK}
+     * covers it <br>
      * The receiving node must display the message and continue
-     * listening on stage 3
+     * listening on stage 3. A message with a Seq must be answered with an {@link #ACK},
+     * and is not displayed if its Seq is not above that of every message before it
      */
-    MSG(new String[]{"MsgType", "Content"}, 3),
+    MSG(new String[]{"MsgType", "Content"}, new String[]{"Username", "Sent", "Seq"}, 3),
     
     /**
      * The {@code WATCHDOG_KICK} is a {@link #stage} 3 message, that is sent to a listening
@@ -82,8 +114,9 @@ public enum MessageTypes {
      * Action taken: <br>
      * The sending node must reset its WATCHDOG_KICK sender timer. This should be
      * automatic in the form of a timeout
-     * {@link java.util.concurrent.LinkedBlockingQueue#poll(long, TimeUnit)}<br>
-     * The receiving node must reset its WATCHDOG_KICK sender timer.
+     * {@link java.util.concurrent.LinkedBlockingQueue#poll(long, TimeUnit)}. Any other
+     * message sent resets the timer too, so kicks are only sent when the connection is idle<br>
+     * The receiving node must reset its watchdog. Any other message received resets it too
      */
     WATCHDOG_KICK(new String[]{"MsgType"}, 3),
     
@@ -133,12 +166,34 @@ public enum MessageTypes {
      * The receiving node must release its sender and listener and display the new
      * connection menu
      */
-    ERROR(new String[]{"MsgType", "Message"}, Integer.MAX_VALUE);
+    ERROR(new String[]{"MsgType", "Message"}, Integer.MAX_VALUE),
+    
+    /**
+     * The {@code ACK} is a {@link #stage} 3 message, that is sent to a listening
+     * socket on {@link #stage} 3, to acknowledge the {@link #MSG MSGs} received. <br>
+     * <br>
+     * Params: <br>
+     * <i>Seq -</i> the highest Seq of the MSGs received. Acknowledgements are
+     * cumulative, so every MSG up to it has been received
+     * <br>
+     * Action taken: <br>
+     * The sending node must continue listening on stage 3<br>
+     * The receiving node must stop keeping every MSG up to the Seq
+     */
+    ACK(new String[]{"MsgType", "Seq"}, 3);
     
     
     MessageTypes(String[] parameters, Integer stage) {
+        this(parameters, new String[0], stage);
+    }
+    
+    MessageTypes(String[] parameters, String[] optional, Integer stage) {
         this.arguments = parameters;
         this.stage = stage;
+        
+        fields = new String[parameters.length + optional.length];
+        System.arraycopy(parameters, 0, fields, 0, parameters.length);
+        System.arraycopy(optional, 0, fields, parameters.length, optional.length);
     }
     
     /**
@@ -146,6 +201,12 @@ public enum MessageTypes {
      */
     final String[] arguments;
     
+    /**
+     * The json field names that the message declares: the {@link #arguments},
+     * followed by the optional params. {@code MsgType} is always the first
+     */
+    final String[] fields;
+    
     /**
      * The connection stage is a integer from 1-3 of a message type,
      * which the program expects. Eg: if the connection is in stage 3,
@@ -156,4 +217,18 @@ public enum MessageTypes {
      * <li>Stage {@link Integer#MAX_VALUE}: Allowed at any stage </li>
      */
     final int stage;
+    
+    /**
+     * Returns the index of a field name in the {@link #fields}
+     *
+     * @param field The json field name
+     * @return The index or -1 if the message type does not declare the field
+     */
+    int indexOf(String field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(field)) {return i;}
+        }
+        
+        return -1;
+    }
 }
@@ -0,0 +1,49 @@
+package LanChatMessages;
+
+/**
+ * WireFormat details the ways that a {@link Message} can be written in a frame.
+ * Every frame is headed with the length of the rest of the frame, whatever its
+ * format. <br>
+ * Nodes always send {@link #JSON} until the other node has agreed to another format
+ * in the {@link MessageTypes#NEW_CONNECTION NEW_CONNECTION} and
+ * {@link MessageTypes#ACCEPT_CONNECTION ACCEPT_CONNECTION} handshake. A node that
+ * supports a format reads it whenever it arrives, as only {@link #JSON} frames start
+ * with {@code '{'}
+ */
+public enum WireFormat {
+    /**
+     * The message is written as a JSON object, encoded in UTF-8. Every node can read it
+     */
+    JSON,
+    
+    /**
+     * The message is written as a type tag followed by its fields. <br>
+     * <br>
+     * The type tag is a single byte: the position of the message's {@link MessageTypes}
+     * constant plus one, so it can never be mistaken for the {@code '{'} of JSON. New
+     * message types must therefore only be added at the end of {@link MessageTypes}. <br>
+     * The tag is followed by the params of the type, in the order they are documented
+     * with the required params first. Each param is its length in bytes plus one as an
+     * unsigned LEB128 varint, followed by its UTF-8 bytes. A length of zero means that
+     * an optional param is missing, and missing params at the end are left out. <br>
+     * Fields that the type does not declare may follow the params as a single extra
+     * param, holding their members as comma separated JSON. <br>
+     * <br>
+     * A {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK} frame is 5 bytes, where it is 31 as JSON
+     */
+    BINARY;
+    
+    /**
+     * Returns the format of a name sent in the handshake
+     *
+     * @param name The name of the format
+     * @return The format, or {@code null} if the name is not a known format
+     */
+    public static WireFormat of(String name) {
+        for (WireFormat format : values()) {
+            if (format.name().equals(name)) {return format;}
+        }
+        
+        return null;
+    }
+}
@@ -0,0 +1,165 @@
+package LanChatMetrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyHistogram counts durations in buckets that grow with the duration, so
+ * any percentile can be read back to within about 6% of the recorded durations,
+ * from nanoseconds up to years, in a fixed amount of memory. <br>
+ * Each power of two is split into {@link #SUB_BUCKETS} equal buckets. Recording
+ * finds the bucket with a few bit operations and increments it without locking,
+ * so it may be called by any number of threads on their hot paths
+ */
+public final class LatencyHistogram {
+    
+    /**
+     * The number of bits that split each power of two
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+    
+    /**
+     * The number of buckets that each power of two is split into
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    
+    /**
+     * The counts of the buckets. Bucket {@code i} below {@link #SUB_BUCKETS} holds
+     * durations of exactly {@code i} nanoseconds
+     */
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    
+    /**
+     * The longest duration recorded, in nanoseconds
+     */
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Records a duration. Negative durations are recorded as 0
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {nanos = 0;}
+        
+        counts.getAndIncrement(indexOf(nanos));
+        
+        long longest = max.get();
+        while (nanos > longest && !max.compareAndSet(longest, nanos)) {
+            longest = max.get();
+        }
+    }
+    
+    /**
+     * Returns the number of durations recorded
+     *
+     * @return The count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Returns the longest duration recorded
+     *
+     * @param unit The unit to return the duration in
+     * @return The duration, or 0 if none have been recorded
+     */
+    public long getMax(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Returns the duration that the given fraction of the recorded durations are
+     * no longer than. Durations recorded while this is running may or may not be counted
+     *
+     * @param percentile The fraction, from 0 to 1, such as 0.99 for the p99
+     * @param unit       The unit to return the duration in
+     * @return The duration, or 0 if none have been recorded
+     */
+    public double percentile(double percentile, TimeUnit unit) {
+        if (percentile < 0 || percentile > 1) {throw new IllegalArgumentException("The percentile must be from 0 to 1");}
+        
+        long[] snapshot = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {return 0;}
+        
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            
+            if (seen >= rank) {
+                double nanos = Math.min(middleOf(i), max.get());
+                return nanos / TimeUnit.NANOSECONDS.convert(1, unit);
+            }
+        }
+        
+        return (double) max.get() / TimeUnit.NANOSECONDS.convert(1, unit);
+    }
+    
+    /**
+     * Forgets every recorded duration
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+    }
+    
+    /**
+     * Returns the bucket that a duration is counted in
+     *
+     * @param nanos The duration, which is not negative
+     * @return The index of the bucket
+     */
+    private static int indexOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {return (int) nanos;}
+        
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+    
+    /**
+     * Returns the duration in the middle of a bucket
+     *
+     * @param index The index of the bucket
+     * @return The duration in nanoseconds
+     */
+    private static double middleOf(int index) {
+        if (index < SUB_BUCKETS) {return index;}
+        
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowest = (SUB_BUCKETS + index % SUB_BUCKETS) * width;
+        
+        return lowest + (width - 1) / 2.0;
+    }
+    
+    /**
+     * Returns the p50, p99 and p999 in milliseconds, and the count
+     *
+     * @return The summary
+     */
+    @Override
+    public String toString() {
+        return String.format("p50=%.3fms p99=%.3fms p999=%.3fms count=%d",
+                percentile(0.5, TimeUnit.MILLISECONDS),
+                percentile(0.99, TimeUnit.MILLISECONDS),
+                percentile(0.999, TimeUnit.MILLISECONDS),
+                getCount());
+    }
+}
@@ -0,0 +1,33 @@
+package LanChatMetrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * ManagerMetrics holds the metrics of a manager as a whole. The metrics of each
+ * of its connections are held by their {@link SessionMetrics}
+ */
+public final class ManagerMetrics implements ManagerMetricsMBean {
+    
+    public final LongAdder sessionsOpened = new LongAdder();
+    
+    /**
+     * Reads the number of open sessions, only when it is asked for
+     */
+    private final IntSupplier activeSessions;
+    
+    /**
+     * Creates the metrics of a manager
+     *
+     * @param activeSessions Returns the number of open sessions
+     */
+    public ManagerMetrics(IntSupplier activeSessions) {
+        this.activeSessions = activeSessions;
+    }
+    
+    @Override
+    public int getActiveSessions() {return activeSessions.getAsInt();}
+    
+    @Override
+    public long getSessionsOpened() {return sessionsOpened.sum();}
+}
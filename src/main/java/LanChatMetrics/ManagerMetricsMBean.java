@@ -0,0 +1,21 @@
+package LanChatMetrics;
+
+/**
+ * The JMX view of a {@link ManagerMetrics}
+ */
+public interface ManagerMetricsMBean {
+    
+    /**
+     * Returns the number of sessions that are open
+     *
+     * @return The count
+     */
+    int getActiveSessions();
+    
+    /**
+     * Returns the number of sessions that have been opened, including closed ones
+     *
+     * @return The count
+     */
+    long getSessionsOpened();
+}
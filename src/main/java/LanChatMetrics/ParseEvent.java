@@ -0,0 +1,34 @@
+package LanChatMetrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A ParseEvent is recorded by Java Flight Recorder for every received frame that is
+ * turned into a message, lasting from decoding the frame to the message being validated
+ */
+@Name("LanChat.Parse")
+@Label("Parse")
+@Category("LanChat")
+@Description("A received frame decoded and validated as a message")
+public final class ParseEvent extends Event {
+    
+    @Label("Message Type")
+    @Description("The type of the message, or null if the frame was invalid")
+    public String messageType;
+    
+    @Label("Wire Format")
+    public String format;
+    
+    @Label("Size")
+    @Description("The length of the frame's payload")
+    @DataAmount
+    public int size;
+    
+    @Label("Valid")
+    public boolean valid;
+}
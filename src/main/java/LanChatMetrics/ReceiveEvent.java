@@ -0,0 +1,28 @@
+package LanChatMetrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A ReceiveEvent is recorded by Java Flight Recorder for every message that a
+ * listener waits for, lasting from starting to wait to the message being decoded.
+ * Long events are idle connections as well as slow ones
+ */
+@Name("LanChat.Receive")
+@Label("Receive")
+@Category("LanChat")
+@Description("A wait for a message on a socket")
+public final class ReceiveEvent extends Event {
+    
+    @Label("Message Type")
+    public String messageType;
+    
+    @Label("Size")
+    @Description("The bytes read while waiting")
+    @DataAmount
+    public long size;
+}
@@ -0,0 +1,29 @@
+package LanChatMetrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A RenderEvent is recorded by Java Flight Recorder for every batch of messages added
+ * to a chat pane, lasting from wrapping the messages to them being inserted into the document
+ */
+@Name("LanChat.Render")
+@Label("Render")
+@Category("LanChat")
+@Description("A batch of messages added to the chat pane")
+public final class RenderEvent extends Event {
+    
+    @Label("Message Type")
+    @Description("Whether the first message in the batch was sent, received or information")
+    public String messageType;
+    
+    @Label("Messages")
+    public int messages;
+    
+    @Label("Length")
+    @Description("The number of characters in the messages")
+    public int length;
+}
@@ -0,0 +1,31 @@
+package LanChatMetrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A SendEvent is recorded by Java Flight Recorder for every batch of messages that a
+ * sender writes to its socket, lasting from encoding the batch to flushing it
+ */
+@Name("LanChat.Send")
+@Label("Send")
+@Category("LanChat")
+@Description("A batch of messages written to a socket")
+public final class SendEvent extends Event {
+    
+    @Label("Message Type")
+    @Description("The type of the first message in the batch")
+    public String messageType;
+    
+    @Label("Messages")
+    public int messages;
+    
+    @Label("Size")
+    @Description("The bytes written, after compression")
+    @DataAmount
+    public long size;
+}
@@ -0,0 +1,121 @@
+package LanChatMetrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * SessionMetrics holds the counters and latency histograms of a single connection,
+ * recorded by its session, sender and listener as messages pass through them. The
+ * counters are {@link LongAdder LongAdders}, so counting never contends between the
+ * threads that share a connection. <br>
+ * The metrics are never reset by the connection, so they cover its whole life. They
+ * can be published through JMX as a {@link SessionMetricsMBean}
+ */
+public final class SessionMetrics implements SessionMetricsMBean {
+    
+    /**
+     * How long a {@link LanChatMessages.MessageTypes#WATCHDOG_BARK WATCHDOG_BARK} takes
+     * to be answered by a {@link LanChatMessages.MessageTypes#WATCHDOG_KICK WATCHDOG_KICK}
+     */
+    public final LatencyHistogram rtt = new LatencyHistogram();
+    
+    /**
+     * How long a {@link LanChatMessages.MessageTypes#MSG MSG} waits between being
+     * sent and being written to the socket
+     */
+    public final LatencyHistogram queueWait = new LatencyHistogram();
+    
+    /**
+     * How long a {@link LanChatMessages.MessageTypes#MSG MSG} takes from being sent
+     * by the other node to being received. This relies on both nodes' clocks agreeing,
+     * so it is only as accurate as their clocks are synchronised
+     */
+    public final LatencyHistogram delivery = new LatencyHistogram();
+    
+    public final LongAdder bytesIn = new LongAdder();
+    public final LongAdder bytesOut = new LongAdder();
+    public final LongAdder framesIn = new LongAdder();
+    public final LongAdder framesOut = new LongAdder();
+    public final LongAdder parseFailures = new LongAdder();
+    public final LongAdder barks = new LongAdder();
+    public final LongAdder timeouts = new LongAdder();
+    public final LongAdder resumes = new LongAdder();
+    public final LongAdder replayed = new LongAdder();
+    
+    /**
+     * Reads the number of messages waiting to be written, only when it is asked for
+     */
+    private final IntSupplier queueDepth;
+    
+    /**
+     * Creates the metrics of a connection
+     *
+     * @param queueDepth Returns the number of messages waiting to be written
+     */
+    public SessionMetrics(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+    
+    @Override
+    public long getBytesIn() {return bytesIn.sum();}
+    
+    @Override
+    public long getBytesOut() {return bytesOut.sum();}
+    
+    @Override
+    public long getFramesIn() {return framesIn.sum();}
+    
+    @Override
+    public long getFramesOut() {return framesOut.sum();}
+    
+    @Override
+    public long getParseFailures() {return parseFailures.sum();}
+    
+    @Override
+    public long getBarks() {return barks.sum();}
+    
+    @Override
+    public long getTimeouts() {return timeouts.sum();}
+    
+    @Override
+    public long getResumes() {return resumes.sum();}
+    
+    @Override
+    public long getReplayed() {return replayed.sum();}
+    
+    @Override
+    public int getQueueDepth() {return queueDepth.getAsInt();}
+    
+    @Override
+    public double getRttP50() {return rtt.percentile(0.5, TimeUnit.MILLISECONDS);}
+    
+    @Override
+    public double getRttP99() {return rtt.percentile(0.99, TimeUnit.MILLISECONDS);}
+    
+    @Override
+    public double getRttP999() {return rtt.percentile(0.999, TimeUnit.MILLISECONDS);}
+    
+    @Override
+    public double getQueueWaitP50() {return queueWait.percentile(0.5, TimeUnit.MILLISECONDS);}
+    
+    @Override
+    public double getQueueWaitP99() {return queueWait.percentile(0.99, TimeUnit.MILLISECONDS);}
+    
+    @Override
+    public double getQueueWaitP999() {return queueWait.percentile(0.999, TimeUnit.MILLISECONDS);}
+    
+    @Override
+    public double getDeliveryP50() {return delivery.percentile(0.5, TimeUnit.MILLISECONDS);}
+    
+    @Override
+    public double getDeliveryP99() {return delivery.percentile(0.99, TimeUnit.MILLISECONDS);}
+    
+    @Override
+    public double getDeliveryP999() {return delivery.percentile(0.999, TimeUnit.MILLISECONDS);}
+    
+    @Override
+    public String toString() {
+        return "rtt: " + rtt + ", queue wait: " + queueWait + ", delivery: " + delivery;
+    }
+}
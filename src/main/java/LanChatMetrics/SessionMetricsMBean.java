@@ -0,0 +1,77 @@
+package LanChatMetrics;
+
+/**
+ * The JMX view of a {@link SessionMetrics}. Latencies are in milliseconds
+ */
+public interface SessionMetricsMBean {
+    
+    long getBytesIn();
+    
+    long getBytesOut();
+    
+    long getFramesIn();
+    
+    long getFramesOut();
+    
+    /**
+     * Returns the number of received frames that did not hold a valid message
+     *
+     * @return The count
+     */
+    long getParseFailures();
+    
+    /**
+     * Returns the number of {@link LanChatMessages.MessageTypes#WATCHDOG_BARK WATCHDOG_BARKs}
+     * sent, whether to probe the round trip time or because of a timeout
+     *
+     * @return The count
+     */
+    long getBarks();
+    
+    /**
+     * Returns the number of times that nothing was received for the timeout
+     *
+     * @return The count
+     */
+    long getTimeouts();
+    
+    /**
+     * Returns the number of times that the connection was lost and then resumed
+     *
+     * @return The count
+     */
+    long getResumes();
+    
+    /**
+     * Returns the number of {@link LanChatMessages.MessageTypes#MSG MSGs} sent again
+     * after the connection was resumed, because the other node had not received them
+     *
+     * @return The count
+     */
+    long getReplayed();
+    
+    /**
+     * Returns the number of messages waiting to be written
+     *
+     * @return The queue depth
+     */
+    int getQueueDepth();
+    
+    double getRttP50();
+    
+    double getRttP99();
+    
+    double getRttP999();
+    
+    double getQueueWaitP50();
+    
+    double getQueueWaitP99();
+    
+    double getQueueWaitP999();
+    
+    double getDeliveryP50();
+    
+    double getDeliveryP99();
+    
+    double getDeliveryP999();
+}
@@ -0,0 +1,165 @@
+import LanChatHistory.ChatHistory;
+import LanChatHistory.HistoryOptions;
+import LanChatMessages.WireFormat;
+import org.apache.logging.log4j.Level;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LaunchOptions holds the switches that LanChat was started with. Switches are
+ * given as program arguments in the form {@code --name=value}. Unknown switches
+ * are ignored and missing switches take their default value
+ * <ul>
+ *     <li>{@code --transport=threaded|virtual|selector} - The {@link Transport} that
+ *     connections are carried by. Defaults to {@link Transport#THREADED}</li>
+ *     <li>{@code --send-queue=<capacity>} - The number of messages a connection
+ *     holds while waiting to be written, on every transport. Defaults to 64</li>
+ *     <li>{@code --back-pressure=block|drop-oldest|fail-fast} - The {@link BackPressure}
+ *     of a full send queue. Defaults to {@link BackPressure#BLOCK}</li>
+ *     <li>{@code --max-frame=<bytes>} - The largest message that a connection will
+ *     receive. Defaults to 16 MiB</li>
+ *     <li>{@code --wire-format=binary|json} - The {@link WireFormat} that connections
+ *     offer to use in place of JSON. Defaults to {@link WireFormat#BINARY}</li>
+ *     <li>{@code --compress} - Connections offer to compress their frames, which they
+ *     do if the other node offers to as well. Off by default</li>
+ *     <li>{@code --outbox=<directory>|off} - The directory that the {@link Outbox} of
+ *     each node is kept in, or {@code off} to keep messages that have not been
+ *     acknowledged in memory only. Defaults to {@code outbox}</li>
+ *     <li>{@code --resume-millis=<ms>} - How long a lost connection is tried to be
+ *     resumed for before the conversation ends. 0 never resumes one. Defaults to 60000</li>
+ *     <li>{@code --hub=<port>} - Runs a {@link Hub} on the port instead of opening
+ *     the window</li>
+ *     <li>{@code --hub-name=<name>} - The username that the hub accepts connections
+ *     with. Defaults to {@code LanChat Hub}</li>
+ *     <li>{@code --ui-batch=<n>} - The most messages that are added to the chat in a
+ *     single frame. Defaults to 256</li>
+ *     <li>{@code --trace=off|debug|trace} - The level of the {@link WireTrace} logger.
+ *     Messages sent and received are logged at {@code debug} or finer. Defaults to {@code off}</li>
+ *     <li>{@code --trace-sample=<n>} - Only one in every {@code n} messages in each
+ *     direction is traced. Defaults to 1</li>
+ *     <li>{@code --history=<directory>|off} - The directory that the {@link ChatHistory}
+ *     is kept in, or {@code off} to keep none. Defaults to {@code history}</li>
+ *     <li>{@code --history-segment=<bytes>} - The size of each file of the history.
+ *     Defaults to 4 MiB</li>
+ *     <li>{@code --history-sync=<n>} - The number of messages saved to the history
+ *     before they are forced to the disk. Defaults to 64</li>
+ *     <li>{@code --history-sync-millis=<ms>} - The longest that a saved message waits
+ *     to be forced to the disk. Defaults to 1000</li>
+ *     <li>{@code --history-hot=<segments>} - The number of most recent files of each
+ *     user's history that are left uncompressed when it is compacted. Defaults to 4</li>
+ *     <li>{@code --history-budget=<bytes>} - The most space that each user's history
+ *     may take up before its oldest messages are deleted. Defaults to 256 MiB</li>
+ *     <li>{@code --history-max-age=<days>} - How long messages are kept for. Defaults
+ *     to 365</li>
+ * </ul>
+ */
+public class LaunchOptions {
+    
+    /**
+     * The transport that connections are carried by
+     */
+    public final Transport transport;
+    
+    /**
+     * The settings that every connection is made with
+     */
+    public final ConnectionOptions connection;
+    
+    /**
+     * The port to run a hub on, or 0 to open the window
+     */
+    public final int hubPort;
+    
+    /**
+     * The username that the hub accepts connections with
+     */
+    public final String hubName;
+    
+    /**
+     * The most messages that are added to the chat in a single frame
+     */
+    public final int uiBatch;
+    
+    /**
+     * The level of the {@link WireTrace} logger
+     */
+    public final Level traceLevel;
+    
+    /**
+     * Only one in every this many messages in each direction is traced
+     */
+    public final int traceSample;
+    
+    /**
+     * The directory that the chat history is kept in, or {@code null} to keep none
+     */
+    public final Path historyDirectory;
+    
+    /**
+     * The settings that the chat history is written with
+     */
+    public final HistoryOptions history;
+    
+    /**
+     * Parses the program arguments
+     *
+     * @param args The program arguments
+     * @throws IllegalArgumentException If a switch has an invalid value
+     */
+    public LaunchOptions(String[] args) {
+        Map<String, String> switches = new HashMap<>();
+        
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {continue;}
+            
+            int split = arg.indexOf('=');
+            if (split == -1) {
+                switches.put(arg.substring(2), "true");
+            } else {
+                switches.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+        
+        transport = Transport.valueOf(switches.getOrDefault("transport", "threaded").toUpperCase());
+        connection = new ConnectionOptions(
+                ConnectionOptions.DEFAULT.kickRate,
+                Integer.parseInt(switches.getOrDefault("send-queue",
+                        String.valueOf(ConnectionOptions.DEFAULT.queueCapacity))),
+                BackPressure.valueOf(switches.getOrDefault("back-pressure",
+                        ConnectionOptions.DEFAULT.backPressure.name()).toUpperCase().replace('-', '_')),
+                Integer.parseInt(switches.getOrDefault("max-frame",
+                        String.valueOf(ConnectionOptions.DEFAULT.maxFrameSize))),
+                WireFormat.valueOf(switches.getOrDefault("wire-format",
+                        ConnectionOptions.DEFAULT.wireFormat.name()).toUpperCase()),
+                Boolean.parseBoolean(switches.getOrDefault("compress",
+                        String.valueOf(ConnectionOptions.DEFAULT.compress))),
+                switches.getOrDefault("outbox", "outbox").equals("off")
+                        ? null : Path.of(switches.getOrDefault("outbox", "outbox")),
+                Long.parseLong(switches.getOrDefault("resume-millis",
+                        String.valueOf(ConnectionOptions.DEFAULT.resumeMillis))));
+        hubPort = Integer.parseInt(switches.getOrDefault("hub", "0"));
+        hubName = switches.getOrDefault("hub-name", "LanChat Hub");
+        uiBatch = Integer.parseInt(switches.getOrDefault("ui-batch", "256"));
+        traceLevel = Level.valueOf(switches.getOrDefault("trace", "off"));
+        traceSample = Integer.parseInt(switches.getOrDefault("trace-sample", "1"));
+        
+        String directory = switches.getOrDefault("history", "history");
+        historyDirectory = directory.equals("off") ? null : Path.of(directory);
+        history = new HistoryOptions(
+                Integer.parseInt(switches.getOrDefault("history-segment",
+                        String.valueOf(HistoryOptions.DEFAULT.segmentSize))),
+                Integer.parseInt(switches.getOrDefault("history-sync",
+                        String.valueOf(HistoryOptions.DEFAULT.syncEvery))),
+                Long.parseLong(switches.getOrDefault("history-sync-millis",
+                        String.valueOf(HistoryOptions.DEFAULT.syncMillis))),
+                Integer.parseInt(switches.getOrDefault("history-hot",
+                        String.valueOf(HistoryOptions.DEFAULT.hotSegments))),
+                Long.parseLong(switches.getOrDefault("history-budget",
+                        String.valueOf(HistoryOptions.DEFAULT.maxBytes))),
+                TimeUnit.DAYS.toMillis(Long.parseLong(switches.getOrDefault("history-max-age",
+                        String.valueOf(TimeUnit.MILLISECONDS.toDays(HistoryOptions.DEFAULT.maxAgeMillis))))));
+    }
+}
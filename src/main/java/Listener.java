@@ -1,27 +1,68 @@
+import LanChatMessages.FrameDecoder;
+import LanChatMessages.InvalidMessageException;
 import LanChatMessages.Message;
 import LanChatMessages.MessageTypes;
+import LanChatMetrics.ReceiveEvent;
+import LanChatMetrics.SessionMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The listener class is responsible for listening for messages and relaying them
  * to the Manager
  */
-public class Listener implements AutoCloseable {
-    private boolean closed = false;
+public final class Listener implements MessageListener {
+    
+    private static final Logger logger = LogManager.getLogger(Listener.class);
+    
+    /**
+     * How long the thread running the {@link #timeouts} stays idle before it ends,
+     * in milliseconds
+     */
+    private static final long TIMEOUT_IDLE_MILLIS = 60_000;
+    
+    private volatile boolean closed = false;
     private ServerSocket serverSocket;
     private Socket clientSocket;
-    private DataInputStream dataInputStream;
+    private InputStream inputStream;
     private final int port;
     private final Managerable callback;
     
+    /**
+     * Splits the bytes read from the {@link #inputStream} into messages
+     */
+    private final FrameDecoder decoder;
+    
+    /**
+     * The metrics of the callback's connection
+     */
+    private final SessionMetrics metrics;
+    
+    /**
+     * Notices when nothing has been read for the {@link #setTimeout(int) timeout}. Its
+     * timeouts run on the {@link #timeouts} executor
+     */
+    private final Watchdog.Watch watch;
+    
+    /**
+     * Runs the timeouts of the {@link #watch}, one at a time, on a single thread from
+     * the listener's thread factory, so they are of the same kind as the listening
+     * thread. The thread is kept between timeouts, and ends once it has been idle for
+     * {@link #TIMEOUT_IDLE_MILLIS} or the listener is closed
+     */
+    private final ExecutorService timeouts;
+    
     /**
      * Creates a listener using the port and starts the {@link #thread listening thread},
      * which will begin listening for a connection
@@ -30,9 +71,27 @@ public class Listener implements AutoCloseable {
      * @param callback The manager to callback to
      */
     public Listener(int port, Managerable callback) {
+        this(port, callback, ConnectionOptions.DEFAULT, Thread::new);
+    }
+    
+    /**
+     * Creates a listener using the port and starts the {@link #thread listening thread},
+     * which will begin listening for a connection
+     *
+     * @param port          The port to listen on
+     * @param callback      The manager to callback to
+     * @param options       The settings of the connection
+     * @param threadFactory The factory that creates the listening thread
+     */
+    public Listener(int port, Managerable callback, ConnectionOptions options, ThreadFactory threadFactory) {
         this.port = port;
         this.callback = callback;
+        this.metrics = callback.getMetrics();
+        decoder = new FrameDecoder(options.maxFrameSize);
+        timeouts = timeoutExecutor(threadFactory);
+        watch = Watchdog.shared().watch(this::timedOut, timeouts);
         
+        thread = threadFactory.newThread(this::listen);
         thread.start();
     }
     /**
@@ -44,14 +103,64 @@ public class Listener implements AutoCloseable {
      * @param callback The manager to callback to
      */
     public Listener(Sender sender, Managerable callback) throws IOException {
+        this(sender, callback, ConnectionOptions.DEFAULT, Thread::new);
+    }
+    
+    /**
+     * Creates a listener using the socket of a connected sender. This starts the
+     * {@link #thread listening thread}. It will not listen for a connection as it
+     * has one from the sender
+     *
+     * @param sender        The connected sender, which socket it will use
+     * @param callback      The manager to callback to
+     * @param options       The settings of the connection
+     * @param threadFactory The factory that creates the listening thread
+     */
+    public Listener(Sender sender, Managerable callback, ConnectionOptions options, ThreadFactory threadFactory)
+            throws IOException {
         this.clientSocket = sender.getSocket();
-        dataInputStream = new DataInputStream(
-                new BufferedInputStream(
-                        clientSocket.getInputStream()));
+        inputStream = clientSocket.getInputStream();
         this.port = sender.getPort();
         
         this.callback = callback;
+        this.metrics = callback.getMetrics();
+        decoder = new FrameDecoder(options.maxFrameSize);
+        timeouts = timeoutExecutor(threadFactory);
+        watch = Watchdog.shared().watch(this::timedOut, timeouts);
         
+        thread = threadFactory.newThread(this::listen);
+        thread.start();
+    }
+    
+    /**
+     * Creates a listener using a socket accepted by a server, such as the one of
+     * {@link Transport#serve(int, ConnectionOptions, java.util.function.Supplier) serve()}. Unlike the other
+     * constructors this does not start the {@link #thread listening thread}, so the
+     * callback can be given the listener before any message arrives. {@link #start()}
+     * must be called once it has
+     *
+     * @param socket        The accepted socket
+     * @param callback      The manager to callback to
+     * @param options       The settings of the connection
+     * @param threadFactory The factory that creates the listening thread
+     */
+    public Listener(Socket socket, Managerable callback, ConnectionOptions options, ThreadFactory threadFactory) {
+        this.clientSocket = socket;
+        this.port = socket.getLocalPort();
+        this.callback = callback;
+        this.metrics = callback.getMetrics();
+        decoder = new FrameDecoder(options.maxFrameSize);
+        timeouts = timeoutExecutor(threadFactory);
+        watch = Watchdog.shared().watch(this::timedOut, timeouts);
+        
+        thread = threadFactory.newThread(this::listen);
+    }
+    
+    /**
+     * Starts the {@link #thread listening thread} of a listener created with
+     * {@link #Listener(Socket, Managerable, ConnectionOptions, ThreadFactory)}
+     */
+    public void start() {
         thread.start();
     }
     
@@ -66,6 +175,8 @@ public class Listener implements AutoCloseable {
     public void close() {
         thread.interrupt();
         closed = true;
+        watch.cancel();
+        timeouts.shutdown();
         
         try {
             clientSocket.close();
@@ -89,94 +200,119 @@ public class Listener implements AutoCloseable {
     
     
     /**
-     * Waits for a message to be received. If the message wait times out.
-     * When a message is received it will return the message
+     * Waits for a message to be received. When a message is received it will return
+     * the message. Every read is recorded by the {@link #watch}
      *
      * @return The received message
-     * @throws SocketTimeoutException if the message wait times out
-     * @throws IOException if an IOException occurs while reading data
+     * @throws InvalidMessageException if the received message is invalid. The
+     * next wait carries on with the message after it
+     * @throws IOException if an IOException occurs while reading data, or the
+     * message is larger than the {@link ConnectionOptions#maxFrameSize max frame size}
      */
     private Message waitForMessage() throws IOException {
-        int messageLength = dataInputStream.readInt();
+        ReceiveEvent event = new ReceiveEvent();
+        event.begin();
         
-        byte[] messageByte = new byte[messageLength];
-        int totalBytesRead = 0;
-        StringBuilder dataString = new StringBuilder(messageLength);
+        Message message;
+        long received = 0;
         
-        do {
-            int currentBytesRead = dataInputStream.read(messageByte);
-            totalBytesRead = currentBytesRead + totalBytesRead;
-            
-            if (totalBytesRead <= messageLength) {
-                dataString.append(new String(
-                                messageByte,
-                                0,
-                                currentBytesRead,
-                                StandardCharsets.UTF_8));
-            } else {
-                dataString.append(new String(
-                                messageByte,
-                                0,
-                                messageLength - totalBytesRead + currentBytesRead,
-                                StandardCharsets.UTF_8));
+        while ((message = decoder.next(callback.getConnectionStage())) == null) {
+            int read = decoder.readFrom(inputStream);
+            if (read == -1) {
+                throw new EOFException("The other node closed the connection");
             }
-        } while (dataString.length() < messageLength - 1);
-        return new Message(dataString.toString() , callback.getConnectionStage());
+            
+            watch.seen();
+            metrics.bytesIn.add(read);
+            received += read;
+        }
+        
+        if (event.shouldCommit()) {
+            event.messageType = message.type.name();
+            event.size = received;
+            event.commit();
+        }
+        
+        return message;
+    }
+    
+    /**
+     * Sets the length of silence after which the manager is told through
+     * {@link Managerable#connectionTimedOut()}. The socket itself has no timeout,
+     * the silence is tracked by the {@link #watch}
+     *
+     * @param timeout Timeout length in milliseconds. 0 disables the timeout
+     */
+    @Override
+    public void setTimeout(int timeout) {
+        watch.setTimeout(timeout);
+    }
+    
+    /**
+     * Creates the executor of the {@link #timeouts}
+     *
+     * @param threadFactory The factory that creates its thread
+     * @return The executor
+     */
+    private static ExecutorService timeoutExecutor(ThreadFactory threadFactory) {
+        // With no core threads and an unbounded queue, at most one thread is ever started.
+        // A timeout handed over after the listener has closed is discarded, as it would be ignored
+        return new ThreadPoolExecutor(0, 1, TIMEOUT_IDLE_MILLIS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory, new ThreadPoolExecutor.DiscardPolicy());
     }
     
     /**
-     * Sets the length that read operations will take to timeout.
-     * This will be communicated to the manager by a call to
-     * {@link Managerable#exceptionEncountered(Exception)} with
-     * {@link SocketTimeoutException}
-     * @param timeout Socket timeout length
-     * @throws SocketException If an IOException occurs, while setting the
-     * socket timeout
+     * Tells the manager that the {@link #watch} has timed out, unless the listener is closed
      */
-    public void setTimeout(int timeout) throws SocketException {
-        clientSocket.setSoTimeout(timeout);
+    private void timedOut() {
+        if (!closed) {callback.connectionTimedOut();}
     }
     
     /**
-     * The thread waits for an incoming connection and, once received,
+     * The thread that runs {@link #listen()}. It is created by the thread factory
+     * given to the constructor, so it may be a platform or a virtual thread
+     */
+    private final Thread thread;
+    
+    /**
+     * Waits for an incoming connection and, once received,
      * will begin waiting for messages using {@link #waitForMessage()}
-     * and will send it to the manager. If the wait times out then the
-     * thread will report the {@link SocketTimeoutException} through
-     * the callback {@link Managerable#exceptionEncountered(Exception)
-     * exceptionEncountered()}
-     */
-    private final Thread thread = new Thread() {
-        @Override
-        public void run() {
-            try {
-                if (clientSocket == null) {
-                    serverSocket = new ServerSocket(port);
-                    System.out.println("Listener: Listening");
-                    clientSocket = serverSocket.accept();
-                    System.out.println("Listener: Made connection: " + clientSocket.getInetAddress());
+     * and will send it to the manager
+     */
+    private void listen() {
+        try {
+            if (clientSocket == null) {
+                serverSocket = new ServerSocket(port);
+                logger.info("Listening on port {}", port);
+                clientSocket = serverSocket.accept();
+                logger.info("Made connection: {}", clientSocket.getInetAddress());
+            }
+            
+            inputStream = clientSocket.getInputStream();
+            
+            while (!Thread.currentThread().isInterrupted()) {
+                Message jsonData;
+                try {
+                    jsonData = waitForMessage();
+                } catch (InvalidMessageException e) {
+                    metrics.parseFailures.increment();
+                    reportException(e); // Invalid messages do not close the connection
+                    continue;
                 }
                 
-                dataInputStream = new DataInputStream(
-                        new BufferedInputStream(
-                                clientSocket.getInputStream()));
-                
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
-                
-                while (!isInterrupted()) {
-                    Message jsonData = waitForMessage();
-                    
-                    System.out.println("Received JSON data: " + jsonData.toJson());
-                    callback.messageReceived(jsonData);
-                }
-            
-            } catch (SocketTimeoutException e) {
-                reportException(e);
-            } catch (IOException e) {
-                close();
-                reportException(e);
+                metrics.framesIn.increment();
+                WireTrace.received(jsonData);
+                callback.messageReceived(jsonData);
             }
+        
+        } catch (IOException e) {
+            // Closing marks the listener closed, so whether it already was is read first
+            boolean wasClosed = closed;
+            close();
+            
+            if (!wasClosed) {callback.exceptionEncountered(e);}
         }
-    };
+    }
     
     /**
      * Returns the socket that the Listener is using. This may be {@code null} if the listener
@@ -194,6 +330,7 @@ public class Listener implements AutoCloseable {
         return port;
     }
     
+    @Override
     public String getIP() {
         return clientSocket.getInetAddress().toString().substring(1);
     }
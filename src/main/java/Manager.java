@@ -1,27 +1,314 @@
 import LanChatElements.ConnectionKey;
+import LanChatElements.LC_ChatPane;
 import LanChatElements.LC_Window;
 import LanChatElements.LC_Windowable;
-import LanChatMessages.Message;
-import com.github.cliftonlabs.json_simple.JsonObject;
+import LanChatHistory.ChatHistory;
+import LanChatHistory.HistoryLog;
+import LanChatHistory.HistoryRecord;
+import LanChatHistory.SearchQuery;
+import LanChatMetrics.ManagerMetrics;
+import LanChatMetrics.SessionMetrics;
 import org.apache.logging.log4j.Level;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.swing.*;
+
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
-public class Manager implements LC_Windowable, Managerable {
-    private final LC_Window window = new LC_Window(this);
-    private Sender sender;
-    private Listener listener;
-    private int stage = 0;
-    private String Username;
+public final class Manager implements LC_Windowable, Sessionable {
+    
+    /**
+     * The number of earlier messages that are shown each time the chat is scrolled
+     * to the top
+     */
+    private static final int HISTORY_PAGE = 100;
+    
+    /**
+     * The most messages that a search shows
+     */
+    private static final int SEARCH_RESULTS = 200;
+    
+    /**
+     * Formats the time that each message found by a search was sent or received at
+     */
+    private static final DateTimeFormatter SEARCH_TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    
+    /**
+     * Runs searches of the history one at a time, off the event dispatch thread, so
+     * their results are shown in the order they were asked for
+     */
+    private static final Executor SEARCHES = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "History-Search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final LC_Window window;
+    private final Transport transport;
+    private final ConnectionOptions connectionOptions;
+    
+    /**
+     * Every open session, keyed by {@link Session#id}
+     */
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    
+    /**
+     * The session that the window is showing. {@code null} if the window is not
+     * showing a session
+     */
+    private volatile Session active;
+    
+    /**
+     * The metrics of the manager as a whole, published through JMX along with the
+     * metrics of every open session
+     */
+    private final ManagerMetrics metrics = new ManagerMetrics(sessions::size);
+    
+    /**
+     * Carries what the sessions report to the manager, so their sockets are not
+     * held up by the window
+     */
+    private final InboundPipeline inbound;
     
+    /**
+     * Keeps every message sent and received. {@code null} if no history is kept
+     */
+    private final ChatHistory history;
     
-    private boolean waitingForBark = false;
+    /**
+     * The history of the node that the window is showing the conversation with.
+     * {@code null} until a conversation has been shown
+     */
+    private volatile HistoryLog shownLog;
+    
+    /**
+     * The index in the {@link #shownLog} of the earliest message that the window shows
+     */
+    private volatile long shownFrom;
+    
+    public Manager(LaunchOptions options) {
+        transport = options.transport;
+        connectionOptions = options.connection;
+        history = openHistory(options);
+        inbound = new InboundPipeline(this, 1024, history == null ? List.of() : List.of(this::saveReceived));
+        window = new LC_Window(this, options.uiBatch);
+        
+        register(metrics, "LanChat:type=Manager");
+    }
     
     public static void main(String[] args) {
-        Manager manager = new Manager();
+        LaunchOptions options = new LaunchOptions(args);
+        WireTrace.configure(options.traceLevel, options.traceSample);
+        
+        if (options.hubPort != 0) {
+            runHub(options);
+        } else {
+            Manager manager = new Manager(options);
+        }
+    }
+    
+    /**
+     * Runs a {@link Hub} until the process is stopped
+     *
+     * @param options The options the hub was launched with
+     */
+    private static void runHub(LaunchOptions options) {
+        Hub hub = new Hub(options.transport, options.connection, options.hubPort, options.hubName);
+        
+        try {
+            hub.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(hub::close));
+            
+            hub.awaitClose();
+        } catch (IOException e) {
+            ExceptionLogger.log(Level.FATAL, "Hub couldn't listen on port " + options.hubPort, e);
+        } catch (InterruptedException ignored) {}
+    }
+    
+    /**
+     * Opens the chat history, which is saved when the process stops. Failing to open
+     * it is logged, as LanChat works without it
+     *
+     * @param options The options LanChat was launched with
+     * @return The history, or {@code null} if none is kept
+     */
+    private static ChatHistory openHistory(LaunchOptions options) {
+        if (options.historyDirectory == null) {return null;}
+        
+        try {
+            ChatHistory history = new ChatHistory(options.historyDirectory, options.history);
+            Runtime.getRuntime().addShutdownHook(new Thread(history::close));
+            
+            return history;
+        } catch (IOException e) {
+            ExceptionLogger.log(Level.WARN, "Couldn't open the chat history", e);
+            return null;
+        }
+    }
+    
+    /**
+     * The {@link InboundStage} that saves every received message to the history
+     */
+    private void saveReceived(Session session, String content, String username) {
+        history.append(session.getUsername(), HistoryRecord.received(username, content));
+    }
+    
+    /**
+     * Starts showing the history of a node, from its most recent messages. The
+     * messages received from now on are shown as they arrive, so they are not part
+     * of the history shown
+     *
+     * @param peer The username of the node
+     */
+    private void showHistory(String peer) {
+        if (history == null) {return;}
+        
+        try {
+            HistoryLog log = history.log(peer);
+            shownFrom = log.count();
+            shownLog = log;
+        } catch (UncheckedIOException e) {
+            ExceptionLogger.log(Level.WARN, e);
+            return;
+        }
+        
+        SwingUtilities.invokeLater(this::historyRequested);
+    }
+    
+    /**
+     * Creates a session and adds it to the {@link #sessions}
+     *
+     * @return The new session
+     */
+    private Session openSession() {
+        Session session = new Session(inbound, transport, connectionOptions);
+        sessions.put(session.id, session);
+        metrics.sessionsOpened.increment();
+        register(session.getMetrics(), "LanChat:type=Session,id=" + session.id);
+        
+        return session;
+    }
+    
+    /**
+     * Makes a session the one shown to the user. The session shown before it is
+     * ended, as its calls are no longer shown and it would otherwise be left open
+     *
+     * @param session The session to show
+     */
+    private void show(Session session) {
+        Session previous = active;
+        active = session;
+        
+        if (previous != null && previous != session) {previous.endConnection();}
+    }
+    
+    /**
+     * Publishes metrics through the platform MBean server. Failing to publish them
+     * is logged, as LanChat works without them
+     *
+     * @param mbean The metrics, which implement their MBean interface
+     * @param name  The object name to publish them under
+     */
+    private static void register(Object mbean, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            
+            if (server.isRegistered(objectName)) {server.unregisterMBean(objectName);}
+            server.registerMBean(mbean, objectName);
+        } catch (JMException e) {
+            ExceptionLogger.log(Level.WARN, "Couldn't publish " + name, e);
+        }
+    }
+    
+    /**
+     * Stops publishing metrics through the platform MBean server
+     *
+     * @param name The object name they were published under
+     */
+    private static void unregister(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (JMException e) {
+            ExceptionLogger.log(Level.WARN, "Couldn't stop publishing " + name, e);
+        }
+    }
+    
+    /**
+     * Returns the session with the id
+     *
+     * @param id The {@link Session#id} of the session
+     * @return The session or {@code null} if there is no open session with that id
+     */
+    public Session getSession(int id) {
+        return sessions.get(id);
+    }
+    
+    /**
+     * Returns every open session with a node at the IP address
+     *
+     * @param ip The IP address of the other node
+     * @return The sessions, which may be empty
+     */
+    public List<Session> getSessions(String ip) {
+        List<Session> found = new ArrayList<>();
+        
+        for (Session session : sessions.values()) {
+            if (ip.equals(session.getPeerIP())) {found.add(session);}
+        }
+        
+        return found;
+    }
+    
+    /**
+     * Returns every open session
+     *
+     * @return A view of the open sessions
+     */
+    public Collection<Session> getSessions() {
+        return sessions.values();
+    }
+    
+    /**
+     * Returns the latency metrics of the session with the id
+     *
+     * @param id The {@link Session#id} of the session
+     * @return The metrics or {@code null} if there is no open session with that id
+     */
+    public SessionMetrics getMetrics(int id) {
+        Session session = sessions.get(id);
+        return session == null ? null : session.getMetrics();
+    }
+    
+    /**
+     * Returns the latency metrics of every open session
+     *
+     * @return The metrics, keyed by {@link Session#id}
+     */
+    public Map<Integer, SessionMetrics> getMetrics() {
+        Map<Integer, SessionMetrics> metrics = new HashMap<>();
+        
+        for (Session session : sessions.values()) {
+            metrics.put(session.id, session.getMetrics());
+        }
+        
+        return metrics;
     }
     
     
@@ -31,259 +318,221 @@ public class Manager implements LC_Windowable, Managerable {
     public ConnectionKey connectionListen() {
         int port = ConnectionKey.getRandomPort();
         
+        Session session = openSession();
         ConnectionKey key;
         try {
             key = new ConnectionKey(port);
+            
+            session.listen(port);
         } catch (IOException | UncheckedIOException e) {
             ExceptionLogger.log(Level.WARN, e);
+            session.close();
             return null;
         }
         
-        listener = new Listener(port, this);
-        stage = 1;
-        
+        show(session);
         return key;
     }
     
     @Override
     public void connectTo(String connectionKey, String username) {
-        stage = 1;
+        Session session = openSession();
+        show(session);
         
-        ConnectionKey key;
         try {
-            key = new ConnectionKey(connectionKey);
-            
-            sender = new Sender(key.IP, key.port, this, 1000);
-            
-            listener = new Listener(sender, this);
-            
-            sender.sendMessage(new Message(new JsonObject() {{
-                put("MsgType", "NEW_CONNECTION");
-                put("Username", username);
-            }}, stage));
-            
+            session.connectTo(new ConnectionKey(connectionKey), username);
         } catch (IOException | UncheckedIOException e) {
             window.resetAndDisplayError("Couldn't connect: " +
                     "check your \ninternet connection and try again. "
                     + "[" + ExceptionLogger.log(Level.WARN, e) + "]");
             
-            endConnectionByError("Connection Error (IO)");
+            session.close();
         }
-        
-        stage = 2;
     }
     
     @Override
     public void cancelListen() {
         try {
-            listener.close();
-            listener = null;
+            active.close();
         } catch (NullPointerException ignored) {}
+    }
+    
+    @Override
+    public void sendMessage(String message) {
+        Session session = active;
+        if (session == null) {return;}
         
-        stage = 0;
+        session.sendMessageAsync(message).whenComplete((sent, e) -> SwingUtilities.invokeLater(() -> {
+            if (e == null) {
+                window.addSentMessage(message);
+                if (history != null) {history.append(session.getUsername(), HistoryRecord.sent(message));}
+            } else if (e instanceof IllegalStateException || e.getCause() instanceof IllegalStateException) {
+                window.DisplayError("Couldn't send: too many messages are waiting to be sent");
+            } else {
+                window.resetAndDisplayError("Couldn't send: " +
+                        "check your \ninternet connection and try again. "
+                        + "[" + ExceptionLogger.log(Level.ERROR, e) + "]");
+            }
+        }));
+    }
+    
+    @Override
+    public void endConnection() {
+        try {
+            active.endConnection();
+        } catch (NullPointerException ignored) {}
     }
     
     @Override
-    public void sendMessage(String message) throws IllegalStateException {
+    public void allowConnection(boolean allowed, String username) {
         try {
-            sender.sendMessage(new Message(new JsonObject() {{
-                put("MsgType", "MSG");
-                put("Content", message);
-            }}, stage));
+            active.allowConnection(allowed, username);
         } catch (IOException | UncheckedIOException e) {
-            window.resetAndDisplayError("Couldn't send: " +
+            window.resetAndDisplayError("Couldn't Connect: " +
                     "check your \ninternet connection and try again. "
-                    + "[" +ExceptionLogger.log(Level.ERROR, e) + "]");
-            
-            endConnectionByError("Connection Error (IO)");
-            return;
+                    + "[" +ExceptionLogger.log(Level.WARN, e) + "]");
         }
-        window.addSentMessage(message);
     }
     
+    
+    
     @Override
-    public void endConnection() {
-        try {
-            sender.sendMessage(new Message(new JsonObject() {{
-                put("MsgType", "END_CONNECTION");
-            }}, stage));
-        } catch (NullPointerException ignored) {}
-        catch (IOException | UncheckedIOException e) {
-            ExceptionLogger.log(Level.INFO, e);
+    public void historyRequested() {
+        HistoryLog log = shownLog;
+        if (log == null) {return;}
+        
+        long first = log.first();
+        long from = shownFrom;
+        
+        // Deleted messages leave gaps, so a page may have to look further back to fill
+        List<HistoryRecord> records = new ArrayList<>();
+        while (records.size() < HISTORY_PAGE && from > first) {
+            long to = from;
+            from = Math.max(first, to - (HISTORY_PAGE - records.size()));
+            records.addAll(0, log.read(from, (int) (to - from)));
         }
         
-        close();
+        List<LC_ChatPane.Entry> entries = new ArrayList<>();
+        for (HistoryRecord record : records) {
+            entries.add(entryOf(record));
+        }
+        
+        shownFrom = from;
+        window.addEarlierMessages(entries, from > first);
     }
     
-    private void endConnectionByError(String msg) {
+    @Override
+    public void search(String text) {
+        HistoryLog log = shownLog;
+        if (log == null) {
+            window.DisplayError("No history is kept of this chat");
+            return;
+        }
+        
+        SearchQuery query;
         try {
-            sender.sendMessage(new Message(new JsonObject() {{
-                put("MsgType", "ERROR");
-                put("Message", msg);
-            }}, stage));
-            
-        } catch (NullPointerException ignored) {}
-        catch (IOException | UncheckedIOException e) {
-            ExceptionLogger.log(Level.INFO, e);
+            query = SearchQuery.parse(text);
+        } catch (IllegalArgumentException e) {
+            window.DisplayError(e.getMessage());
+            return;
         }
         
-        close();
+        SEARCHES.execute(() -> {
+            List<LC_ChatPane.Entry> entries = new ArrayList<>();
+            try {
+                for (HistoryRecord record : log.search(query, SEARCH_RESULTS)) {
+                    entries.add(LC_ChatPane.Entry.information(SEARCH_TIME.format(Instant.ofEpochMilli(record.time))));
+                    entries.add(entryOf(record));
+                }
+            } catch (UncheckedIOException e) {
+                String error = "Couldn't search the history [" + ExceptionLogger.log(Level.WARN, e) + "]";
+                SwingUtilities.invokeLater(() -> window.DisplayError(error));
+                return;
+            }
+            
+            SwingUtilities.invokeLater(() -> window.showSearchResults(text, entries));
+        });
     }
     
-    private void close() {
-        try {
-            listener.close();
-            listener = null;
-        } catch (NullPointerException ignored) {}
-        try {
-            sender.close();
-            sender = null;
-        } catch (NullPointerException ignored) {}
+    @Override
+    public void sendUnsent(boolean send) {
+        Session session = active;
+        if (session == null) {return;}
         
-        stage = 0;
+        List<String> unsent = session.takeUnsent();
+        if (send) {
+            for (String message : unsent) {sendMessage(message);}
+        }
+    }
+    
+    /**
+     * Returns the entry that shows a message of the history in the chat
+     */
+    private static LC_ChatPane.Entry entryOf(HistoryRecord record) {
+        return record.direction == HistoryRecord.Direction.SENT
+                ? LC_ChatPane.Entry.sent(record.content)
+                : LC_ChatPane.Entry.received(record.content, record.username);
     }
     
+    
+    
+    // Sessionable methods
     @Override
-    public void allowConnection(boolean allowed, String username) {
-        
-        if (allowed) {
-            try {
-                stage = 2;
-                
-                sender = new Sender(listener
-                        , this, 1000);
-                sender.sendMessage(new Message(new JsonObject() {{
-                    put("MsgType", "ACCEPT_CONNECTION");
-                    put("Username", username);
-                }}, stage));
-                
-                stage = 3;
-                sender.start();
-                listener.setTimeout(1500);
-                
-                window.connectionMade(Username);
-                
-            } catch (IOException | UncheckedIOException e) {
-                window.resetAndDisplayError("Couldn't Connect: " +
-                        "check your \ninternet connection and try again. "
-                        + "[" +ExceptionLogger.log(Level.WARN, e) + "]");
-                
-                endConnectionByError("Connection Error (IO)");
-            }
+    public void connectionRequested(Session session, String username) {
+        if (session == active) {
+            window.checkAllowConnection(username);
         } else {
-            
+            // The user would never be asked, so the other node would wait forever
             try {
-                stage = 2;
-                
-                sender = new Sender(listener
-                        , this, 1000);
-                sender.sendMessage(new Message(new JsonObject() {{
-                    put("MsgType", "DECLINE_CONNECTION");
-                }}, stage));
-                
-                sender.close();
-                sender = null;
+                session.allowConnection(false, null);
             } catch (IOException | UncheckedIOException e) {
-                window.resetAndDisplayError("Couldn't Connect: " +
-                        "check your \ninternet connection and try again. "
-                        + "[" +ExceptionLogger.log(Level.WARN, e) + "]");
-                
-                endConnectionByError("Connection Error (IO)");
+                ExceptionLogger.log(Level.INFO, e);
             }
         }
     }
     
     @Override
-    public void messageReceived(Message message) {
-        switch (message.type) {
-            case NEW_CONNECTION -> {
-                window.checkAllowConnection(message.get("Username"));
-                
-                listener.getIP();
-                Username = message.get("Username");
-                
-            } case ACCEPT_CONNECTION -> {
-                window.connectionMade(message.get("Username"));
-                Username = message.get("Username");
-                
-                stage = 3;
-                sender.start();
-                try {
-                    listener.setTimeout(1500);
-                } catch (SocketException e) {
-                    window.resetAndDisplayError("Couldn't Connect: " +
-                            "check your \ninternet connection and try again. "
-                            + "[" +ExceptionLogger.log(Level.WARN, e) + "]");
-                    
-                    endConnectionByError("Connection Error (IO)");
-                }
-                
-            } case DECLINE_CONNECTION -> {
-                window.connectionDeclined();
-                
-                sender.close();
-                sender = null;
-            } case MSG ->
-                    window.addReceivedMessage(message.get("Content"), Username);
-            case END_CONNECTION ->
-                    window.resetAndDisplayError("The other user ended \n the connection");
-            case ERROR ->
-                    window.resetAndDisplayError("The other user encountered \n a" +
-                            " fatal error (" + message.get("Message") + ")");
-            case WATCHDOG_BARK -> {
-                try {
-                    sender.sendMessage(new Message(new JsonObject() {{
-                        put("MsgType", "WATCHDOG_KICK");
-                    }}, stage));
-                    
-                    waitingForBark = false;
-                } catch (IOException | UncheckedIOException e) {
-                    exceptionEncountered(e);
-                }
-            }
+    public void connectionMade(Session session, String username) {
+        if (session == active) {
+            window.connectionMade(username);
+            showHistory(username);
+            
+            int unsent = session.getUnsentCount();
+            if (unsent > 0) {SwingUtilities.invokeLater(() -> window.checkSendUnsent(username, unsent));}
+        } else {
+            session.endConnection(); // Replaced while it was connecting
         }
     }
     
     @Override
-    public int getConnectionStage() {
-        return stage;
+    public void connectionDeclined(Session session) {
+        if (session == active) {window.connectionDeclined();}
     }
     
     @Override
-    public void exceptionEncountered(Exception e) {
-        if (e instanceof SocketTimeoutException) {
-            if (waitingForBark) {
-                window.resetAndDisplayError("Connection timed out " +
-                        "check your \ninternet connection and try again. "
-                        + "[" +ExceptionLogger.log(Level.WARN, e) + "]");
-                
-                endConnectionByError("Connection Timed out");
-            } else {
-                waitingForBark = true;
-                
-                try {
-                    sender.sendMessage(new Message(new JsonObject() {{
-                        put("MsgType", "WATCHDOG_KICK");
-                    }}, stage));
-                } catch (IOException | UncheckedIOException ex) {
-                    
-                    window.resetAndDisplayError("Couldn't check connection " +
-                            "check your \ninternet connection and try again. "
-                            + "[" +ExceptionLogger.log(Level.WARN, e) + "]");
-                    
-                    endConnectionByError("Message Send Error (IO)");
-                }
-            }
-        } else if (e instanceof  IOException) {
-            
-            window.resetAndDisplayError("Internal connection error occurred. " +
-                    "check \nyour internet connection and try again. "
-                    + "[" +ExceptionLogger.log(Level.WARN, e) + "]");
-            
-            endConnectionByError("Connection Error (IO)");
-        }
-        
+    public void messageReceived(Session session, String content, String username) {
+        if (session == active) {window.addReceivedMessage(content, username);}
+    }
+    
+    @Override
+    public void connectionEnded(Session session, String errMsg) {
+        if (session == active) {window.resetAndDisplayError(errMsg);}
+    }
+    
+    @Override
+    public void connectionInterrupted(Session session) {
+        if (session == active) {window.addInformationMessage("Connection lost, reconnecting...");}
+    }
+    
+    @Override
+    public void connectionResumed(Session session) {
+        if (session == active) {window.addInformationMessage("Reconnected");}
+    }
+    
+    @Override
+    public void sessionClosed(Session session) {
+        if (sessions.remove(session.id) != null) {unregister("LanChat:type=Session,id=" + session.id);}
         
-        ExceptionLogger.log(Level.ERROR, e);
+        if (session == active) {active = null;}
     }
 }
@@ -1,5 +1,6 @@
 import LanChatMessages.Message;
 import LanChatMessages.MessageTypes;
+import LanChatMetrics.SessionMetrics;
 
 /**
  * The Managerable interface contains callback methods that LanChat managers
@@ -23,6 +24,24 @@ public interface Managerable {
      */
     int getConnectionStage();
     
+    /**
+     * Listeners will call this on the manager when nothing has been received for the
+     * {@link MessageListener#setTimeout(int) timeout}. It is called again after every
+     * further timeout of silence, and is not called by the listener's own thread
+     *
+     * @implSpec The manager should send a {@link MessageTypes#WATCHDOG_BARK WATCHDOG_BARK}
+     * the first time and end the connection if it is called again before anything is received
+     */
+    void connectionTimedOut();
+    
+    /**
+     * Returns the metrics of the manager's connection, which senders and listeners
+     * record into as messages pass through them
+     *
+     * @return The metrics
+     */
+    SessionMetrics getMetrics();
+    
     /**
      * Used by the listener and sender threads to report any exceptions encountered
      * in the thread to the manager.
@@ -0,0 +1,37 @@
+import LanChatMessages.MessageTypes;
+
+import java.net.SocketException;
+
+/**
+ * The MessageListener interface contains the methods that the manager uses to
+ * control the receiving half of a connection, regardless of the {@link Transport}
+ * that carries it. Received messages are relayed through
+ * {@link Managerable#messageReceived(LanChatMessages.Message) messageReceived()}
+ */
+public interface MessageListener extends AutoCloseable {
+    
+    /**
+     * Sets the length of silence after which the manager will be told through
+     * {@link Managerable#connectionTimedOut() connectionTimedOut()}. Silence is tracked
+     * by the shared {@link Watchdog}, so setting a timeout costs no exceptions
+     *
+     * @param timeout Timeout length in milliseconds
+     * @throws SocketException If an IOException occurs while setting the timeout
+     */
+    void setTimeout(int timeout) throws SocketException;
+    
+    /**
+     * Returns the IP address of the connected node
+     *
+     * @return The IP address
+     */
+    String getIP();
+    
+    /**
+     * Releases the listener's resources. This should NOT be used to end the connection.
+     * {@link MessageTypes#END_CONNECTION} or {@link MessageTypes#ERROR}
+     * should be used first to prevent an error on the other side
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,73 @@
+import LanChatMessages.Message;
+import LanChatMessages.MessageTypes;
+import LanChatMessages.WireFormat;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The MessageSender interface contains the methods that the manager uses to send
+ * {@link Message Messages} to the other node, regardless of the
+ * {@link Transport} that carries them
+ */
+public interface MessageSender extends AutoCloseable {
+    
+    /**
+     * Sends a message to the other node
+     *
+     * @param message The message to send
+     * @throws IOException If an IOException occurs or the sender is closed
+     */
+    void sendMessage(Message message) throws IOException;
+    
+    /**
+     * Sends a message to the other node without waiting for it to be written. The
+     * calling thread never waits on the socket, so this may be called by the Swing
+     * event dispatch thread
+     *
+     * @param message The message to send
+     * @return A future completed once the message has been written to the socket,
+     * or completed exceptionally if it could not be
+     */
+    CompletableFuture<Void> sendAsync(Message message);
+    
+    /**
+     * Starts sending {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICKs} regularly
+     *
+     * @throws IllegalStateException If the sender is closed
+     */
+    void start();
+    
+    /**
+     * Returns the number of messages waiting to be written
+     *
+     * @return The queue depth
+     */
+    int getQueueDepth();
+    
+    /**
+     * Sets the format that messages are written in. Messages sent after this is
+     * called are written in the new format. Senders write {@link WireFormat#JSON JSON}
+     * until this is called
+     *
+     * @param format The wire format, agreed with the other node
+     */
+    void setWireFormat(WireFormat format);
+    
+    /**
+     * Sets whether the frames are compressed by a {@link LanChatMessages.FrameCompressor
+     * FrameCompressor} before being written. Messages sent after this is called are
+     * compressed. Senders do not compress until this is called
+     *
+     * @param compressed True once both nodes have agreed to compression
+     */
+    void setCompressed(boolean compressed);
+    
+    /**
+     * Releases the sender's resources. This should NOT be used to end the connection.
+     * {@link MessageTypes#END_CONNECTION END_CONNECTION} or {@link MessageTypes#ERROR}
+     * should be used first to prevent an error on the other side
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,528 @@
+import LanChatHistory.ChatHistory;
+import LanChatMessages.MessageTypes;
+import org.apache.logging.log4j.Level;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An Outbox holds the {@link MessageTypes#MSG MSGs} of a conversation that have been
+ * sent but not yet {@link MessageTypes#ACK acknowledged}, under the sequence numbers
+ * they were sent with, so they can be sent again when a lost connection is resumed. <br>
+ * Each message is appended to the outbox's file as it is added, and each
+ * acknowledgement after it. The files of every outbox are written by a single writer
+ * thread, so adding a message never waits on the disk. The writer forces what it has
+ * written to the disk once {@link #SYNC_EVERY} records are waiting or the oldest has
+ * waited {@link #SYNC_MILLIS}, so the disk is synced once for many messages. The file
+ * is emptied whenever every message has been acknowledged, and is rewritten with only
+ * the messages left once it has grown by {@link #REWRITE_BYTES}. <br>
+ * The file is kept for a username at an IP address. The messages left in it when a
+ * conversation ends are not sent again by themselves, as usernames are not checked:
+ * the next outbox opened for the same node holds them as {@link #unsentCount() unsent}
+ * until the user decides to send or drop them. <br>
+ * An outbox without a file, or whose file cannot be written, holds its messages in
+ * memory only. The outbox is guarded by its monitor
+ */
+public class Outbox implements AutoCloseable {
+    
+    /**
+     * The kind of a record of a message, followed by its sequence number, the length of
+     * its content and its content in UTF-8
+     */
+    private static final byte MESSAGE = 1;
+    
+    /**
+     * The kind of a record of an acknowledgement, followed by the sequence number
+     * acknowledged
+     */
+    private static final byte ACK = 2;
+    
+    /**
+     * The kind of a record of a message left by an earlier conversation, laid out as
+     * a {@link #MESSAGE} with a sequence number of 0
+     */
+    private static final byte UNSENT = 3;
+    
+    /**
+     * How much the file may grow by before it is rewritten with only the messages that
+     * have not been acknowledged
+     */
+    private static final long REWRITE_BYTES = 1 << 20;
+    
+    /**
+     * The number of records that may be written before they are forced to the disk
+     */
+    private static final int SYNC_EVERY = 64;
+    
+    /**
+     * The longest, in milliseconds, that a written record may wait to be forced to the disk
+     */
+    private static final long SYNC_MILLIS = 200;
+    
+    /**
+     * A message that has not been acknowledged
+     *
+     * @param seq     The sequence number it was sent with
+     * @param content The content of the message
+     */
+    public record Entry(long seq, String content) {}
+    
+    /**
+     * Work on the file of an outbox, done by the writer thread
+     */
+    private interface FileWork {
+        void run() throws IOException;
+    }
+    
+    /**
+     * Work handed to the writer thread. Work without an outbox asks for everything
+     * written so far to be forced to the disk
+     *
+     * @param outbox The outbox whose file the work is on
+     * @param work   The work
+     * @param synced Run once everything written before it has been forced, if the
+     *               work has no outbox
+     */
+    private record Work(Outbox outbox, FileWork work, Runnable synced) {}
+    
+    /**
+     * The work of every outbox, done in the order it was handed over
+     */
+    private static final BlockingQueue<Work> WORK = new LinkedBlockingQueue<>();
+    
+    static {
+        Thread writer = new Thread(Outbox::write, "Outbox-Writer");
+        writer.setDaemon(true);
+        writer.start();
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(Outbox::sync));
+    }
+    
+    /**
+     * The file of the outbox, or {@code null} if it is only held in memory
+     */
+    private volatile Path path;
+    
+    /**
+     * The file, once it has been opened for the first write. Only used by the writer thread
+     */
+    private FileChannel channel;
+    
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private long next = 1;
+    
+    /**
+     * The content of the messages left by an earlier conversation, which the user has
+     * not yet decided to send or drop
+     */
+    private final List<String> unsent = new ArrayList<>();
+    
+    /**
+     * The number of bytes appended to the file since it was last rewritten
+     */
+    private long appended = 0;
+    
+    private Outbox(Path path) {
+        this.path = path;
+    }
+    
+    /**
+     * Creates an outbox that only holds its messages in memory
+     *
+     * @return The outbox
+     */
+    public static Outbox inMemory() {
+        return new Outbox(null);
+    }
+    
+    /**
+     * Opens the outbox of the conversations with a node, holding the messages that
+     * were not acknowledged in the earlier ones as {@link #unsentCount() unsent}. The
+     * file is read by the calling thread. If it cannot be read the outbox is held in
+     * memory only
+     *
+     * @param directory The directory that outboxes are kept in
+     * @param peer      The username of the node
+     * @param address   The IP address of the node
+     * @return The outbox
+     */
+    public static Outbox open(Path directory, String peer, String address) {
+        Outbox outbox = new Outbox(directory.resolve(ChatHistory.directoryName(peer + "@" + address) + ".outbox"));
+        
+        try {
+            outbox.unsent.addAll(outbox.load());
+        } catch (IOException e) {
+            ExceptionLogger.log(Level.WARN, "Couldn't read the outbox of " + peer, e);
+            outbox.path = null;
+            return outbox;
+        }
+        
+        synchronized (outbox) {
+            outbox.rewrite(); // Keeps the unsent messages, under a kind that acknowledgements do not touch
+        }
+        return outbox;
+    }
+    
+    /**
+     * Reads the messages of the file that were not acknowledged. A record cut short by
+     * LanChat stopping while it was written is ignored
+     *
+     * @return The content of the messages, with those left unsent by earlier
+     * conversations first, in the order they were added
+     * @throws IOException If the file could not be read
+     */
+    private List<String> load() throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (NoSuchFileException e) {
+            return List.of();
+        }
+        
+        List<String> left = new ArrayList<>();
+        ArrayDeque<Entry> sent = new ArrayDeque<>();
+        while (buffer.remaining() >= 9) {
+            byte kind = buffer.get();
+            long seq = buffer.getLong();
+            
+            if (kind == MESSAGE || kind == UNSENT) {
+                if (buffer.remaining() < 4) {break;}
+                int length = buffer.getInt();
+                if (length < 0 || buffer.remaining() < length) {break;}
+                
+                byte[] content = new byte[length];
+                buffer.get(content);
+                if (kind == UNSENT) {
+                    left.add(new String(content, StandardCharsets.UTF_8));
+                } else {
+                    sent.add(new Entry(seq, new String(content, StandardCharsets.UTF_8)));
+                }
+            } else if (kind == ACK) {
+                while (!sent.isEmpty() && sent.peek().seq <= seq) {sent.poll();}
+            } else {
+                throw new IOException("Not an outbox: " + path);
+            }
+        }
+        
+        for (Entry entry : sent) {
+            left.add(entry.content);
+        }
+        
+        return left;
+    }
+    
+    /**
+     * Adds a message that is about to be sent, giving it the next sequence number.
+     * The message is written to the file by the writer thread
+     *
+     * @param content The content of the message
+     * @return The sequence number to send the message with
+     */
+    public synchronized long add(String content) {
+        Entry entry = new Entry(next++, content);
+        pending.add(entry);
+        
+        append(record(MESSAGE, entry.seq, entry.content));
+        return entry.seq;
+    }
+    
+    /**
+     * Removes the messages that the other node has acknowledged
+     *
+     * @param seq The sequence number acknowledged, which covers every message up to it
+     */
+    public synchronized void acknowledged(long seq) {
+        if (pending.isEmpty() || pending.peek().seq > seq) {return;}
+        
+        while (!pending.isEmpty() && pending.peek().seq <= seq) {pending.poll();}
+        
+        if (pending.isEmpty() && unsent.isEmpty()) {
+            appended = 0;
+            schedule(this::truncate);
+        } else if (appended > REWRITE_BYTES) {
+            rewrite();
+        } else {
+            append(ByteBuffer.allocate(9).put(ACK).putLong(seq).flip());
+        }
+    }
+    
+    /**
+     * Returns the messages that have not been acknowledged and were sent after a
+     * sequence number
+     *
+     * @param seq The sequence number
+     * @return The messages, in the order they were added
+     */
+    public synchronized List<Entry> after(long seq) {
+        List<Entry> after = new ArrayList<>();
+        for (Entry entry : pending) {
+            if (entry.seq > seq) {after.add(entry);}
+        }
+        
+        return after;
+    }
+    
+    /**
+     * Returns the number of messages that have not been acknowledged
+     *
+     * @return The number of messages
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+    
+    /**
+     * Returns the number of messages left by earlier conversations with the node,
+     * which the user has not yet decided to send or drop
+     *
+     * @return The number of messages
+     */
+    public synchronized int unsentCount() {
+        return unsent.size();
+    }
+    
+    /**
+     * Takes the messages left by earlier conversations with the node out of the
+     * outbox. They must be {@link #add(String) added} again to be sent
+     *
+     * @return The content of the messages, in the order they were first added
+     */
+    public synchronized List<String> takeUnsent() {
+        if (unsent.isEmpty()) {return List.of();}
+        
+        List<String> taken = List.copyOf(unsent);
+        unsent.clear();
+        rewrite();
+        
+        return taken;
+    }
+    
+    private static ByteBuffer record(byte kind, long seq, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        
+        return ByteBuffer.allocate(13 + bytes.length)
+                .put(kind).putLong(seq).putInt(bytes.length).put(bytes)
+                .flip();
+    }
+    
+    /**
+     * Hands work on the file to the writer thread, unless the outbox has no file
+     */
+    private void schedule(FileWork work) {
+        if (path != null) {WORK.add(new Work(this, work, null));}
+    }
+    
+    /**
+     * Hands a record to the writer thread to append to the file
+     */
+    private void append(ByteBuffer record) {
+        appended += record.remaining();
+        schedule(() -> {
+            if (channel == null) {
+                Files.createDirectories(path.getParent());
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            
+            while (record.hasRemaining()) {channel.write(record);}
+        });
+    }
+    
+    /**
+     * Hands the writer thread a rewrite of the file with only the messages held now.
+     * Must be called while holding the outbox's monitor, so the work is handed over
+     * in the order the messages changed
+     */
+    private void rewrite() {
+        List<String> unsent = List.copyOf(this.unsent);
+        List<Entry> pending = List.copyOf(this.pending);
+        
+        appended = 0;
+        schedule(() -> replace(unsent, pending));
+    }
+    
+    /**
+     * Empties the file. Run by the writer thread
+     *
+     * @throws IOException If the file could not be emptied
+     */
+    private void truncate() throws IOException {
+        if (channel == null) {
+            replace(List.of(), List.of());
+        } else {
+            channel.truncate(0);
+        }
+    }
+    
+    /**
+     * Replaces the file with one holding only the messages given, or deletes it if
+     * there are none. The file is written whole, forced and then moved into place.
+     * Run by the writer thread
+     *
+     * @param unsent  The messages left by earlier conversations
+     * @param pending The messages that have not been acknowledged
+     * @throws IOException If the file could not be written
+     */
+    private void replace(List<String> unsent, List<Entry> pending) throws IOException {
+        closeChannel();
+        
+        if (unsent.isEmpty() && pending.isEmpty()) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        
+        Files.createDirectories(path.getParent());
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (String content : unsent) {
+                ByteBuffer record = record(UNSENT, 0, content);
+                while (record.hasRemaining()) {out.write(record);}
+            }
+            for (Entry entry : pending) {
+                ByteBuffer record = record(MESSAGE, entry.seq, entry.content);
+                while (record.hasRemaining()) {out.write(record);}
+            }
+            out.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Forces what has been appended to the file to the disk. Run by the writer thread
+     */
+    private void force() {
+        if (channel == null || path == null) {return;}
+        
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+    
+    /**
+     * Closes the file if it is open. Run by the writer thread
+     */
+    private void closeChannel() {
+        if (channel == null) {return;}
+        
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ExceptionLogger.log(Level.DEBUG, "Couldn't close the outbox " + path, e);
+        }
+        channel = null;
+    }
+    
+    /**
+     * Logs a failure to write the file and holds the messages in memory only from then
+     * on. Run by the writer thread
+     */
+    private void failed(Exception e) {
+        ExceptionLogger.log(Level.WARN, "Couldn't write the outbox " + path
+                + ", unacknowledged messages are only kept in memory", e);
+        closeChannel();
+        path = null;
+    }
+    
+    /**
+     * Forces the file to the disk and closes it, leaving the messages that have not
+     * been acknowledged in it. The file is closed by the writer thread once the work
+     * handed to it before has been done
+     */
+    @Override
+    public void close() {
+        schedule(() -> {
+            force();
+            closeChannel();
+        });
+    }
+    
+    /**
+     * The writer thread. Does the work of every outbox in batches, then forces the
+     * written files to the disk once {@link #SYNC_EVERY} records are waiting or the
+     * oldest has waited {@link #SYNC_MILLIS}
+     */
+    private static void write() {
+        List<Work> batch = new ArrayList<>();
+        Set<Outbox> unsynced = new HashSet<>();
+        List<Runnable> synced = new ArrayList<>();
+        int unsyncedCount = 0;
+        long oldestUnsynced = 0;
+        
+        while (true) {
+            try {
+                Work first = unsynced.isEmpty() ? WORK.take() : WORK.poll(
+                        Math.max(0, oldestUnsynced + SYNC_MILLIS - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    WORK.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            
+            for (Work work : batch) {
+                if (work.outbox == null) {
+                    synced.add(work.synced);
+                    continue;
+                }
+                if (work.outbox.path == null) {continue;} // The file failed, so it is held in memory only
+                
+                try {
+                    work.work.run();
+                } catch (IOException | RuntimeException e) {
+                    // A failure of one outbox must not end the writer thread that every outbox shares
+                    work.outbox.failed(e);
+                    continue;
+                }
+                
+                if (unsynced.isEmpty()) {oldestUnsynced = System.currentTimeMillis();}
+                unsynced.add(work.outbox);
+                unsyncedCount++;
+            }
+            batch.clear();
+            
+            if (!synced.isEmpty() || unsyncedCount >= SYNC_EVERY
+                    || System.currentTimeMillis() - oldestUnsynced >= SYNC_MILLIS) {
+                for (Outbox outbox : unsynced) {outbox.force();}
+                unsynced.clear();
+                unsyncedCount = 0;
+                
+                for (Runnable done : synced) {done.run();}
+                synced.clear();
+            }
+        }
+    }
+    
+    /**
+     * Waits, for up to a second, for the writer thread to force everything handed to
+     * it to the disk. Run when the process stops
+     */
+    static void sync() {
+        CountDownLatch synced = new CountDownLatch(1);
+        WORK.add(new Work(null, null, synced::countDown));
+        
+        try {
+            synced.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {}
+    }
+}
@@ -0,0 +1,54 @@
+import LanChatMessages.Message;
+import LanChatMessages.MessageTypes;
+import LanChatMetrics.SessionMetrics;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An OutgoingMessage is a {@link Message} waiting to be written by a
+ * {@link MessageSender}, along with the future that is completed once the message
+ * has been written to the socket, or has failed to be
+ */
+public class OutgoingMessage {
+    
+    /**
+     * The message to write
+     */
+    public final Message message;
+    
+    /**
+     * Completed once the message has been written to the socket. Completed
+     * exceptionally if it could not be
+     */
+    public final CompletableFuture<Void> sent = new CompletableFuture<>();
+    
+    /**
+     * The {@link System#nanoTime()} that the message was handed to the sender at
+     */
+    public final long queued = System.nanoTime();
+    
+    public OutgoingMessage(Message message) {
+        this.message = message;
+    }
+    
+    /**
+     * Marks the message as written, recording how long it waited to be if it is a
+     * {@link MessageTypes#MSG MSG}
+     *
+     * @param metrics The metrics of the connection that the message was written to
+     * @param now     The {@link System#nanoTime()} that the message was written at
+     */
+    public void written(SessionMetrics metrics, long now) {
+        if (message.type == MessageTypes.MSG) {metrics.queueWait.record(now - queued);}
+        sent.complete(null);
+    }
+    
+    /**
+     * Marks the message as not written
+     *
+     * @param e The reason that the message was not written
+     */
+    public void failed(Throwable e) {
+        sent.completeExceptionally(e);
+    }
+}
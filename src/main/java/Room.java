@@ -0,0 +1,73 @@
+import LanChatMessages.Message;
+import LanChatMessages.MessageTypes;
+import com.github.cliftonlabs.json_simple.JsonObject;
+import org.apache.logging.log4j.Level;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A Room is a group of {@link Session Sessions} of a {@link Hub}, whose
+ * {@link MessageTypes#MSG MSGs} are relayed to each other
+ */
+public class Room {
+    
+    /**
+     * The name that nodes use to join the room
+     */
+    public final String name;
+    
+    /**
+     * The sessions of the nodes in the room
+     */
+    private final Set<Session> members = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Creates an empty room
+     *
+     * @param name The name of the room
+     */
+    public Room(String name) {
+        this.name = name;
+    }
+    
+    public void join(Session session) {
+        members.add(session);
+    }
+    
+    public void leave(Session session) {
+        members.remove(session);
+    }
+    
+    public int size() {
+        return members.size();
+    }
+    
+    /**
+     * Relays a {@link MessageTypes#MSG MSG} to every member other than the one that
+     * sent it. The relayed message is created once and encoded once for each
+     * {@link LanChatMessages.WireFormat WireFormat} that the members use, and the same
+     * bytes are written to every member of that format. The relay does not wait for any member's socket, and
+     * members that cannot be sent to are left to close themselves
+     *
+     * @param from     The session that received the message
+     * @param content  The content of the message
+     * @param username The username of the node that wrote the message
+     */
+    public void relay(Session from, String content, String username) {
+        Message message = new Message(new JsonObject() {{
+            put("MsgType", "MSG");
+            put("Content", content);
+            put("Username", username);
+        }}, 3);
+        for (Session member : members) {
+            if (member == from) {continue;}
+            
+            message.toSendableBytes(member.getWireFormat());
+            member.relay(message).exceptionally(e -> {
+                ExceptionLogger.log(Level.INFO, "Couldn't relay to a member of " + name, e);
+                return null;
+            });
+        }
+    }
+}
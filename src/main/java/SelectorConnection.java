@@ -0,0 +1,754 @@
+import LanChatMessages.FrameCompressor;
+import LanChatMessages.FrameDecoder;
+import LanChatMessages.FrameEncoder;
+import LanChatMessages.InvalidMessageException;
+import LanChatMessages.Message;
+import LanChatMessages.MessageTypes;
+import LanChatMessages.WireFormat;
+import LanChatMetrics.SessionMetrics;
+import com.github.cliftonlabs.json_simple.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A SelectorConnection is a single non-blocking connection driven by a
+ * {@link SelectorEngine}. It is both the {@link MessageListener} and the
+ * {@link MessageSender} of the connection, so {@link Transport#SELECTOR} hands the
+ * same instance to the manager for both. <br>
+ * Unless stated otherwise, the methods that are not part of those interfaces must
+ * only be called by the engine's thread
+ */
+public class SelectorConnection implements MessageSender, MessageListener {
+    
+    private static final Logger logger = LogManager.getLogger(SelectorConnection.class);
+    
+    /**
+     * The {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK} sent by every connection.
+     * Its bytes are only encoded once
+     */
+    private static final Message WATCHDOG_KICK = new Message(new JsonObject() {{
+        put("MsgType", "WATCHDOG_KICK");
+    }}, 3);
+    
+    /**
+     * The engine that drives the connection
+     */
+    private final SelectorEngine engine;
+    
+    /**
+     * The manager to relay messages and report exceptions to
+     */
+    private final Managerable callback;
+    
+    /**
+     * The metrics of the callback's connection
+     */
+    private final SessionMetrics metrics;
+    
+    /**
+     * The channel that is waiting for a node to connect. This is {@code null} once connected
+     */
+    private ServerSocketChannel serverChannel;
+    
+    /**
+     * The connected channel. This is {@code null} until a node has connected
+     */
+    private volatile SocketChannel channel;
+    
+    /**
+     * The {@link #channel}'s registration with the engine's selector
+     */
+    private SelectionKey key;
+    
+    /**
+     * Holds received bytes until a whole message has arrived
+     */
+    private final FrameDecoder decoder;
+    
+    /**
+     * Messages waiting to be written to the {@link #channel}. It holds at most the
+     * {@link ConnectionOptions#queueCapacity}, beyond which the {@link #backPressure} applies
+     */
+    private final Queue<OutgoingMessage> writeQueue = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The room left in the {@link #writeQueue}. A permit is taken for every message
+     * added to it and given back once the engine takes the message off it
+     */
+    private final Semaphore room;
+    
+    /**
+     * What the connection does when a message is sent while the {@link #writeQueue} is full
+     */
+    private final BackPressure backPressure;
+    
+    /**
+     * Messages sent under {@link BackPressure#BLOCK BLOCK} while the {@link #writeQueue}
+     * was full, by {@link #sendAsync(Message) sendAsync()} or by the engine's own thread.
+     * Neither may wait for room, so the engine moves them onto the write queue, in
+     * order, as room is made
+     */
+    private final Queue<OutgoingMessage> blocked = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The message taken off the {@link #writeQueue} that did not fit in the last
+     * buffer, so it starts the next one
+     */
+    private OutgoingMessage held;
+    
+    /**
+     * The messages that have been encoded into {@link #writing}. They are finished
+     * before the {@link #held} message and any message of the {@link #writeQueue}
+     */
+    private final List<OutgoingMessage> inBuffer = new ArrayList<>();
+    
+    /**
+     * The number of messages waiting to be written, in the {@link #blocked} messages,
+     * the {@link #writeQueue}, the {@link #held} message and the {@link #inBuffer}.
+     * Counted as they are queued and written, so it can be read by any thread
+     */
+    private final LongAdder depth = new LongAdder();
+    
+    /**
+     * The bytes of the {@link #inBuffer} messages that the channel has not yet taken.
+     * This is one of the engine's pooled write buffers, unless a single message was
+     * too large to fit in one
+     */
+    private ByteBuffer writing;
+    
+    /**
+     * Indicates if a flush has already been handed to the engine, so bursts of
+     * messages only wake the engine once
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    
+    /**
+     * The format that messages are written in
+     *
+     * @see #setWireFormat(WireFormat)
+     */
+    private volatile WireFormat wireFormat = WireFormat.JSON;
+    
+    /**
+     * Indicates if the frames are compressed before being written
+     *
+     * @see #setCompressed(boolean)
+     */
+    private volatile boolean compressed = false;
+    
+    /**
+     * Compresses the frames once the connection is {@link #compressed}
+     */
+    private FrameCompressor compressor;
+    
+    /**
+     * The closed boolean indicates if the connection is not ready to send messages
+     */
+    private volatile boolean closed = false;
+    
+    /**
+     * Indicates if {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICKs} are being sent
+     *
+     * @see #start()
+     */
+    private volatile boolean started = false;
+    
+    /**
+     * The number of milliseconds of not writing after which a
+     * {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK} is sent
+     */
+    private volatile long kickRate = 0;
+    
+    /**
+     * Notices when nothing has been read for the {@link #setTimeout(int) timeout}. Its
+     * timeouts are handed to the engine's thread
+     */
+    private final Watchdog.Watch watch;
+    
+    /**
+     * The {@link System#nanoTime()} of the last write
+     */
+    private long lastWrite;
+    
+    /**
+     * Creates a connection that is not yet registered with the engine
+     *
+     * @param engine   The engine that will drive the connection
+     * @param callback The manager to callback to
+     * @param options  The settings of the connection
+     */
+    SelectorConnection(SelectorEngine engine, Managerable callback, ConnectionOptions options) {
+        this.engine = engine;
+        this.callback = callback;
+        this.metrics = callback.getMetrics();
+        this.backPressure = options.backPressure;
+        room = new Semaphore(options.queueCapacity);
+        decoder = new FrameDecoder(options.maxFrameSize);
+        watch = Watchdog.shared().watch(this::timedOut, engine::execute);
+    }
+    
+    /**
+     * Registers a server channel, which will accept a single node
+     *
+     * @param selector      The engine's selector
+     * @param serverChannel The bound server channel
+     */
+    void registerServer(Selector selector, ServerSocketChannel serverChannel) {
+        this.serverChannel = serverChannel;
+        
+        try {
+            if (closed) {
+                serverChannel.close();
+                return;
+            }
+            
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT, this);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+    
+    /**
+     * Registers a connected channel and begins reading from it
+     *
+     * @param selector The engine's selector
+     * @param channel  The connected channel
+     */
+    void register(Selector selector, SocketChannel channel) {
+        this.channel = channel;
+        
+        try {
+            if (closed) {
+                channel.close();
+                return;
+            }
+            
+            channel.configureBlocking(false);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            
+            lastWrite = System.nanoTime();
+            flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+    
+    /**
+     * Handles the readiness of one of the connection's channels
+     *
+     * @param key The ready key
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isAcceptable()) {
+                accept(key.selector());
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+    
+    /**
+     * Accepts the connecting node and stops listening for more
+     *
+     * @param selector The engine's selector
+     * @throws IOException If an IOException occurs while accepting
+     */
+    private void accept(Selector selector) throws IOException {
+        SocketChannel accepted = serverChannel.accept();
+        if (accepted == null) {return;}
+        
+        serverChannel.close();
+        serverChannel = null;
+        
+        logger.info("Made connection: {}", accepted.socket().getInetAddress());
+        register(selector, accepted);
+    }
+    
+    /**
+     * Reads what is available from the channel and relays every whole message
+     * to the manager
+     *
+     * @throws IOException If an IOException occurs while reading
+     */
+    private void read() throws IOException {
+        int read = decoder.readFrom(channel);
+        if (read == -1) {throw new EOFException("The other node closed the connection");}
+        
+        watch.seen();
+        metrics.bytesIn.add(read);
+        
+        while (!closed) {
+            Message message;
+            try {
+                message = decoder.next(callback.getConnectionStage());
+            } catch (InvalidMessageException e) {
+                metrics.parseFailures.increment();
+                reportException(e); // Invalid messages do not close the connection
+                continue;
+            }
+            if (message == null) {break;}
+            
+            metrics.framesIn.increment();
+            WireTrace.received(message);
+            callback.messageReceived(message);
+        }
+    }
+    
+    /**
+     * Writes as much of the queued messages as the channel will take, and only
+     * waits for the channel to be writable if some are left over. The future of
+     * each message is completed once all of its bytes have been taken
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            if (closed) {failQueued();} // Messages queued while closing
+            return;
+        }
+        
+        try {
+            while (true) {
+                if (writing == null) {
+                    admitBlocked();
+                    if (held == null && writeQueue.isEmpty()) {break;}
+                    writing = encodeQueued();
+                }
+                
+                metrics.bytesOut.add(channel.write(writing));
+                if (writing.hasRemaining()) {break;}
+                
+                releaseWriting();
+                lastWrite = System.nanoTime();
+                metrics.framesOut.add(inBuffer.size());
+                depth.add(-inBuffer.size());
+                for (OutgoingMessage written : inBuffer) {
+                    written.written(metrics, lastWrite);
+                }
+                inBuffer.clear();
+            }
+            
+            key.interestOps(writing == null ?
+                    SelectionKey.OP_READ :
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+    
+    /**
+     * Encodes as many queued messages as fit into one of the engine's write buffers,
+     * moving them to the {@link #inBuffer}. A message that is too large for an empty
+     * buffer is sent from its own {@link Message#toSendableBytes(WireFormat) bytes} instead.
+     * Once the connection is compressed the frames are compressed into the
+     * {@link #compressor}'s buffer, and the write buffer goes straight back to the pool
+     *
+     * @return The bytes to write, ready to be read
+     */
+    private ByteBuffer encodeQueued() {
+        ByteBuffer buffer = engine.writeBuffers.acquire();
+        WireFormat format = wireFormat;
+        
+        OutgoingMessage next;
+        while ((next = nextQueued()) != null) {
+            if (!FrameEncoder.encode(next.message, format, buffer)) {
+                if (!inBuffer.isEmpty()) {
+                    held = next;
+                    break;
+                }
+                
+                engine.writeBuffers.release(buffer);
+                inBuffer.add(next);
+                return compress(ByteBuffer.wrap(next.message.toSendableBytes(format)));
+            }
+            
+            inBuffer.add(next);
+        }
+        
+        ByteBuffer frames = compress(buffer.flip());
+        if (frames != buffer) {engine.writeBuffers.release(buffer);}
+        
+        return frames;
+    }
+    
+    /**
+     * Takes the next message to write: the {@link #held} message, or else the head of
+     * the {@link #writeQueue}, whose room is given back. The head is taken rather than
+     * looked at, as {@link BackPressure#DROP_OLDEST DROP_OLDEST} may take it from
+     * another thread
+     *
+     * @return The message, or {@code null} if there is none
+     */
+    private OutgoingMessage nextQueued() {
+        OutgoingMessage next = held;
+        if (next != null) {
+            held = null;
+            return next;
+        }
+        
+        next = writeQueue.poll();
+        if (next != null) {room.release();}
+        return next;
+    }
+    
+    /**
+     * Moves the {@link #blocked} messages onto the {@link #writeQueue}, in order, while
+     * it has room
+     */
+    private void admitBlocked() {
+        while (!blocked.isEmpty() && room.tryAcquire()) {
+            writeQueue.add(blocked.poll());
+        }
+    }
+    
+    /**
+     * Compresses encoded frames if the connection is {@link #compressed}
+     *
+     * @param frames The encoded frames, ready to be read
+     * @return The bytes to write, ready to be read. These are the frames themselves if
+     * the connection is not compressed
+     */
+    private ByteBuffer compress(ByteBuffer frames) {
+        if (!compressed) {return frames;}
+        
+        if (compressor == null) {compressor = new FrameCompressor();}
+        return compressor.compress(frames);
+    }
+    
+    /**
+     * Hands the {@link #writing} buffer back to the engine's pool. Buffers that did not
+     * come from the pool, such as the {@link #compressor}'s, are ignored by it
+     */
+    private void releaseWriting() {
+        engine.writeBuffers.release(writing);
+        writing = null;
+    }
+    
+    /**
+     * Fires the connection's kick timer: a {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK}
+     * if nothing has been written for the {@link #kickRate}. Read timeouts are left to the {@link #watch}.
+     * Called by the engine once the time it was last given is due
+     *
+     * @param now The current {@link System#nanoTime()}
+     * @return The nanoseconds until the connection's nearest timer is due or
+     * {@link Long#MAX_VALUE} if it has none
+     */
+    long pollTimers(long now) {
+        if (closed) {return Long.MAX_VALUE;}
+        if (key == null) {return TimeUnit.MILLISECONDS.toNanos(kickRate);} // Checked again once connected
+        long wait = Long.MAX_VALUE;
+        
+        if (started && kickRate > 0) {
+            long due = lastWrite + TimeUnit.MILLISECONDS.toNanos(kickRate);
+            
+            if (now - due >= 0) {
+                lastWrite = now;
+                // A full queue is already waiting to be written, so needs no kick
+                if (room.tryAcquire()) {
+                    depth.increment();
+                    writeQueue.add(new OutgoingMessage(WATCHDOG_KICK));
+                }
+                flush();
+                due = now + TimeUnit.MILLISECONDS.toNanos(kickRate);
+            }
+            wait = Math.min(wait, due - now);
+        }
+        
+        return wait;
+    }
+    
+    /**
+     * Closes the connection because of an exception and reports it to the manager,
+     * unless the connection had already been closed
+     *
+     * @param e The exception
+     */
+    private void fail(IOException e) {
+        boolean wasClosed = closed;
+        closeChannels();
+        
+        if (!wasClosed) {callback.exceptionEncountered(e);}
+    }
+    
+    /**
+     * Reports an exception to the manager only if the connection is not closed
+     *
+     * @param e The exception to report
+     */
+    private void reportException(Exception e) {
+        if (!closed) {callback.exceptionEncountered(e);}
+    }
+    
+    /**
+     * Fails the future of every message that is left to write
+     */
+    private void failQueued() {
+        SocketException closedException = new SocketException("The Sender is closed");
+        if (writing != null) {releaseWriting();}
+        
+        for (OutgoingMessage dropped : inBuffer) {
+            dropped.failed(closedException);
+        }
+        depth.add(-inBuffer.size());
+        inBuffer.clear();
+        if (held != null) {
+            depth.decrement();
+            held.failed(closedException);
+            held = null;
+        }
+        
+        OutgoingMessage dropped;
+        while ((dropped = writeQueue.poll()) != null) {
+            depth.decrement();
+            room.release(); // Releases threads waiting for room, whose messages are failed by the next flush
+            dropped.failed(closedException);
+        }
+        while ((dropped = blocked.poll()) != null) {
+            depth.decrement();
+            dropped.failed(closedException);
+        }
+    }
+    
+    /**
+     * Closes both channels immediately, failing anything left to write
+     */
+    private void closeChannels() {
+        closed = true;
+        watch.cancel();
+        failQueued();
+        
+        try {
+            if (serverChannel != null) {serverChannel.close();}
+        } catch (IOException ignored) {}
+        try {
+            if (channel != null) {channel.close();}
+        } catch (IOException ignored) {}
+    }
+    
+    /**
+     * Queues a message to be written by the engine. If the queue is full the
+     * {@link #backPressure} applies, except that the engine's own thread never waits
+     * for room. This may be called by any thread
+     *
+     * @param message The message to send
+     * @throws SocketException If the connection is closed
+     * @throws InterruptedIOException If interrupted while waiting for room in the queue
+     * @throws IllegalStateException If the queue is full and the back pressure is
+     * {@link BackPressure#FAIL_FAST FAIL_FAST}
+     */
+    @Override
+    public void sendMessage(Message message) throws IOException {
+        if (closed) {throw new SocketException("The Sender is closed");}
+        
+        queue(new OutgoingMessage(message), !engine.inEngineThread());
+    }
+    
+    /**
+     * Queues a message to be written by the engine. This may be called by any thread
+     * and never waits, as the engine writes without blocking. If the queue is full
+     * under {@link BackPressure#BLOCK BLOCK}, the message waits for room without the
+     * calling thread waiting
+     *
+     * @param message The message to send
+     * @return A future completed once the message has been written to the channel
+     */
+    @Override
+    public CompletableFuture<Void> sendAsync(Message message) {
+        OutgoingMessage outgoing = new OutgoingMessage(message);
+        
+        if (closed) {
+            outgoing.failed(new SocketException("The Sender is closed"));
+        } else {
+            try {
+                queue(outgoing, false);
+            } catch (IOException | IllegalStateException e) {
+                outgoing.failed(e);
+            }
+        }
+        
+        return outgoing.sent;
+    }
+    
+    /**
+     * Adds a message to the {@link #writeQueue}, applying the {@link #backPressure}
+     * if it is full, and hands a flush to the engine unless one is already waiting
+     *
+     * @param outgoing The message to queue
+     * @param mayWait  True if the calling thread may wait for room under
+     *                 {@link BackPressure#BLOCK BLOCK}. If false the message is
+     *                 {@link #blocked} instead
+     * @throws InterruptedIOException If interrupted while waiting for room in the queue
+     * @throws IllegalStateException If the queue is full and the back pressure is
+     * {@link BackPressure#FAIL_FAST FAIL_FAST}
+     */
+    private void queue(OutgoingMessage outgoing, boolean mayWait) throws InterruptedIOException {
+        switch (backPressure) {
+            case BLOCK -> {
+                if (mayWait) {
+                    try {
+                        room.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting to send");
+                    }
+                } else if (!blocked.isEmpty() || !room.tryAcquire()) {
+                    WireTrace.sent(outgoing.message);
+                    depth.increment();
+                    blocked.add(outgoing);
+                    scheduleFlush();
+                    return;
+                }
+            } case DROP_OLDEST -> {
+                while (!room.tryAcquire()) {
+                    OutgoingMessage dropped = writeQueue.poll();
+                    
+                    if (dropped != null) {
+                        depth.decrement();
+                        room.release();
+                        dropped.failed(new IllegalStateException("Dropped from the full send queue"));
+                    } else {
+                        Thread.onSpinWait(); // Another thread has taken the room but not yet queued
+                    }
+                }
+            } case FAIL_FAST -> {
+                if (!room.tryAcquire()) {
+                    throw new IllegalStateException("The send queue is full");
+                }
+            }
+        }
+        
+        WireTrace.sent(outgoing.message);
+        depth.increment();
+        writeQueue.add(outgoing);
+        scheduleFlush();
+    }
+    
+    /**
+     * Hands a flush to the engine, unless one is already waiting. Once the connection
+     * is closed the flush fails whatever was queued
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            engine.execute(this::flush);
+        }
+    }
+    
+    /**
+     * Starts sending {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICKs}. This may be
+     * called by any thread
+     */
+    @Override
+    public void start() {
+        if (closed) {throw new IllegalStateException("Sender is closed");}
+        
+        engine.execute(() -> {
+            lastWrite = System.nanoTime();
+            
+            // Scheduled once, as the engine schedules the connection again after every timer
+            if (!started && kickRate > 0) {engine.schedule(this, lastWrite + TimeUnit.MILLISECONDS.toNanos(kickRate));}
+            started = true;
+        });
+    }
+    
+    /**
+     * Returns the number of messages waiting to be written. This may be called by any thread
+     *
+     * @return The queue depth
+     */
+    @Override
+    public int getQueueDepth() {
+        return depth.intValue();
+    }
+    
+    /**
+     * {@inheritDoc} This may be called by any thread
+     */
+    @Override
+    public void setWireFormat(WireFormat format) {
+        wireFormat = format;
+    }
+    
+    /**
+     * {@inheritDoc} This may be called by any thread
+     */
+    @Override
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+    
+    /**
+     * Sets how often {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICKs} will be sent
+     * once {@link #start() started}. This may be called by any thread
+     *
+     * @param kickRate The kick rate in milliseconds
+     */
+    void setKickRate(long kickRate) {
+        this.kickRate = kickRate;
+    }
+    
+    /**
+     * Sets the length of silence after which the manager is told through
+     * {@link Managerable#connectionTimedOut()}. This may be called by any thread
+     *
+     * @param timeout Timeout length in milliseconds. 0 disables the timeout
+     */
+    @Override
+    public void setTimeout(int timeout) {
+        watch.setTimeout(timeout);
+    }
+    
+    /**
+     * Tells the manager that the {@link #watch} has timed out, unless the connection
+     * is closed. Runs on the engine's thread
+     */
+    private void timedOut() {
+        if (!closed) {callback.connectionTimedOut();}
+    }
+    
+    @Override
+    public String getIP() {
+        return channel.socket().getInetAddress().getHostAddress();
+    }
+    
+    /**
+     * Closes the connection. Messages that were queued before the close are still
+     * written if the channel will take them without waiting. This may be called
+     * by any thread
+     */
+    @Override
+    public void close() {
+        if (closed) {return;}
+        closed = true;
+        watch.cancel();
+        
+        engine.execute(() -> {
+            flush();
+            closeChannels();
+        });
+    }
+}
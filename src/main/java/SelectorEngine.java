@@ -0,0 +1,297 @@
+import LanChatMessages.BufferPool;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The SelectorEngine drives any number of {@link SelectorConnection SelectorConnections}
+ * and {@link SelectorServer SelectorServers} from a single thread using a {@link Selector}.
+ * Reads, writes, accepts and
+ * {@link LanChatMessages.MessageTypes#WATCHDOG_KICK WATCHDOG_KICKs} of every connection
+ * are all handled by the engine's {@link #thread}, and read timeouts by the shared
+ * {@link Watchdog}, so an idle connection costs no thread at all. <br>
+ * Everything that touches the selector or a connection's channel state must run on the
+ * engine's thread, other threads hand work over using {@link #execute(Runnable)}
+ */
+public class SelectorEngine implements AutoCloseable {
+    
+    private static final Logger logger = LogManager.getLogger(SelectorEngine.class);
+    
+    /**
+     * The engine used by {@link Transport#SELECTOR}. Created on first use
+     */
+    private static SelectorEngine shared;
+    
+    /**
+     * The selector that all the engine's channels are registered with
+     */
+    private final Selector selector;
+    
+    /**
+     * Work handed over by other threads, run by the {@link #thread} before every select
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The kick timers of the started connections, nearest first, so a wakeup only
+     * touches the connections that are due. Only used by the {@link #thread}
+     */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>((a, b) -> Long.compare(a.due - b.due, 0));
+    
+    /**
+     * The thread that runs the select loop
+     */
+    private final Thread thread;
+    
+    /**
+     * The closed boolean indicates if the engine has been stopped
+     */
+    private volatile boolean closed = false;
+    
+    /**
+     * The direct buffers that the engine's connections encode outgoing messages
+     * into. Only used by the {@link #thread}, so a handful is all it ever needs
+     */
+    final BufferPool writeBuffers = new BufferPool(64 * 1024, true, 8);
+    
+    /**
+     * Creates an engine and starts its {@link #thread}
+     *
+     * @param name The name of the engine's thread
+     * @throws IOException If the selector could not be opened
+     */
+    public SelectorEngine(String name) throws IOException {
+        selector = Selector.open();
+        
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Returns the engine shared by every {@link Transport#SELECTOR} connection
+     * in the process, creating it if needed
+     *
+     * @return The shared engine
+     * @throws IOException If the engine could not be created
+     */
+    public static synchronized SelectorEngine shared() throws IOException {
+        if (shared == null) {
+            shared = new SelectorEngine("SelectorEngine");
+        }
+        
+        return shared;
+    }
+    
+    /**
+     * Begins listening for a single connection on the port. The returned connection
+     * will begin relaying messages to the callback once a node has connected
+     *
+     * @param port     The port to listen on
+     * @param callback The manager to callback to
+     * @param options  The settings of the connection
+     * @return The connection waiting to be connected to
+     * @throws IOException If the port could not be bound
+     */
+    public SelectorConnection listen(int port, Managerable callback, ConnectionOptions options) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        
+        SelectorConnection connection = new SelectorConnection(this, callback, options);
+        execute(() -> connection.registerServer(selector, serverChannel));
+        
+        logger.info("Listening on port {}", port);
+        return connection;
+    }
+    
+    /**
+     * Begins accepting every node that connects to the port. Each accepted connection
+     * is given to a new session from the factory
+     *
+     * @param port           The port to listen on
+     * @param options        The settings of the accepted connections
+     * @param sessionFactory Creates the session of each accepted connection
+     * @return The server, which stops accepting when closed
+     * @throws IOException If the port could not be bound
+     */
+    public SelectorServer serve(int port, ConnectionOptions options, Supplier<Session> sessionFactory)
+            throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        
+        SelectorServer server = new SelectorServer(this, serverChannel, options, sessionFactory);
+        execute(() -> server.register(selector));
+        
+        return server;
+    }
+    
+    /**
+     * Connects to a listening node. The connection is made before this returns,
+     * after which the connection is handed to the engine
+     *
+     * @param ipAddress The IP address of the listening node
+     * @param port      The port of the listening node
+     * @param callback  The manager to callback to
+     * @param options   The settings of the connection, including how often
+     *                  {@link LanChatMessages.MessageTypes#WATCHDOG_KICK WATCHDOG_KICKs} will be
+     *                  sent once the connection is {@link SelectorConnection#start() started}
+     * @return The connected connection
+     * @throws IOException If the connection could not be made
+     */
+    public SelectorConnection connect(String ipAddress, int port, Managerable callback, ConnectionOptions options)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(ipAddress, port));
+        
+        SelectorConnection connection = new SelectorConnection(this, callback, options);
+        connection.setKickRate(options.kickRate);
+        execute(() -> connection.register(selector, channel));
+        
+        return connection;
+    }
+    
+    /**
+     * Runs the task on the engine's {@link #thread} before its next select
+     *
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+    
+    /**
+     * Fires the connection's timers once the time is due. Must be called by the
+     * engine's {@link #thread}
+     *
+     * @param connection The connection
+     * @param due        The {@link System#nanoTime()} that the connection's nearest timer is due at
+     */
+    void schedule(SelectorConnection connection, long due) {
+        timers.add(new Timer(connection, due));
+    }
+    
+    /**
+     * Indicates if the calling thread is the engine's {@link #thread}, which must never
+     * wait on a connection
+     *
+     * @return True if called by the engine's thread
+     */
+    boolean inEngineThread() {
+        return Thread.currentThread() == thread;
+    }
+    
+    /**
+     * Stops the engine's {@link #thread} and closes the selector. Connections
+     * driven by the engine will no longer be serviced
+     */
+    @Override
+    public void close() {
+        closed = true;
+        
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+    
+    /**
+     * The select loop. Each pass runs the handed over {@link #tasks}, fires the
+     * due {@link #timers}, then waits until a channel is ready or the nearest timer
+     * is due
+     */
+    private void run() {
+        while (!closed) {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                
+                long wait = pollTimers();
+                selector.select(wait == Long.MAX_VALUE ? 0 :
+                        Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    
+                    try {
+                        if (key.attachment() instanceof SelectorServer server) {
+                            server.accept(selector);
+                        } else {
+                            ((SelectorConnection) key.attachment()).handle(key);
+                        }
+                    } catch (IOException e) {
+                        ExceptionLogger.log(Level.WARN, "Selector server failed to accept", e);
+                    } catch (RuntimeException e) {
+                        ExceptionLogger.log(Level.ERROR, "Selector connection failed", e);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                ExceptionLogger.log(Level.ERROR, "Selector loop failed", e);
+            }
+        }
+    }
+    
+    /**
+     * Fires the due {@link #timers}, scheduling each connection again for its next timer
+     *
+     * @return The nanoseconds until the nearest timer is due or {@link Long#MAX_VALUE}
+     * if there are no timers
+     */
+    private long pollTimers() {
+        long now = System.nanoTime();
+        
+        Timer timer;
+        while ((timer = timers.peek()) != null && now - timer.due >= 0) {
+            timers.poll();
+            
+            try {
+                long wait = timer.connection.pollTimers(now);
+                if (wait != Long.MAX_VALUE) {schedule(timer.connection, now + wait);}
+            } catch (RuntimeException e) {
+                ExceptionLogger.log(Level.ERROR, "Selector connection failed", e);
+            }
+        }
+        
+        return timer == null ? Long.MAX_VALUE : timer.due - now;
+    }
+    
+    /**
+     * A connection's nearest timer
+     *
+     * @param connection The connection
+     * @param due        The {@link System#nanoTime()} that the timer is due at
+     */
+    private record Timer(SelectorConnection connection, long due) {}
+}
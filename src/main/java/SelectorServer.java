@@ -0,0 +1,105 @@
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Supplier;
+
+/**
+ * A SelectorServer accepts every node that connects to its port, on the thread of
+ * a {@link SelectorEngine}. Each accepted connection becomes a {@link SelectorConnection}
+ * of a new {@link Session}
+ *
+ * @see Transport#serve(int, ConnectionOptions, Supplier)
+ */
+public class SelectorServer implements AutoCloseable {
+    
+    private static final Logger logger = LogManager.getLogger(SelectorServer.class);
+    
+    /**
+     * The engine that drives the server and its connections
+     */
+    private final SelectorEngine engine;
+    
+    /**
+     * The bound channel that connections are accepted from
+     */
+    private final ServerSocketChannel serverChannel;
+    
+    /**
+     * Creates the session of each accepted connection
+     */
+    private final Supplier<Session> sessionFactory;
+    
+    /**
+     * The settings of the accepted connections
+     */
+    private final ConnectionOptions options;
+    
+    /**
+     * Creates a server that is not yet registered with the engine
+     *
+     * @param engine         The engine that will drive the server
+     * @param serverChannel  The bound server channel
+     * @param options        The settings of the accepted connections
+     * @param sessionFactory Creates the session of each accepted connection
+     */
+    SelectorServer(SelectorEngine engine, ServerSocketChannel serverChannel, ConnectionOptions options,
+                   Supplier<Session> sessionFactory) {
+        this.engine = engine;
+        this.serverChannel = serverChannel;
+        this.options = options;
+        this.sessionFactory = sessionFactory;
+    }
+    
+    /**
+     * Registers the server channel with the engine's selector. Must be called by
+     * the engine's thread
+     *
+     * @param selector The engine's selector
+     */
+    void register(Selector selector) {
+        try {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT, this);
+        } catch (IOException e) {
+            ExceptionLogger.log(Level.WARN, e);
+            close();
+        }
+    }
+    
+    /**
+     * Accepts every waiting node. The session is given its connection before the
+     * connection is registered, so no message can arrive before the session has its
+     * listener. Must be called by the engine's thread
+     *
+     * @param selector The engine's selector
+     * @throws IOException If an IOException occurs while accepting
+     */
+    void accept(Selector selector) throws IOException {
+        SocketChannel accepted;
+        
+        while ((accepted = serverChannel.accept()) != null) {
+            logger.info("Made connection: {}", accepted.socket().getInetAddress());
+            
+            Session session = sessionFactory.get();
+            SelectorConnection connection = new SelectorConnection(engine, session, options);
+            session.accepted(connection);
+            connection.register(selector, accepted);
+        }
+    }
+    
+    /**
+     * Stops accepting connections. Connections that have already been accepted are
+     * not closed
+     */
+    @Override
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {}
+    }
+}
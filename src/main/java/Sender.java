@@ -1,12 +1,29 @@
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
+import LanChatMessages.BufferPool;
+import LanChatMessages.FrameCompressor;
+import LanChatMessages.FrameEncoder;
 import LanChatMessages.Message;
 import LanChatMessages.MessageTypes;
+import LanChatMessages.WireFormat;
+import LanChatMetrics.SendEvent;
+import LanChatMetrics.SessionMetrics;
 import com.github.cliftonlabs.json_simple.JsonObject;
+import org.apache.logging.log4j.Level;
 
 /**
  * The Sender class is responsible for sending {@link Message Messages} through
@@ -15,7 +32,23 @@ import com.github.cliftonlabs.json_simple.JsonObject;
  * The socket of Sender is final and if the Sender is closed then a new sender must
  * be created as it cannot be reopened.<br>
  */
-public class Sender implements AutoCloseable {
+public final class Sender implements MessageSender {
+    
+    /**
+     * The buffers that senders encode their batches into. A socket's stream can
+     * only take bytes from an array, so these are heap buffers
+     */
+    private static final BufferPool WRITE_BUFFERS = new BufferPool(16 * 1024, false, 32);
+    
+    /**
+     * How long the thread running the waiting {@link #sendAsync(Message) sendAsync()}
+     * work stays idle before it ends, in milliseconds
+     */
+    private static final long ASYNC_IDLE_MILLIS = 1000;
+    
+    private static final Message WATCHDOG_KICK = new Message(new JsonObject() {{
+        put("MsgType", "WATCHDOG_KICK");
+    }}, 3);
     
     /**
      * The socket which the sender will use
@@ -23,22 +56,60 @@ public class Sender implements AutoCloseable {
     private final Socket socket;
     
     /**
-     * The output stream that the socket will be wrapped in for sending messages
+     * The output stream of the socket. It is not buffered, as whole batches are
+     * encoded into a buffer from the {@link #WRITE_BUFFERS} before being written
      */
     private final DataOutputStream outputStream;
     
+    /**
+     * The format that messages are written in
+     *
+     * @see #setWireFormat(WireFormat)
+     */
+    private volatile WireFormat wireFormat = WireFormat.JSON;
+    
+    /**
+     * Indicates if the frames are compressed before being written
+     *
+     * @see #setCompressed(boolean)
+     */
+    private volatile boolean compressed = false;
+    
+    /**
+     * Compresses the frames once the connection is {@link #compressed}. Guarded by
+     * the {@link #writeLock}
+     */
+    private FrameCompressor compressor;
+    
     /**
      * An instance of the manager that the sender will use to report exceptions that
      * occur in the Sender's thread
      */
     private final Managerable callback;
     
+    /**
+     * The metrics of the callback's connection
+     */
+    private final SessionMetrics metrics;
+    
     /**
      * The number of milliseconds that the Sender will wait after sending a message
      * that a {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK}
      */
     private final long kickRate;
     
+    /**
+     * The {@link System#nanoTime()} that a frame was last written at. A
+     * {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK} is only needed once nothing,
+     * including messages sent straight to the socket, has been written for the {@link #kickRate}
+     */
+    private volatile long lastWrite = System.nanoTime();
+    
+    /**
+     * What the sender does when a message is sent while the {@link #messageQueue} is full
+     */
+    private final BackPressure backPressure;
+    
     /**
      * The active boolean indicates if the Sender's {@link #thread} is running.
      * If active is false but the sender is not closed then the message will be written
@@ -47,20 +118,48 @@ public class Sender implements AutoCloseable {
      * @see #closed
      * @see #start()
      */
-    private boolean active = false;
+    private volatile boolean active = false;
     
     /**
      * The closed boolean indicates if the socket is not ready to send messages.
      * An exception must be thrown if connected if true, when a message is attempted to be sent.
      */
-    private boolean closed;
+    private volatile boolean closed;
     
     /**
      * Queue that messages are writen to, that are to be sent. The queue is only used
      * when the Sender is {@link #active}. The queue is consumed by the {@link #thread}.
-     * Maximum capacity is 1
+     * Maximum capacity is the {@link ConnectionOptions#queueCapacity}, beyond which the
+     * {@link #backPressure} applies
+     */
+    private final LinkedBlockingQueue<OutgoingMessage> messageQueue;
+    
+    /**
+     * The messages taken from the {@link #messageQueue} in one wakeup of the
+     * {@link #thread}, which are written together. Only used by the thread
      */
-    private final LinkedBlockingQueue<Message> messageQueue = new LinkedBlockingQueue<>(1);
+    private final ArrayList<OutgoingMessage> batch = new ArrayList<>();
+    
+    /**
+     * Runs the work of {@link #sendAsync(Message) sendAsync()} that has to wait, one
+     * piece at a time, on a single thread from the sender's thread factory. The thread
+     * ends once it has been idle for {@link #ASYNC_IDLE_MILLIS}
+     */
+    private final Executor asyncExecutor;
+    
+    /**
+     * The last piece of {@link #sendAsync(Message) sendAsync()} work that had to wait,
+     * either for room in the queue or for a direct write. Later asynchronous sends run
+     * after it so that messages stay in order. Guarded by the {@link #stateLock}
+     */
+    private CompletableFuture<Void> waiting = CompletableFuture.completedFuture(null);
+    
+    /**
+     * The room left for {@link #waiting} work. At most {@link ConnectionOptions#queueCapacity}
+     * asynchronous sends wait behind the queue, beyond which they fail as
+     * {@link BackPressure#FAIL_FAST FAIL_FAST} does
+     */
+    private final Semaphore parking;
     
     
     /**
@@ -75,14 +174,45 @@ public class Sender implements AutoCloseable {
      * @throws IOException if an IOException occurs
      */
     public Sender(String ipAddress, int port, Managerable callback, long kickRate) throws IOException {
+        this(ipAddress, port, callback,
+                new ConnectionOptions(kickRate,
+                        ConnectionOptions.DEFAULT.queueCapacity,
+                        ConnectionOptions.DEFAULT.backPressure,
+                        ConnectionOptions.DEFAULT.maxFrameSize,
+                        ConnectionOptions.DEFAULT.wireFormat,
+                        ConnectionOptions.DEFAULT.compress,
+                        ConnectionOptions.DEFAULT.outboxDirectory,
+                        ConnectionOptions.DEFAULT.resumeMillis),
+                Thread::new);
+    }
+    
+    /**
+     * Creates a sender instance, whose {@link #thread} is created by the thread
+     * factory. This does not start the {@link #thread}
+     *
+     * @param ipAddress     the IP address of the host
+     * @param port          the port number of the host
+     * @param callback      the callback for exception reporting
+     * @param options       the kick rate and queue settings of the sender
+     * @param threadFactory the factory that creates the sender thread
+     * @throws IOException if an IOException occurs
+     */
+    public Sender(String ipAddress, int port, Managerable callback, ConnectionOptions options,
+                  ThreadFactory threadFactory) throws IOException {
         this.callback = callback;
-        this.kickRate = kickRate;
+        this.metrics = callback.getMetrics();
+        this.kickRate = options.kickRate;
+        this.backPressure = options.backPressure;
+        messageQueue = new LinkedBlockingQueue<>(options.queueCapacity);
+        asyncExecutor = serialExecutor(threadFactory);
+        parking = new Semaphore(options.queueCapacity);
         
         
         socket = new Socket(ipAddress, port);
         
         outputStream = new DataOutputStream(socket.getOutputStream());
         
+        thread = threadFactory.newThread(this::send);
         closed = false;
     }
     
@@ -98,69 +228,386 @@ public class Sender implements AutoCloseable {
      * listener is not connected)
      */
     public Sender(Listener listener, Managerable callback, long kickRate) throws IOException {
+        this(listener, callback,
+                new ConnectionOptions(kickRate,
+                        ConnectionOptions.DEFAULT.queueCapacity,
+                        ConnectionOptions.DEFAULT.backPressure,
+                        ConnectionOptions.DEFAULT.maxFrameSize,
+                        ConnectionOptions.DEFAULT.wireFormat,
+                        ConnectionOptions.DEFAULT.compress,
+                        ConnectionOptions.DEFAULT.outboxDirectory,
+                        ConnectionOptions.DEFAULT.resumeMillis),
+                Thread::new);
+    }
+    
+    /**
+     * Creates a sender using a connected {@link Listener}, whose {@link #thread} is
+     * created by the thread factory. This uses the Listener's socket and
+     * assigns/shares it with the sender.
+     *
+     * @param listener      The connected listener
+     * @param callback      The callback for exception reporting
+     * @param options       The kick rate and queue settings of the sender
+     * @param threadFactory The factory that creates the sender thread
+     * @throws IOException If an IOException occurs
+     * @throws IllegalArgumentException If the Listener's socket is null (ie: the
+     * listener is not connected)
+     */
+    public Sender(Listener listener, Managerable callback, ConnectionOptions options,
+                  ThreadFactory threadFactory) throws IOException {
         this.callback = callback;
-        this.kickRate = kickRate;
+        this.metrics = callback.getMetrics();
+        this.kickRate = options.kickRate;
+        this.backPressure = options.backPressure;
+        messageQueue = new LinkedBlockingQueue<>(options.queueCapacity);
+        asyncExecutor = serialExecutor(threadFactory);
+        parking = new Semaphore(options.queueCapacity);
         
         socket = listener.getSocket();
         if (socket == null) {throw new IllegalArgumentException("The listener socket is null");}
         outputStream = new DataOutputStream(socket.getOutputStream());
         
+        thread = threadFactory.newThread(this::send);
         closed = false;
     }
     
     /**
-     * Sends a message through the sender
+     * Creates an executor that runs its tasks one at a time, in the order given, on at
+     * most one thread, which ends when it is idle
+     *
+     * @param threadFactory The factory that creates the thread
+     * @return The executor
+     */
+    private static Executor serialExecutor(ThreadFactory threadFactory) {
+        // With no core threads and an unbounded queue, at most one thread is ever started
+        return new ThreadPoolExecutor(0, 1, ASYNC_IDLE_MILLIS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory);
+    }
+    
+    /**
+     * Guards the switch between writing directly and queueing, and the {@link #waiting}
+     * work. It is never held while writing to the socket or completing a message's
+     * future, so {@link #sendAsync(Message) sendAsync()} never waits on the socket
+     */
+    private final ReentrantLock stateLock = new ReentrantLock();
+    
+    /**
+     * Serialises the writes to the {@link #outputStream}. A lock is used rather than
+     * {@code synchronized} so that a virtual thread blocked on the socket does not pin
+     * its carrier thread
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    
+    /**
+     * Sends a message through the sender. If the sender is {@link #active} the message
+     * is queued and, if the queue is full, the {@link #backPressure} applies
      *
      * @param message The message to send
      * @throws IOException If an IO exception occurs
+     * @throws InterruptedIOException If interrupted while waiting for room in the queue
+     * @throws IllegalStateException If the queue is full and the back pressure is
+     * {@link BackPressure#FAIL_FAST FAIL_FAST}
      *
-     * @see #writeThroughSocket(Message)
+     * @see #writeThroughSocket(List)
      * @see #closed
      */
-    public synchronized void sendMessage(Message message) throws IllegalStateException, IOException {
-        if (closed) {
-            throw new SocketException("The Sender is closed");
-        } else if (!active) {
-            writeThroughSocket(message);
+    @Override
+    public void sendMessage(Message message) throws IllegalStateException, IOException {
+        OutgoingMessage outgoing = new OutgoingMessage(message);
+        
+        boolean direct;
+        stateLock.lock();
+        try {
+            if (closed) {throw new SocketException("The Sender is closed");}
+            direct = !active;
+        } finally {
+            stateLock.unlock();
+        }
+        
+        if (direct) {
+            writeThroughSocket(List.of(outgoing));
         } else {
-            messageQueue.add(message);
+            queue(outgoing);
         }
     }
     
     /**
-     * Writes the message to the output stream. Using the
-     * {@link Message#toSendableBytes() toSendableBytes} method
+     * Sends a message through the sender without the calling thread waiting on the
+     * socket. If the sender is not yet {@link #active} the direct write is done by
+     * another thread. If the queue is full, {@link BackPressure#BLOCK BLOCK} waits for
+     * room on another thread, unless too many sends are already waiting, while the
+     * other policies apply as they do for {@link #sendMessage(Message) sendMessage()}
      *
      * @param message The message to send
+     * @return A future completed once the message has been written to the socket
+     */
+    @Override
+    public CompletableFuture<Void> sendAsync(Message message) {
+        OutgoingMessage outgoing = new OutgoingMessage(message);
+        
+        boolean queueNow = false;
+        stateLock.lock();
+        try {
+            if (closed) {
+                outgoing.failed(new SocketException("The Sender is closed")); // Nothing waits on it yet
+            } else if (!active) {
+                park(outgoing, this::writeDirectly);
+            } else if (!waiting.isDone()) {
+                park(outgoing, this::queueOrFail);
+            } else if (!messageQueue.offer(outgoing)) {
+                if (backPressure == BackPressure.BLOCK) {
+                    park(outgoing, this::queueOrFail);
+                } else {
+                    queueNow = true;
+                }
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        
+        // Dropping the oldest message completes its future, which must not be done holding a lock
+        if (queueNow) {queueOrFail(outgoing);}
+        return outgoing.sent;
+    }
+    
+    /**
+     * Adds a message's work to the {@link #waiting} work, or fails the message if the
+     * {@link #parking} is full. The work runs once the work before it has, however that
+     * ended, so one failure does not leave the messages after it unsent. Must be called
+     * holding the {@link #stateLock}
+     *
+     * @param outgoing The message
+     * @param work The work that sends the message, which reports the outcome through
+     *             the message's future
+     */
+    private void park(OutgoingMessage outgoing, Consumer<OutgoingMessage> work) {
+        if (!parking.tryAcquire()) {
+            outgoing.failed(new IllegalStateException("Too many sends are waiting for the send queue")); // Nothing waits on it yet
+            return;
+        }
+        
+        waiting = waiting.handleAsync((done, e) -> {
+            try {
+                work.accept(outgoing);
+            } finally {
+                parking.release();
+            }
+            
+            return null;
+        }, asyncExecutor);
+    }
+    
+    /**
+     * Writes a message straight to the socket for {@link #sendAsync(Message) sendAsync()},
+     * reporting the outcome through the message's future
+     *
+     * @param outgoing The message to write
+     */
+    private void writeDirectly(OutgoingMessage outgoing) {
+        try {
+            writeThroughSocket(List.of(outgoing));
+        } catch (IOException | RuntimeException e) {
+            outgoing.failed(e);
+        }
+    }
+    
+    /**
+     * Queues a message for {@link #sendAsync(Message) sendAsync()}, reporting a failure
+     * to queue through the message's future
+     *
+     * @param outgoing The message to queue
+     */
+    private void queueOrFail(OutgoingMessage outgoing) {
+        try {
+            queue(outgoing);
+        } catch (IOException | RuntimeException e) {
+            outgoing.failed(e);
+        }
+    }
+    
+    /**
+     * Adds a message to the {@link #messageQueue}, applying the {@link #backPressure}
+     * if it is full. This must not hold a lock, as the {@link #thread} needs the
+     * {@link #writeLock} to make room and a dropped message's future is completed
+     *
+     * @param message The message to queue
+     * @throws InterruptedIOException If interrupted while waiting for room in the queue
+     * @throws SocketException If the sender was closed before the message could be written
+     * @throws IllegalStateException If the queue is full and the back pressure is
+     * {@link BackPressure#FAIL_FAST FAIL_FAST}
+     */
+    private void queue(OutgoingMessage message) throws IOException {
+        switch (backPressure) {
+            case BLOCK -> {
+                try {
+                    messageQueue.put(message);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to send");
+                }
+            } case DROP_OLDEST -> {
+                while (!messageQueue.offer(message)) {
+                    OutgoingMessage dropped = messageQueue.poll();
+                    
+                    if (dropped != null) {
+                        dropped.failed(new IllegalStateException("Dropped from the full send queue"));
+                    }
+                }
+            } case FAIL_FAST -> {
+                if (!messageQueue.offer(message)) {
+                    throw new IllegalStateException("The send queue is full");
+                }
+            }
+        }
+        
+        // Closing drains the queue, which a message may have been added to since
+        if (closed) {
+            messageQueue.remove(message);
+            if (!message.sent.isDone() || message.sent.isCompletedExceptionally()) {
+                SocketException e = new SocketException("The Sender is closed");
+                message.failed(e);
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * Writes the messages to the output stream. The messages are encoded by the
+     * {@link FrameEncoder} into one pooled buffer and written together, so a batch
+     * costs one write to the socket rather than one per message. A message that is
+     * too large for the buffer is written from its own
+     * {@link Message#toSendableBytes(WireFormat) bytes}. Once the connection is compressed
+     * every batch is compressed and sync-flushed as a whole. Once written, the future of every
+     * message is completed
+     *
+     * @param messages The messages to send
+     * @throws IOException If an IOException occurs during {@link OutputStream} writing.
+     * The future of every message has been completed exceptionally
+     */
+    private void writeThroughSocket(List<OutgoingMessage> messages) throws IOException {
+        SendEvent event = new SendEvent();
+        event.begin();
+        
+        ByteBuffer buffer = WRITE_BUFFERS.acquire();
+        WireFormat format = wireFormat;
+        long written = 0;
+        IOException failure = null;
+        
+        writeLock.lock();
+        try {
+            for (OutgoingMessage outgoing : messages) {
+                WireTrace.sent(outgoing.message);
+                
+                if (FrameEncoder.encode(outgoing.message, format, buffer)) {continue;}
+                
+                written += writeBuffer(buffer);
+                if (!FrameEncoder.encode(outgoing.message, format, buffer)) {
+                    written += writeFrames(ByteBuffer.wrap(outgoing.message.toSendableBytes(format)));
+                }
+            }
+            written += writeBuffer(buffer);
+            outputStream.flush();
+            lastWrite = System.nanoTime();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            writeLock.unlock();
+            WRITE_BUFFERS.release(buffer);
+        }
+        
+        // Completed once the lock is released, as the futures' callbacks may take other locks
+        if (failure != null) {
+            for (OutgoingMessage outgoing : messages) {outgoing.failed(failure);}
+            throw failure;
+        }
+        
+        long now = System.nanoTime();
+        metrics.framesOut.add(messages.size());
+        for (OutgoingMessage outgoing : messages) {outgoing.written(metrics, now);}
+        
+        if (event.shouldCommit()) {
+            event.messageType = messages.get(0).message.type.name();
+            event.messages = messages.size();
+            event.size = written;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Writes the encoded bytes of the buffer to the output stream and clears it
+     *
+     * @param buffer A heap buffer holding encoded frames
+     * @return The number of bytes written
      * @throws IOException If an IOException occurs during {@link OutputStream} writing
      */
-    private synchronized void writeThroughSocket(Message message) throws IOException {
-        byte[] msg = message.toSendableBytes();
+    private int writeBuffer(ByteBuffer buffer) throws IOException {
+        if (buffer.position() == 0) {return 0;}
         
-        System.out.println("sent:" + message.toJson());
-        outputStream.write(msg);
-        outputStream.flush();
+        int written = writeFrames(buffer.flip());
+        buffer.clear();
+        return written;
+    }
+    
+    /**
+     * Writes encoded frames to the output stream, through the {@link #compressor} if
+     * the connection is compressed. Must be called while holding the {@link #writeLock}
+     *
+     * @param frames A heap buffer holding encoded frames, ready to be read
+     * @return The number of bytes written, after compression
+     * @throws IOException If an IOException occurs during {@link OutputStream} writing
+     */
+    private int writeFrames(ByteBuffer frames) throws IOException {
+        if (compressed) {
+            if (compressor == null) {compressor = new FrameCompressor();}
+            frames = compressor.compress(frames);
+        }
         
+        int length = frames.remaining();
+        outputStream.write(frames.array(), frames.arrayOffset() + frames.position(), length);
+        metrics.bytesOut.add(length);
+        return length;
+    }
+    
+    @Override
+    public int getQueueDepth() {
+        return messageQueue.size();
+    }
+    
+    @Override
+    public void setWireFormat(WireFormat format) {
+        wireFormat = format;
+    }
+    
+    @Override
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
     }
     
     /**
      * Closes the socket and {@link OutputStream}, interrupts the sender
-     * {@link #thread} and resets the {@link #active} and {@link #closed} variables.
+     * {@link #thread}, drops any queued messages and resets the {@link #active} and
+     * {@link #closed} variables.
      * This should NOT be used to end the connection.
      * {@link MessageTypes#END_CONNECTION END_CONNECTION} or {@link MessageTypes#ERROR}
      * should be used first to prevent an error on the other side
      */
     @Override
     public void close() {
+        closed = true; // Set first, so writes failing because of the close are not reported
         thread.interrupt();
         
         try {
             socket.close(); // OutputStream will close with socket
         } catch (IOException e) {
-            System.out.println("Close Error");
+            ExceptionLogger.log(Level.DEBUG, "Sender could not close the socket", e);
         } finally {
             active = false;
-            closed = true;
+            
+            // Releases threads blocked on a full queue, which then see that it is closed
+            OutgoingMessage dropped;
+            while ((dropped = messageQueue.poll()) != null) {
+                dropped.failed(new SocketException("The Sender is closed"));
+            }
         }
     }
     
@@ -208,56 +655,68 @@ public class Sender implements AutoCloseable {
      * Starts the thread that sends {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICKs}
      * regularly
      */
+    @Override
     public void start() {
         if (closed) {throw new IllegalStateException("Sender is closed");}
         thread.start();
     }
     
     /**
-     * The sender thread consumes {@link Message Messages} and writes to
-     * the {@link OutputStream}. It sends a {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK}
-     * when no message has been sent for more than the {@link #kickRate}
+     * The thread that runs {@link #send()}. It is created by the thread factory
+     * given to the constructor, so it may be a platform or a virtual thread
+     */
+    private final Thread thread;
+    
+    /**
+     * Consumes {@link Message Messages} and writes to
+     * the {@link OutputStream}. Every message waiting in the queue when the thread wakes
+     * is written in one {@link #batch}. It sends a {@link MessageTypes#WATCHDOG_KICK WATCHDOG_KICK}
+     * only when nothing has been written for the {@link #kickRate}, so a busy connection
+     * sends none
      */
-    private final Thread thread = new Thread() {
-        @Override
-        public void run() {
-            while (!isInterrupted()) {
+    private void send() {
+        long kickNanos = TimeUnit.MILLISECONDS.toNanos(kickRate);
+        
+        while (!Thread.currentThread().isInterrupted()) {
+            
+            OutgoingMessage message;
+            try {
+                active = true;
+                
+                long idle = System.nanoTime() - lastWrite;
+                message = idle < kickNanos ? messageQueue.poll(kickNanos - idle, TimeUnit.NANOSECONDS) : messageQueue.poll();
+            } catch (InterruptedException e) {
+                break;
+            }
+            
+            if (Thread.currentThread().isInterrupted()) {break;}
+            
+            if (message == null) {
+                // Something else may have been written while waiting
+                if (System.nanoTime() - lastWrite < kickNanos) {continue;}
                 
-                Message message;
                 try {
-                    active = true;
-                    
-                    message = messageQueue.poll(kickRate, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    break;
+                    writeThroughSocket(List.of(new OutgoingMessage(WATCHDOG_KICK)));
+                } catch (IOException e) {
+                    if (!closed) {callback.exceptionEncountered(e);}
+                    close();
                 }
                 
-                if (isInterrupted()) {break;}
+            } else {
+                batch.add(message);
+                messageQueue.drainTo(batch);
                 
-                if (message == null) {
-                    JsonObject WatchdogKick = new JsonObject() {{
-                        put("MsgType", "WATCHDOG_KICK");
-                    }};
-                    Message msg = new Message(WatchdogKick, 3);
-                    
-                    try {
-                        writeThroughSocket(msg);
-                    } catch (IOException e) {
-                        callback.exceptionEncountered(e);
-                        close();
-                    }
-                    
-                } else {
-                    try {
-                        writeThroughSocket(message);
-                    } catch (IOException e) {
-                        callback.exceptionEncountered(e);
-                        close();
-                    }
+                try {
+                    writeThroughSocket(batch);
+                } catch (IOException e) {
+                    if (!closed) {callback.exceptionEncountered(e);}
+                    close();
+                } finally {
+                    batch.clear();
                 }
             }
-            
         }
-    };
+        
+    }
     
 }
\ No newline at end of file
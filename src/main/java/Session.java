@@ -0,0 +1,1116 @@
+import LanChatElements.ConnectionKey;
+import LanChatMessages.Message;
+import LanChatMessages.MessageTypes;
+import LanChatMessages.WireFormat;
+import LanChatMetrics.SessionMetrics;
+import com.github.cliftonlabs.json_simple.JsonObject;
+import org.apache.logging.log4j.Level;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Session is a single conversation with another node. It owns the conversation's
+ * {@link MessageListener} and {@link MessageSender}, its connection {@link MessageTypes#stage
+ * stage} and the other node's username, so many sessions can run in the same process
+ * without sharing any connection state. <br>
+ * The session is the {@link Managerable} of its own listener and sender and carries out
+ * the {@link MessageTypes} protocol itself. Anything the user should see is reported
+ * to the session's {@link Sessionable owner} <br>
+ * When both nodes can, each {@link MessageTypes#MSG MSG} is sent with a sequence number
+ * and kept in the session's {@link Outbox} until the other node
+ * {@link MessageTypes#ACK acknowledges} it. If the connection is then lost the session
+ * resumes it for up to the {@link ConnectionOptions#resumeMillis resume time}: the node
+ * that connected connects to the same {@link ConnectionKey} again and the node that
+ * listened listens on the same port again, until the other node answers with the
+ * conversation's token. Each node then sends again only the messages that the other
+ * has not received, so none are lost or shown twice
+ */
+public class Session implements Managerable {
+    
+    /**
+     * The source of session ids
+     */
+    private static final AtomicInteger nextId = new AtomicInteger();
+    
+    /**
+     * Runs the attempts to resume lost connections, and the handling of failed
+     * asynchronous sends, each on its own virtual thread
+     */
+    private static final Executor BACKGROUND = task -> Thread.ofVirtual().start(task);
+    
+    /**
+     * The wait before the second attempt to resume a lost connection, in milliseconds.
+     * The wait doubles with every attempt, up to {@link #MAX_RETRY_MILLIS}
+     */
+    private static final long RETRY_MILLIS = 250;
+    
+    /**
+     * The longest wait between two attempts to resume a lost connection, in milliseconds
+     */
+    private static final long MAX_RETRY_MILLIS = 4000;
+    
+    /**
+     * The longest that {@link #endConnection()} waits for the
+     * {@link MessageTypes#END_CONNECTION END_CONNECTION} to be written, in milliseconds
+     */
+    private static final long END_MILLIS = 1000;
+    
+    /**
+     * How long the {@link MessageTypes#ACK ACK} of a received {@link MessageTypes#MSG MSG}
+     * is held back, in milliseconds, so that one ACK covers every MSG received meanwhile
+     */
+    private static final long ACK_MILLIS = 20;
+    
+    /**
+     * The id of the session, unique within the process
+     */
+    public final int id;
+    
+    /**
+     * The owner that the session reports to
+     */
+    private final Sessionable owner;
+    
+    /**
+     * The transport that creates the session's listener and sender
+     */
+    private final Transport transport;
+    
+    /**
+     * The settings that the session's connection is made with
+     */
+    private final ConnectionOptions options;
+    
+    private volatile MessageSender sender;
+    private volatile MessageListener listener;
+    private volatile int stage = 0;
+    
+    /**
+     * The username of the other node. {@code null} until a connection has been requested
+     */
+    private volatile String username;
+    
+    /**
+     * The room that the other node asked to join. {@code null} if it did not ask for one
+     */
+    private volatile String room;
+    
+    /**
+     * The {@link WireFormat} that both nodes send in, once agreed in the handshake
+     */
+    private volatile WireFormat wireFormat = WireFormat.JSON;
+    
+    /**
+     * Indicates if both nodes compress their frames, once agreed in the handshake
+     */
+    private volatile boolean compressed = false;
+    
+    /**
+     * Indicates if a {@link MessageTypes#WATCHDOG_BARK WATCHDOG_BARK} has been sent
+     * and no frame has arrived since
+     */
+    private volatile boolean waitingForBark = false;
+    
+    /**
+     * Decides how long the listener waits for a frame, from how the connection has behaved
+     */
+    private final Heartbeat heartbeat;
+    
+    /**
+     * The timeout that the listener was last given, in milliseconds
+     */
+    private volatile int timeout = 0;
+    
+    /**
+     * The key of the listening node, kept so a lost connection can be made again.
+     * {@code null} if the session did not connect to the other node
+     */
+    private volatile ConnectionKey key;
+    
+    /**
+     * The port that the session listened on, kept so a lost connection can be listened
+     * for again. 0 if the session did not listen, such as one accepted by a server
+     */
+    private volatile int port = 0;
+    
+    /**
+     * The username that the session connected or accepted with
+     */
+    private volatile String ownUsername;
+    
+    /**
+     * The token that names the conversation, offered in the
+     * {@link MessageTypes#NEW_CONNECTION NEW_CONNECTION}. {@code null} if it was not offered
+     */
+    private volatile String token;
+    
+    /**
+     * Indicates if both nodes agreed on the {@link #token}, so the conversation's
+     * messages are sequenced and it can be resumed
+     */
+    private volatile boolean resumable = false;
+    
+    /**
+     * Indicates if the connection has been lost and is being resumed. Only changed
+     * while holding the session's monitor
+     */
+    private volatile boolean resuming = false;
+    
+    /**
+     * Indicates if the user has ended the conversation, so the connection failing
+     * from then on is expected and is neither resumed nor reported
+     */
+    private volatile boolean ending = false;
+    
+    /**
+     * The {@link System#nanoTime()} that a lost connection must be resumed by
+     */
+    private volatile long resumeDeadline;
+    
+    /**
+     * The number of attempts made to resume the lost connection. Guarded by {@code this}
+     */
+    private int attempts;
+    
+    /**
+     * The {@link MessageTypes#MSG MSGs} sent that the other node has not acknowledged
+     */
+    private volatile Outbox outbox = Outbox.inMemory();
+    
+    /**
+     * The highest sequence number of the {@link MessageTypes#MSG MSGs} received
+     */
+    private volatile long received = 0;
+    
+    /**
+     * Indicates if an {@link MessageTypes#ACK ACK} of the {@link #received} messages
+     * is waiting to be sent
+     */
+    private final AtomicBoolean ackPending = new AtomicBoolean();
+    
+    /**
+     * The counters and latencies of the connection
+     */
+    private final SessionMetrics metrics = new SessionMetrics(this::getQueueDepth);
+    
+    /**
+     * Creates a session that is not yet connected
+     *
+     * @param owner     The owner to report to
+     * @param transport The transport that will carry the connection
+     * @param options   The settings that the connection will be made with
+     */
+    public Session(Sessionable owner, Transport transport, ConnectionOptions options) {
+        this.id = nextId.incrementAndGet();
+        this.owner = owner;
+        this.transport = transport;
+        this.options = options;
+        this.heartbeat = new Heartbeat(options.kickRate);
+    }
+    
+    /**
+     * Begins listening for a connection request on the port
+     *
+     * @param port The port to listen on
+     * @throws IOException If the port could not be listened on
+     */
+    public void listen(int port) throws IOException {
+        listener = transport.listen(port, this, options);
+        this.port = port;
+        stage = 1;
+    }
+    
+    /**
+     * Gives the session the listener of a connection accepted by a server, such as
+     * the one of {@link Transport#serve(int, ConnectionOptions, java.util.function.Supplier) serve()}. The
+     * session then waits for a connection request in the same way as {@link #listen(int)}
+     *
+     * @param listener The listener of the accepted connection
+     */
+    public void accepted(MessageListener listener) {
+        this.listener = listener;
+        stage = 1;
+    }
+    
+    /**
+     * Connects to a listening node and requests a connection
+     *
+     * @param key      The connection key of the listening node
+     * @param username The username to request the connection with
+     * @throws IOException If the connection could not be made. The session is closed
+     */
+    public void connectTo(ConnectionKey key, String username) throws IOException {
+        this.key = key;
+        ownUsername = username;
+        if (options.resumeMillis > 0) {token = UUID.randomUUID().toString();}
+        
+        try {
+            connect();
+        } catch (IOException | UncheckedIOException e) {
+            endConnectionByError("Connection Error (IO)");
+            throw e;
+        }
+    }
+    
+    /**
+     * Connects to the {@link #key} and sends the {@link MessageTypes#NEW_CONNECTION
+     * NEW_CONNECTION}, with the {@link #token} and the messages received so far if
+     * the conversation can be resumed
+     *
+     * @throws IOException If the connection could not be made
+     */
+    private void connect() throws IOException {
+        stage = 1;
+        
+        sender = transport.connect(key.IP, key.port, this, options);
+        
+        listener = transport.listenerFor(sender, this, options);
+        if (resuming) {listener.setTimeout(timeout = heartbeat.barkTimeout());} // The answer must come quickly
+        
+        String username = ownUsername;
+        String token = this.token;
+        long received = this.received;
+        Message request = new Message(new JsonObject() {{
+            put("MsgType", "NEW_CONNECTION");
+            put("Username", username);
+            if (options.wireFormat != WireFormat.JSON) {put("Formats", options.wireFormat.name());}
+            if (options.compress) {put("Compression", "DEFLATE");}
+            if (token != null) {
+                put("Resume", token);
+                put("Received", Long.toString(received));
+            }
+        }}, stage);
+        
+        stage = 2; // The answer may be read before sendMessage returns
+        sender.sendMessage(request);
+    }
+    
+    /**
+     * Answers the connection request of the other node
+     *
+     * @param allowed  True if the user has accepted, false if the user declined
+     * @param username The username to accept the connection with
+     * @throws IOException If the answer could not be sent. The session is closed
+     */
+    public void allowConnection(boolean allowed, String username) throws IOException {
+        try {
+            stage = 2;
+            sender = transport.senderFor(listener, this, options);
+            
+            if (allowed) {
+                ownUsername = username;
+                resumable = token != null && options.resumeMillis > 0;
+                accept();
+                
+                openOutbox();
+                owner.connectionMade(this, this.username);
+            } else {
+                sender.sendMessage(new Message(new JsonObject() {{
+                    put("MsgType", "DECLINE_CONNECTION");
+                }}, stage));
+                
+                close();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            endConnectionByError("Connection Error (IO)");
+            throw e;
+        }
+    }
+    
+    /**
+     * Sends the {@link MessageTypes#ACCEPT_CONNECTION ACCEPT_CONNECTION} through the
+     * sender and starts the conversation in the format and compression agreed. The
+     * conversation's {@link #token} is sent back if it can be resumed
+     *
+     * @throws IOException If the answer could not be sent
+     */
+    private void accept() throws IOException {
+        String username = ownUsername;
+        WireFormat format = wireFormat;
+        boolean compress = compressed;
+        String token = resumable ? this.token : null;
+        long received = this.received;
+        sender.sendMessage(new Message(new JsonObject() {{
+            put("MsgType", "ACCEPT_CONNECTION");
+            put("Username", username);
+            if (format != WireFormat.JSON) {put("Format", format.name());}
+            if (compress) {put("Compression", "DEFLATE");}
+            if (token != null) {
+                put("Resume", token);
+                put("Received", Long.toString(received));
+            }
+        }}, stage));
+        sender.setWireFormat(format);
+        sender.setCompressed(compress);
+        
+        stage = 3;
+        sender.start();
+        listener.setTimeout(timeout = heartbeat.idleTimeout());
+    }
+    
+    /**
+     * Opens the {@link Outbox} of a conversation that can be resumed, kept for the
+     * other node's username at its IP address. The messages left in it by earlier
+     * conversations are not sent until the owner {@link #takeUnsent() takes} them
+     */
+    private void openOutbox() {
+        String address = getPeerIP();
+        if (!resumable || options.outboxDirectory == null || address == null) {return;}
+        
+        outbox = Outbox.open(options.outboxDirectory, username, address);
+    }
+    
+    /**
+     * Returns the number of messages that earlier conversations with the other node
+     * left unsent, which the owner should ask the user about once the connection has
+     * been made
+     *
+     * @return The number of messages
+     */
+    public int getUnsentCount() {
+        return outbox.unsentCount();
+    }
+    
+    /**
+     * Takes the messages that earlier conversations with the other node left unsent
+     * out of the outbox, so they are not offered again. They are only sent if the
+     * owner sends them again, such as with {@link #sendMessageAsync(String)}
+     *
+     * @return The content of the messages, in the order they were first sent
+     */
+    public List<String> takeUnsent() {
+        return outbox.takeUnsent();
+    }
+    
+    /**
+     * Sends a {@link MessageTypes#MSG MSG} to the other node. If the connection is
+     * being resumed the message is kept in the outbox and sent once it has been
+     *
+     * @param content The content of the message
+     * @throws IOException If the message could not be sent. The session is closed
+     */
+    public synchronized void sendMessage(String content) throws IOException {
+        long seq = resumable ? outbox.add(content) : 0;
+        if (resuming) {return;}
+        
+        try {
+            sender.sendMessage(messageOf(seq, content));
+        } catch (IOException | UncheckedIOException e) {
+            if (!interrupted(null)) {
+                endConnectionByError("Connection Error (IO)");
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * Sends a {@link MessageTypes#MSG MSG} to the other node without waiting for it
+     * to be written, so it may be called by the Swing event dispatch thread. If the
+     * conversation can be resumed, a message that cannot be written because the
+     * connection is lost is kept in the outbox and sent once it has been resumed
+     *
+     * @param content The content of the message
+     * @return A future completed once the message has been written, or has been kept
+     * to be sent once the connection is resumed. If it fails with an IOException the
+     * session is closed
+     */
+    public synchronized CompletableFuture<Void> sendMessageAsync(String content) {
+        if (!resumable) {return sendAsync(messageOf(0, content));}
+        
+        long seq = outbox.add(content);
+        if (resuming) {return CompletableFuture.completedFuture(null);}
+        
+        return sendAsync(messageOf(seq, content)).exceptionallyCompose(e -> resuming && isIOFailure(e)
+                ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.failedFuture(e));
+    }
+    
+    /**
+     * Creates a {@link MessageTypes#MSG MSG}
+     *
+     * @param seq     The sequence number of the message, or 0 to send it without one
+     * @param content The content of the message
+     * @return The message
+     */
+    private Message messageOf(long seq, String content) {
+        return new Message(new JsonObject() {{
+            put("MsgType", "MSG");
+            put("Content", content);
+            put("Sent", Long.toString(epochMicros()));
+            if (seq != 0) {put("Seq", Long.toString(seq));}
+        }}, stage);
+    }
+    
+    /**
+     * Sends again the messages of the outbox after a sequence number, in the order
+     * they were first sent
+     *
+     * @param after The sequence number that the other node has received up to
+     */
+    private synchronized void replay(long after) {
+        for (Outbox.Entry entry : outbox.after(after)) {
+            metrics.replayed.increment();
+            sendAsync(messageOf(entry.seq(), entry.content()));
+        }
+    }
+    
+    /**
+     * Sends a message that has already been created, such as a {@link MessageTypes#MSG MSG}
+     * being relayed to many sessions, without waiting for it to be written. The message's
+     * bytes are only encoded once however many sessions it is sent through
+     *
+     * @param message The message to send
+     * @return A future completed once the message has been written. If it fails with
+     * an IOException the session is closed
+     */
+    public CompletableFuture<Void> relay(Message message) {
+        return sendAsync(message);
+    }
+    
+    /**
+     * Sends a message through the sender without waiting for it to be written
+     *
+     * @param message The message to send
+     * @return A future completed once the message has been written. If it fails with
+     * an IOException the session is closed
+     */
+    private CompletableFuture<Void> sendAsync(Message message) {
+        MessageSender sender = this.sender;
+        if (sender == null) {
+            return CompletableFuture.failedFuture(new SocketException("The session is not connected"));
+        }
+        
+        return sender.sendAsync(message).whenComplete((sent, e) -> {
+            // Not handled on the thread that failed the message, which may be the writer
+            // thread that the error message sent by the teardown would wait on
+            if (isIOFailure(e)) {BACKGROUND.execute(() -> {
+                if (!interrupted(sender)) {endConnectionByError("Connection Error (IO)");}
+            });}
+        });
+    }
+    
+    private static boolean isIOFailure(Throwable e) {
+        return e instanceof IOException || e != null && e.getCause() instanceof IOException;
+    }
+    
+    /**
+     * Sends an {@link MessageTypes#END_CONNECTION END_CONNECTION} and closes the session
+     */
+    public void endConnection() {
+        ending = true;
+        
+        try {
+            // Waited for, as closing the sender drops the messages still queued, and the
+            // other node would take the connection to have been lost and try to resume it
+            sender.sendAsync(new Message(new JsonObject() {{
+                put("MsgType", "END_CONNECTION");
+            }}, stage)).get(END_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (NullPointerException ignored) {}
+        catch (ExecutionException | TimeoutException e) {
+            ExceptionLogger.log(Level.INFO, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        close();
+    }
+    
+    /**
+     * Sends an {@link MessageTypes#ERROR ERROR} and closes the session. The error is
+     * only waited for up to {@link #END_MILLIS}, as a connection that has stalled
+     * would never take it
+     *
+     * @param msg The message to send with the error
+     */
+    private void endConnectionByError(String msg) {
+        try {
+            sender.sendAsync(new Message(new JsonObject() {{
+                put("MsgType", "ERROR");
+                put("Message", msg);
+            }}, stage)).get(END_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (NullPointerException ignored) {}
+        catch (ExecutionException | TimeoutException e) {
+            ExceptionLogger.log(Level.INFO, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        close();
+    }
+    
+    /**
+     * Tells the owner that the connection has ended with an error, then ends it
+     *
+     * @param errMsg The message to show the user
+     * @param msg    The message to send with the error
+     */
+    private void failConnection(String errMsg, String msg) {
+        failConnection(null, errMsg, msg);
+    }
+    
+    /**
+     * Tells the owner that the connection of the sender has ended with an error, then
+     * ends it, unless the sender has already been released
+     *
+     * @param failed The sender that failed, or {@code null} if it is not known
+     * @param errMsg The message to show the user
+     * @param msg    The message to send with the error
+     */
+    private void failConnection(MessageSender failed, String errMsg, String msg) {
+        if (interrupted(failed)) {return;}
+        
+        owner.connectionEnded(this, errMsg);
+        endConnectionByError(msg);
+    }
+    
+    /**
+     * Begins resuming the conversation when its connection has failed, if it can be
+     * resumed. A failure while it is being resumed abandons the current attempt
+     *
+     * @param failed The sender that failed, or {@code null} if it is not known
+     * @return True if the failure has been handled, so the conversation must not be
+     * ended. That is the case if it is being resumed or ended by the user, or the
+     * failed sender has already been released
+     */
+    private synchronized boolean interrupted(MessageSender failed) {
+        if (ending || failed != null && failed != sender) {return true;}
+        if (resuming) {
+            retry();
+            return true;
+        }
+        if (!resumable || stage != 3 || key == null && port == 0) {return false;}
+        
+        resuming = true;
+        attempts = 0;
+        resumeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.resumeMillis);
+        CompletableFuture.delayedExecutor(options.resumeMillis, TimeUnit.MILLISECONDS, BACKGROUND).execute(this::giveUp);
+        
+        release();
+        stage = 1;
+        owner.connectionInterrupted(this);
+        
+        BACKGROUND.execute(this::attempt);
+        return true;
+    }
+    
+    /**
+     * Makes an attempt to resume the lost connection, by connecting to the {@link #key}
+     * again or listening on the {@link #port} again. The answer is waited for by the
+     * listener. If the attempt cannot be made the next is scheduled
+     */
+    private void attempt() {
+        if (!resuming) {return;}
+        
+        try {
+            if (key != null) {
+                connect();
+            } else {
+                stage = 1;
+                listener = transport.listen(port, this, options);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            synchronized (this) {
+                if (!resuming) {return;}
+                
+                release();
+                scheduleAttempt();
+            }
+            return;
+        }
+        
+        synchronized (this) {
+            if (!resuming && stage != 3) {release();} // Given up while connecting
+        }
+    }
+    
+    /**
+     * Abandons the current attempt to resume the lost connection and schedules the next
+     */
+    private synchronized void retry() {
+        if (!resuming || sender == null && listener == null) {return;} // Already abandoned
+        
+        release();
+        scheduleAttempt();
+    }
+    
+    /**
+     * Schedules the next attempt to resume the lost connection, waiting longer after
+     * every failed attempt. Must be called while holding the session's monitor
+     */
+    private void scheduleAttempt() {
+        long delay = Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << Math.min(attempts++, 5));
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, BACKGROUND).execute(this::attempt);
+    }
+    
+    /**
+     * Answers a {@link MessageTypes#NEW_CONNECTION NEW_CONNECTION} received while
+     * listening again for the lost connection. It is accepted, without asking the user,
+     * only if it has the conversation's token
+     *
+     * @param request The NEW_CONNECTION
+     */
+    private void resumeRequested(Message request) {
+        try {
+            stage = 2;
+            sender = transport.senderFor(listener, this, options);
+            
+            if (!token.equals(request.getOrDefault("Resume", null))) {
+                sender.sendMessage(new Message(new JsonObject() {{
+                    put("MsgType", "DECLINE_CONNECTION");
+                }}, stage));
+                retry();
+                return;
+            }
+            
+            negotiate(request);
+            accept();
+        } catch (IOException | UncheckedIOException e) {
+            ExceptionLogger.log(Level.INFO, e);
+            retry();
+            return;
+        }
+        
+        resumed(request.getOrDefault("Received", "0"));
+    }
+    
+    /**
+     * Finishes resuming the lost connection, once it has been made again: forgets the
+     * messages that the other node received before it was lost and sends the rest again
+     *
+     * @param received The highest sequence number that the other node has received
+     */
+    private synchronized void resumed(String received) {
+        if (!resuming) {return;}
+        
+        resuming = false;
+        metrics.resumes.increment();
+        
+        long after;
+        try {
+            after = Long.parseLong(received);
+        } catch (NumberFormatException e) {
+            after = 0; // Every message is sent again, the other node drops those it has
+        }
+        
+        outbox.acknowledged(after);
+        replay(after);
+        owner.connectionResumed(this);
+    }
+    
+    /**
+     * Ends the conversation if its lost connection has not been resumed by the deadline
+     */
+    private void giveUp() {
+        synchronized (this) {
+            if (!resuming || System.nanoTime() - resumeDeadline < 0) {return;}
+        }
+        
+        abandon("Couldn't reconnect: check your \ninternet connection and try again.");
+    }
+    
+    /**
+     * Stops resuming the lost connection and ends the conversation
+     *
+     * @param errMsg The message to show the user
+     */
+    private void abandon(String errMsg) {
+        synchronized (this) {
+            if (!resuming) {return;}
+            resuming = false;
+        }
+        
+        owner.connectionEnded(this, errMsg);
+        endConnectionByError("Connection Lost");
+    }
+    
+    /**
+     * Releases the listener and sender of the connection without telling the other
+     * node or the owner, so the session can make the connection again
+     */
+    private void release() {
+        MessageListener listener = this.listener;
+        MessageSender sender = this.sender;
+        
+        // Cleared first, so failures caused by closing them are seen to be from a released connection
+        this.listener = null;
+        this.sender = null;
+        
+        if (listener != null) {listener.close();}
+        if (sender != null) {sender.close();}
+    }
+    
+    /**
+     * Releases the listener and sender without telling the other node. Messages
+     * that have not been acknowledged are left in the outbox
+     */
+    public void close() {
+        resuming = false;
+        
+        try {
+            listener.close();
+            listener = null;
+        } catch (NullPointerException ignored) {}
+        try {
+            sender.close();
+            sender = null;
+        } catch (NullPointerException ignored) {}
+        
+        outbox.close();
+        stage = 0;
+        owner.sessionClosed(this);
+    }
+    
+    /**
+     * Returns the username of the other node
+     *
+     * @return The username or {@code null} if no connection has been requested
+     */
+    public String getUsername() {
+        return username;
+    }
+    
+    /**
+     * Returns the room that the other node asked to join in its
+     * {@link MessageTypes#NEW_CONNECTION NEW_CONNECTION}
+     *
+     * @return The room or {@code null} if it did not ask for one
+     */
+    public String getRoom() {
+        return room;
+    }
+    
+    /**
+     * Returns the format that messages are sent to the other node in
+     *
+     * @return The wire format, which is {@link WireFormat#JSON JSON} until one has been agreed
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+    
+    /**
+     * Returns the IP address of the other node
+     *
+     * @return The IP address or {@code null} if the session is not connected
+     */
+    public String getPeerIP() {
+        try {
+            return listener.getIP();
+        } catch (NullPointerException e) {
+            return null;
+        }
+    }
+    
+    @Override
+    public void messageReceived(Message message) {
+        if (stage == 3) {frameReceived(message);}
+        
+        switch (message.type) {
+            case NEW_CONNECTION -> {
+                if (resuming) {
+                    resumeRequested(message);
+                    return;
+                }
+                
+                username = message.get("Username");
+                room = message.getOrDefault("Room", null);
+                token = message.getOrDefault("Resume", null);
+                negotiate(message);
+                
+                owner.connectionRequested(this, username);
+                
+            } case ACCEPT_CONNECTION -> {
+                username = message.get("Username");
+                
+                WireFormat format = WireFormat.of(message.getOrDefault("Format", "JSON"));
+                if (format != null && format == options.wireFormat) {
+                    wireFormat = format;
+                    sender.setWireFormat(format);
+                }
+                if (options.compress && "DEFLATE".equals(message.getOrDefault("Compression", null))) {
+                    compressed = true;
+                    sender.setCompressed(true);
+                }
+                
+                boolean resumed = resuming;
+                resumable = token != null && token.equals(message.getOrDefault("Resume", null));
+                if (resumed && !resumable) {
+                    abandon("The other user couldn't \nresume the connection");
+                    return;
+                }
+                if (!resumed) {
+                    openOutbox();
+                    owner.connectionMade(this, username);
+                }
+                
+                stage = 3;
+                sender.start();
+                try {
+                    listener.setTimeout(timeout = heartbeat.idleTimeout());
+                } catch (SocketException e) {
+                    failConnection("Couldn't Connect: " +
+                            "check your \ninternet connection and try again. "
+                            + "[" +ExceptionLogger.log(Level.WARN, e) + "]", "Connection Error (IO)");
+                }
+                
+                if (resumed) {resumed(message.getOrDefault("Received", "0"));}
+                
+            } case DECLINE_CONNECTION -> {
+                if (resuming) {
+                    abandon("The other user couldn't \nresume the connection");
+                    return;
+                }
+                
+                owner.connectionDeclined(this);
+                close();
+            } case MSG -> {
+                recordDelivery(message.getOrDefault("Sent", null));
+                if (!isNew(message.getOrDefault("Seq", null))) {return;}
+                
+                owner.messageReceived(this, message.get("Content"),
+                        message.getOrDefault("Username", username));
+            } case ACK -> {
+                try {
+                    outbox.acknowledged(Long.parseLong(message.get("Seq")));
+                } catch (NumberFormatException ignored) {} // Kept until a valid ACK covers it
+            }
+            case END_CONNECTION -> {
+                owner.connectionEnded(this, "The other user ended \n the connection");
+                close();
+            } case ERROR -> {
+                owner.connectionEnded(this, "The other user encountered \n a" +
+                        " fatal error (" + message.get("Message") + ")");
+                close();
+            } case WATCHDOG_BARK -> {
+                // Not waited for, so a full queue never stops the listener from reading
+                sendAsync(new Message(new JsonObject() {{
+                    put("MsgType", "WATCHDOG_KICK");
+                }}, stage));
+            }
+        }
+    }
+    
+    /**
+     * Picks the {@link WireFormat} and compression that the conversation will use from
+     * a {@link MessageTypes#NEW_CONNECTION NEW_CONNECTION}
+     *
+     * @param request The NEW_CONNECTION
+     */
+    private void negotiate(Message request) {
+        String formats = request.getOrDefault("Formats", "");
+        wireFormat = options.wireFormat != WireFormat.JSON
+                && Arrays.asList(formats.split(",")).contains(options.wireFormat.name())
+                ? options.wireFormat : WireFormat.JSON;
+        compressed = options.compress && "DEFLATE".equals(request.getOrDefault("Compression", null));
+    }
+    
+    /**
+     * Acknowledges a sequenced {@link MessageTypes#MSG MSG} and decides if it should be
+     * shown. A message that was received before the connection was lost, and was sent
+     * again because its acknowledgement was lost with it, is not shown again. The
+     * acknowledgement is sent after {@link #ACK_MILLIS}, together with those of the
+     * messages received meanwhile
+     *
+     * @param seq The sequence number of the message, or {@code null} if it has none
+     * @return True if the message has not been received before
+     */
+    private boolean isNew(String seq) {
+        if (seq == null) {return true;}
+        
+        long number;
+        try {
+            number = Long.parseLong(seq);
+        } catch (NumberFormatException e) {
+            return true; // Shown, as it cannot be acknowledged
+        }
+        
+        boolean isNew = number > received;
+        if (isNew) {received = number;}
+        
+        if (ackPending.compareAndSet(false, true)) {
+            CompletableFuture.delayedExecutor(ACK_MILLIS, TimeUnit.MILLISECONDS, BACKGROUND).execute(this::acknowledge);
+        }
+        
+        return isNew;
+    }
+    
+    /**
+     * Sends an {@link MessageTypes#ACK ACK} of the {@link #received} messages
+     */
+    private void acknowledge() {
+        // Cleared first, so a message received after the ACK is read is acknowledged by another
+        ackPending.set(false);
+        
+        // A resume tells the other node what was received, so a lost connection needs no ACK
+        int stage = this.stage;
+        if (stage != 3 || resuming) {return;}
+        
+        long acknowledged = received;
+        sendAsync(new Message(new JsonObject() {{
+            put("MsgType", "ACK");
+            put("Seq", Long.toString(acknowledged));
+        }}, stage));
+    }
+    
+    /**
+     * Counts a received frame as a sign of life, which answers any
+     * {@link MessageTypes#WATCHDOG_BARK WATCHDOG_BARK}, and gives the listener the
+     * {@link Heartbeat#idleTimeout() idle timeout}. A {@link MessageTypes#WATCHDOG_KICK
+     * WATCHDOG_KICK} answering a bark is recorded as a round trip, and a bark is sent
+     * whenever the heartbeat is due another measurement
+     *
+     * @param message The received message
+     */
+    private void frameReceived(Message message) {
+        long now = System.nanoTime();
+        heartbeat.frameReceived(now);
+        waitingForBark = false;
+        
+        if (message.type == MessageTypes.WATCHDOG_KICK) {
+            long rtt = heartbeat.kickReceived(now);
+            if (rtt != -1) {metrics.rtt.record(rtt);}
+        }
+        
+        if (heartbeat.probeDue(now)) {
+            heartbeat.barkSent(now);
+            metrics.barks.increment();
+            sendAsync(new Message(new JsonObject() {{
+                put("MsgType", "WATCHDOG_BARK");
+            }}, stage));
+        }
+        
+        try {
+            setTimeout(heartbeat.idleTimeout());
+        } catch (SocketException e) {
+            exceptionEncountered(e);
+        }
+    }
+    
+    /**
+     * Records how long a {@link MessageTypes#MSG MSG} took to arrive
+     *
+     * @param sent The time the other node sent the message at, in microseconds since
+     *             the epoch, or {@code null} if it did not say
+     */
+    private void recordDelivery(String sent) {
+        if (sent == null) {return;}
+        
+        try {
+            metrics.delivery.record((epochMicros() - Long.parseLong(sent)) * 1000);
+        } catch (NumberFormatException ignored) {} // Not recorded, the message is still shown
+    }
+    
+    /**
+     * Returns the current time, as sent in the {@code Sent} param of a {@link MessageTypes#MSG MSG}
+     *
+     * @return The microseconds since the epoch
+     */
+    private static long epochMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    }
+    
+    /**
+     * Gives the listener a timeout, unless it already has it
+     *
+     * @param timeout The timeout in milliseconds
+     * @throws SocketException If the timeout could not be set
+     */
+    private void setTimeout(int timeout) throws SocketException {
+        if (timeout == this.timeout) {return;}
+        
+        listener.setTimeout(timeout);
+        this.timeout = timeout;
+    }
+    
+    @Override
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Returns the number of messages waiting to be written
+     *
+     * @return The queue depth, which is 0 if the session is not connected
+     */
+    private int getQueueDepth() {
+        MessageSender sender = this.sender;
+        return sender == null ? 0 : sender.getQueueDepth();
+    }
+    
+    @Override
+    public int getConnectionStage() {
+        return stage;
+    }
+    
+    @Override
+    public void connectionTimedOut() {
+        MessageSender sender = this.sender;
+        if (sender == null) {return;} // Closed while timing out
+        
+        metrics.timeouts.increment();
+        if (resuming) {
+            retry(); // The node did not answer the attempt to resume
+            return;
+        }
+        
+        if (waitingForBark) {
+            failConnection("Connection timed out " +
+                    "check your \ninternet connection and try again. "
+                    + "[" +ExceptionLogger.log(Level.WARN, new SocketTimeoutException("No answer to WATCHDOG_BARK")) + "]",
+                    "Connection Timed out");
+        } else {
+            waitingForBark = true;
+            
+            heartbeat.barkSent(System.nanoTime());
+            metrics.barks.increment();
+            
+            // Not waited for, so a stalled connection that never takes the bark still
+            // times out again after the bark timeout
+            sender.sendAsync(new Message(new JsonObject() {{
+                put("MsgType", "WATCHDOG_BARK");
+            }}, stage)).whenComplete((sent, e) -> {
+                if (e != null) {BACKGROUND.execute(() -> failConnection(sender, "Couldn't check connection " +
+                        "check your \ninternet connection and try again. "
+                        + "[" +ExceptionLogger.log(Level.WARN, e) + "]", "Message Send Error (IO)"));}
+            });
+            
+            try {
+                setTimeout(heartbeat.barkTimeout());
+            } catch (SocketException e) {
+                failConnection("Couldn't check connection " +
+                        "check your \ninternet connection and try again. "
+                        + "[" +ExceptionLogger.log(Level.WARN, e) + "]", "Message Send Error (IO)");
+            }
+        }
+    }
+    
+    @Override
+    public void exceptionEncountered(Exception e) {
+        // Ended on another thread, as this may be called by the writer thread that the
+        // error would wait on. By then the sender may have been replaced by a resume
+        MessageSender sender = this.sender;
+        if (e instanceof  IOException) {
+            BACKGROUND.execute(() -> failConnection(sender, "Internal connection error occurred. " +
+                    "check \nyour internet connection and try again. "
+                    + "[" +ExceptionLogger.log(Level.WARN, e) + "]", "Connection Error (IO)"));
+        }
+        
+        
+        ExceptionLogger.log(Level.ERROR, e);
+    }
+}
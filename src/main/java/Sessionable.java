@@ -0,0 +1,75 @@
+/**
+ * The Sessionable interface contains callback methods that the owners of
+ * {@link Session Sessions} must implement, for sessions to report the events that
+ * the user should see
+ */
+public interface Sessionable {
+    
+    /**
+     * Called when a node has requested a connection with a listening session.
+     * The owner must answer with {@link Session#allowConnection(boolean, String)}
+     *
+     * @param session  The session that was requested
+     * @param username The username of the requesting node
+     */
+    void connectionRequested(Session session, String username);
+    
+    /**
+     * Called when the session's connection has been accepted by both nodes
+     *
+     * @param session  The connected session
+     * @param username The username of the other node
+     */
+    void connectionMade(Session session, String username);
+    
+    /**
+     * Called when the other node declined the session's connection request
+     *
+     * @param session The declined session
+     */
+    void connectionDeclined(Session session);
+    
+    /**
+     * Called when a {@link LanChatMessages.MessageTypes#MSG MSG} has been received
+     *
+     * @param session  The session that received the message
+     * @param content  The content of the message
+     * @param username The username of the node that sent it
+     */
+    void messageReceived(Session session, String content, String username);
+    
+    /**
+     * Called when the session's connection has ended for any reason other than
+     * the user ending it
+     *
+     * @param session The ended session
+     * @param errMsg  The message to show the user
+     */
+    void connectionEnded(Session session, String errMsg);
+    
+    /**
+     * Called when the session's connection has been lost and the session has begun
+     * to resume it. Messages sent until it is resumed are kept in the session's
+     * {@link Outbox} and are sent once it is. If it cannot be resumed
+     * {@link #connectionEnded(Session, String) connectionEnded()} is called
+     *
+     * @param session The interrupted session
+     */
+    void connectionInterrupted(Session session);
+    
+    /**
+     * Called when the session's lost connection has been resumed, once the messages
+     * that the other node was missing have been sent again
+     *
+     * @param session The resumed session
+     */
+    void connectionResumed(Session session);
+    
+    /**
+     * Called once the session has released its listener and sender. The owner
+     * should forget the session
+     *
+     * @param session The closed session
+     */
+    void sessionClosed(Session session);
+}
@@ -0,0 +1,173 @@
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+/**
+ * Transport details the ways that LanChat can carry a connection. The manager
+ * uses the transport to create its {@link MessageListener} and {@link MessageSender}
+ * so the rest of the manager does not depend on how the connection is driven
+ */
+public enum Transport {
+    /**
+     * Every connection is carried by a {@link Listener} and a {@link Sender},
+     * each of which owns a platform thread that blocks on the socket
+     */
+    THREADED(Thread::new),
+    
+    /**
+     * Every connection is carried by a {@link Listener} and a {@link Sender},
+     * each of which owns a virtual thread that blocks on the socket. The blocking
+     * stream semantics are the same as {@link #THREADED}, but blocked threads do not
+     * hold a platform thread
+     */
+    VIRTUAL(Thread.ofVirtual().factory()),
+    
+    /**
+     * Every connection is a {@link SelectorConnection} driven by the
+     * {@link SelectorEngine#shared() shared} {@link SelectorEngine}, so no thread
+     * is held per connection
+     */
+    SELECTOR(null) {
+        @Override
+        public MessageListener listen(int port, Managerable callback, ConnectionOptions options)
+                throws IOException {
+            return SelectorEngine.shared().listen(port, callback, options);
+        }
+        
+        @Override
+        public MessageSender connect(String ipAddress, int port, Managerable callback, ConnectionOptions options)
+                throws IOException {
+            return SelectorEngine.shared().connect(ipAddress, port, callback, options);
+        }
+        
+        @Override
+        public AutoCloseable serve(int port, ConnectionOptions options, Supplier<Session> sessionFactory)
+                throws IOException {
+            return SelectorEngine.shared().serve(port, options, sessionFactory);
+        }
+        
+        @Override
+        public MessageListener listenerFor(MessageSender sender, Managerable callback, ConnectionOptions options) {
+            return (SelectorConnection) sender;
+        }
+        
+        @Override
+        public MessageSender senderFor(MessageListener listener, Managerable callback, ConnectionOptions options) {
+            SelectorConnection connection = (SelectorConnection) listener;
+            connection.setKickRate(options.kickRate);
+            
+            return connection;
+        }
+    };
+    
+    private static final Logger logger = LogManager.getLogger(Transport.class);
+    
+    Transport(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+    
+    /**
+     * The factory that creates the threads of the transport's {@link Listener Listeners}
+     * and {@link Sender Senders}
+     */
+    private final ThreadFactory threadFactory;
+    
+    /**
+     * Creates a listener that waits for a connection on the port
+     *
+     * @param port     The port to listen on
+     * @param callback The manager to callback to
+     * @param options  The settings of the connection
+     * @return The listener
+     * @throws IOException If the port could not be listened on
+     */
+    public MessageListener listen(int port, Managerable callback, ConnectionOptions options) throws IOException {
+        return new Listener(port, callback, options, threadFactory);
+    }
+    
+    /**
+     * Accepts every node that connects to the port until the returned server is closed.
+     * Each accepted connection is given to a new session from the factory, through
+     * {@link Session#accepted(MessageListener) accepted()}, before any of its messages
+     * are read
+     *
+     * @param port           The port to listen on
+     * @param options        The settings of the accepted connections
+     * @param sessionFactory Creates the session of each accepted connection
+     * @return The server, which stops accepting when closed
+     * @throws IOException If the port could not be listened on
+     */
+    public AutoCloseable serve(int port, ConnectionOptions options, Supplier<Session> sessionFactory)
+            throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        
+        threadFactory.newThread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    logger.info("Made connection: {}", socket.getInetAddress());
+                    
+                    Session session = sessionFactory.get();
+                    Listener listener = new Listener(socket, session, options, threadFactory);
+                    session.accepted(listener);
+                    listener.start();
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {ExceptionLogger.log(Level.WARN, e);}
+                }
+            }
+        }).start();
+        
+        return serverSocket;
+    }
+    
+    /**
+     * Creates a sender connected to a listening node
+     *
+     * @param ipAddress The IP address of the listening node
+     * @param port      The port of the listening node
+     * @param callback  The manager to callback to
+     * @param options   The kick rate and queue settings of the sender
+     * @return The connected sender
+     * @throws IOException If the connection could not be made
+     */
+    public MessageSender connect(String ipAddress, int port, Managerable callback, ConnectionOptions options)
+            throws IOException {
+        return new Sender(ipAddress, port, callback, options, threadFactory);
+    }
+    
+    /**
+     * Creates a listener that uses the connection of a sender made by {@link #connect
+     * connect()}
+     *
+     * @param sender   The connected sender
+     * @param callback The manager to callback to
+     * @param options  The settings of the connection
+     * @return The listener
+     * @throws IOException If an IOException occurs
+     */
+    public MessageListener listenerFor(MessageSender sender, Managerable callback, ConnectionOptions options)
+            throws IOException {
+        return new Listener((Sender) sender, callback, options, threadFactory);
+    }
+    
+    /**
+     * Creates a sender that uses the connection of a listener made by {@link #listen
+     * listen()}, once it has been connected to
+     *
+     * @param listener The connected listener
+     * @param callback The manager to callback to
+     * @param options  The kick rate and queue settings of the sender
+     * @return The sender
+     * @throws IOException If an IOException occurs
+     */
+    public MessageSender senderFor(MessageListener listener, Managerable callback, ConnectionOptions options)
+            throws IOException {
+        return new Sender((Listener) listener, callback, options, threadFactory);
+    }
+}
@@ -0,0 +1,340 @@
+import org.apache.logging.log4j.Level;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The Watchdog notices when connections have received nothing for too long. Every
+ * connection's {@link Watch} is kept on a single hashed timer wheel, turned by one
+ * thread shared by the whole process, so a quiet connection costs a check on that
+ * thread rather than an exception on its own. <br>
+ * Receiving only records the time in the watch, so the wheel is not touched for every
+ * read. When a watch's slot comes round the time is checked and, if something has been
+ * received since, the watch is put back on the wheel for the rest of its timeout. A watch
+ * that has timed out is rearmed, so it times out again after another timeout of silence. <br>
+ * Timeouts are handed to the executor given with the watch, never run on the wheel's
+ * {@link #thread}, so one slow connection does not hold up the others. A watch does not
+ * time out again while its last timeout is still running
+ */
+public final class Watchdog {
+    
+    /**
+     * The watchdog used by every connection. Created on first use
+     */
+    private static Watchdog shared;
+    
+    /**
+     * The length of a tick of the wheel in nanoseconds. Timeouts fire up to a tick late
+     */
+    private final long tickNanos;
+    
+    /**
+     * The slots of the wheel. A ticket is kept in the slot of the tick it is due on,
+     * modulo the size of the wheel. Only used by the {@link #thread}
+     */
+    private final List<List<Ticket>> wheel;
+    
+    /**
+     * Tickets handed over by other threads, put on the wheel by the {@link #thread}
+     * before every tick
+     */
+    private final Queue<Ticket> scheduled = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The number of tickets on the wheel. Only used by the {@link #thread}
+     */
+    private int size = 0;
+    
+    /**
+     * The last tick that has been processed. Only used by the {@link #thread}
+     */
+    private long tick;
+    
+    /**
+     * The {@link System#nanoTime()} that tick 0 started at
+     */
+    private final long start = System.nanoTime();
+    
+    /**
+     * The thread that turns the wheel. It parks while no watch is armed
+     */
+    private final Thread thread;
+    
+    /**
+     * Creates a watchdog and starts its {@link #thread}
+     *
+     * @param name       The name of the watchdog's thread
+     * @param tickMillis The length of a tick of the wheel in milliseconds
+     * @param slots      The number of slots in the wheel, rounded up to a power of two
+     */
+    public Watchdog(String name, long tickMillis, int slots) {
+        if (tickMillis <= 0 || slots <= 0) {throw new IllegalArgumentException("The tick and slots must be positive");}
+        
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int length = Integer.highestOneBit(slots);
+        int size = length < slots ? length << 1 : length;
+        wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Returns the watchdog shared by every connection in the process, creating it if needed
+     *
+     * @return The shared watchdog
+     */
+    public static synchronized Watchdog shared() {
+        if (shared == null) {
+            shared = new Watchdog("Watchdog", 50, 512);
+        }
+        
+        return shared;
+    }
+    
+    /**
+     * Creates a watch, which is not armed until it is given a timeout
+     *
+     * @param onTimeout What to do when nothing has been received for the timeout
+     * @param executor  The executor that runs the timeouts
+     * @return The watch
+     */
+    public Watch watch(Runnable onTimeout, Executor executor) {
+        return new Watch(onTimeout, executor);
+    }
+    
+    /**
+     * A Watch tracks when a single connection last received anything. It may be
+     * used by any thread
+     */
+    public final class Watch {
+        
+        private final Runnable onTimeout;
+        private final Executor executor;
+        
+        /**
+         * The {@link System#nanoTime()} that something was last received at
+         */
+        private volatile long lastSeen = System.nanoTime();
+        
+        /**
+         * The timeout in nanoseconds. 0 disarms the watch
+         */
+        private volatile long timeout = 0;
+        
+        /**
+         * Incremented whenever the timeout changes, which makes every ticket
+         * already on the wheel stale
+         */
+        private volatile int generation = 0;
+        
+        /**
+         * Indicates if the watch's last timeout is still running
+         */
+        private final AtomicBoolean timingOut = new AtomicBoolean();
+        
+        private Watch(Runnable onTimeout, Executor executor) {
+            this.onTimeout = onTimeout;
+            this.executor = executor;
+        }
+        
+        /**
+         * Records that something has been received, which resets the timeout
+         */
+        public void seen() {
+            lastSeen = System.nanoTime();
+        }
+        
+        /**
+         * Sets the length of silence after which the watch times out, starting now
+         *
+         * @param timeout The timeout in milliseconds. 0 disarms the watch
+         */
+        public synchronized void setTimeout(int timeout) {
+            long now = System.nanoTime();
+            lastSeen = now;
+            this.timeout = TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+            
+            if (this.timeout > 0) {
+                schedule(new Ticket(this, ++generation, now + this.timeout));
+            } else {
+                generation++;
+            }
+        }
+        
+        /**
+         * Disarms the watch. It may be armed again by {@link #setTimeout(int)}
+         */
+        public void cancel() {
+            setTimeout(0);
+        }
+        
+        /**
+         * Hands the timeout to the executor, unless the last one is still running
+         */
+        private void timeOut() {
+            if (!timingOut.compareAndSet(false, true)) {return;}
+            
+            try {
+                executor.execute(() -> {
+                    try {
+                        onTimeout.run();
+                    } finally {
+                        timingOut.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                timingOut.set(false);
+                ExceptionLogger.log(Level.ERROR, "Watchdog timeout could not be run", e);
+            }
+        }
+    }
+    
+    /**
+     * A Ticket puts a {@link Watch} on the wheel until it is due
+     */
+    private static final class Ticket {
+        private final Watch watch;
+        private final int generation;
+        private final long deadline;
+        
+        /**
+         * The tick that the ticket is due on. Set when it is put on the wheel
+         */
+        private long due;
+        
+        private Ticket(Watch watch, int generation, long deadline) {
+            this.watch = watch;
+            this.generation = generation;
+            this.deadline = deadline;
+        }
+        
+        private boolean isStale() {
+            return generation != watch.generation;
+        }
+    }
+    
+    /**
+     * Hands a ticket to the {@link #thread}, waking it if it is parked
+     *
+     * @param ticket The ticket
+     */
+    private void schedule(Ticket ticket) {
+        scheduled.add(ticket);
+        LockSupport.unpark(thread);
+    }
+    
+    /**
+     * Turns the wheel. Each pass puts the {@link #scheduled} tickets on the wheel and
+     * checks the slot of every tick that has passed
+     */
+    private void run() {
+        tick = tickOf(System.nanoTime());
+        
+        while (true) {
+            try {
+                if (size == 0 && scheduled.isEmpty()) {
+                    LockSupport.park(this);
+                    tick = tickOf(System.nanoTime()); // Nothing was on the wheel while parked
+                } else {
+                    long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+                    if (wait > 0) {LockSupport.parkNanos(this, wait);}
+                }
+                
+                Ticket ticket;
+                while ((ticket = scheduled.poll()) != null) {
+                    place(ticket);
+                }
+                
+                long now = System.nanoTime();
+                long current = tickOf(now);
+                while (tick < current) {
+                    tick++;
+                    expire(wheel.get((int) (tick & (wheel.size() - 1))), now);
+                }
+            } catch (RuntimeException e) {
+                ExceptionLogger.log(Level.ERROR, "Watchdog failed", e);
+            }
+        }
+    }
+    
+    /**
+     * Checks the tickets of a slot that are due, timing out the watches that have
+     * received nothing and putting the rest back on the wheel
+     *
+     * @param slot The slot of the current tick
+     * @param now  The current {@link System#nanoTime()}
+     */
+    private void expire(List<Ticket> slot, long now) {
+        List<Ticket> rescheduled = null;
+        
+        Iterator<Ticket> tickets = slot.iterator();
+        while (tickets.hasNext()) {
+            Ticket ticket = tickets.next();
+            
+            if (ticket.isStale()) {
+                tickets.remove();
+                size--;
+                continue;
+            }
+            if (ticket.due > tick) {continue;} // Due on a later turn of the wheel
+            
+            tickets.remove();
+            size--;
+            
+            Watch watch = ticket.watch;
+            long deadline = watch.lastSeen + watch.timeout;
+            
+            if (now - deadline >= 0) {
+                watch.lastSeen = now;
+                deadline = now + watch.timeout;
+                watch.timeOut();
+            }
+            
+            if (rescheduled == null) {rescheduled = new ArrayList<>();}
+            rescheduled.add(new Ticket(watch, ticket.generation, deadline));
+        }
+        
+        if (rescheduled != null) {
+            for (Ticket ticket : rescheduled) {
+                place(ticket);
+            }
+        }
+    }
+    
+    /**
+     * Puts a ticket in the slot of the tick that it is due on, or of the next
+     * tick if that has already passed
+     *
+     * @param ticket The ticket
+     */
+    private void place(Ticket ticket) {
+        if (ticket.isStale()) {return;}
+        
+        // Round up, so a ticket is never checked before its deadline
+        ticket.due = Math.max(tickOf(ticket.deadline + tickNanos - 1), tick + 1);
+        wheel.get((int) (ticket.due & (wheel.size() - 1))).add(ticket);
+        size++;
+    }
+    
+    /**
+     * Returns the tick that a time falls in
+     *
+     * @param nanoTime A {@link System#nanoTime()}
+     * @return The tick
+     */
+    private long tickOf(long nanoTime) {
+        return (nanoTime - start) / tickNanos;
+    }
+}
@@ -0,0 +1,75 @@
+import LanChatMessages.Message;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WireTrace logs the messages that connections send and receive to the
+ * {@code LanChat.Wire} logger. The logger is off unless it is given a level by
+ * {@link #configure(Level, int)}, in which case a message is only turned into
+ * JSON when it is going to be logged. <br>
+ * Each message is logged at {@link Level#DEBUG}, and only one in every
+ * {@link #sampleRate} messages in each direction is logged, so tracing a busy
+ * connection does not slow it down. The log4j configuration writes every logger
+ * through an asynchronous appender, so the I/O threads never wait for the log to
+ * be written
+ */
+public final class WireTrace {
+    
+    private static final Logger logger = LogManager.getLogger("LanChat.Wire");
+    
+    /**
+     * Only one in every this many messages in each direction is logged
+     */
+    private static volatile int sampleRate = 1;
+    
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong received = new AtomicLong();
+    
+    private WireTrace() {}
+    
+    /**
+     * Sets what is traced
+     *
+     * @param level      The level of the {@code LanChat.Wire} logger. Messages are
+     *                   logged if it is {@link Level#DEBUG} or finer
+     * @param sampleRate Only one in every this many messages in each direction is logged
+     * @throws IllegalArgumentException If the sample rate is not positive
+     */
+    public static void configure(Level level, int sampleRate) {
+        if (sampleRate <= 0) {throw new IllegalArgumentException("The sample rate must be positive");}
+        
+        WireTrace.sampleRate = sampleRate;
+        Configurator.setLevel(logger.getName(), level);
+    }
+    
+    /**
+     * Logs a message that has been written to the socket, if it is sampled
+     *
+     * @param message The message
+     */
+    public static void sent(Message message) {
+        if (logger.isDebugEnabled() && sampled(sent)) {
+            logger.debug("sent: {}", message.toJson());
+        }
+    }
+    
+    /**
+     * Logs a message that has been read from the socket, if it is sampled
+     *
+     * @param message The message
+     */
+    public static void received(Message message) {
+        if (logger.isDebugEnabled() && sampled(received)) {
+            logger.debug("received: {}", message.toJson());
+        }
+    }
+    
+    private static boolean sampled(AtomicLong count) {
+        int rate = sampleRate;
+        return rate == 1 || count.getAndIncrement() % rate == 0;
+    }
+}
@@ -0,0 +1,342 @@
+package LanChatHistory;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryLogTest {
+    
+    /**
+     * Small enough that a few records fill a segment
+     */
+    private static final int SEGMENT_SIZE = 256;
+    
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    
+    @TempDir
+    Path directory;
+    
+    private static HistoryOptions options(int hotSegments, long maxBytes) {
+        return new HistoryOptions(SEGMENT_SIZE, 64, 1000, hotSegments, maxBytes, 365 * DAY);
+    }
+    
+    private static HistoryOptions options() {
+        return options(1, Long.MAX_VALUE);
+    }
+    
+    private static HistoryRecord record(int i) {
+        return new HistoryRecord(HistoryRecord.Direction.RECEIVED, 1000 + i, "bob", "message " + i);
+    }
+    
+    private static List<String> contents(int from, int to) {
+        List<String> contents = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            contents.add("message " + i);
+        }
+        
+        return contents;
+    }
+    
+    /**
+     * Returns the contents of every message that the log holds, in order
+     */
+    private static List<String> contents(HistoryLog log) {
+        List<String> contents = new ArrayList<>();
+        for (HistoryRecord record : log.read(log.first(), (int) (log.count() - log.first()))) {
+            contents.add(record.content);
+        }
+        
+        return contents;
+    }
+    
+    private HistoryLog write(HistoryOptions options, int count) throws IOException {
+        HistoryLog log = HistoryLog.open(directory, options);
+        for (int i = 0; i < count; i++) {
+            log.append(record(i));
+        }
+        log.flush(true);
+        
+        return log;
+    }
+    
+    private List<String> files(String suffix) throws IOException {
+        try (Stream<Path> list = Files.list(directory)) {
+            return list.map(file -> file.getFileName().toString()).filter(name -> name.endsWith(suffix)).sorted().toList();
+        }
+    }
+    
+    private Path segmentFile(long base, String extension) {
+        return directory.resolve(Segment.name(base) + extension);
+    }
+    
+    /**
+     * Returns the position of the last frame of a hot segment, read from its index file
+     */
+    private int lastFramePosition(long base) throws IOException {
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(segmentFile(base, ".idx")));
+        return index.getInt(index.limit() - 4);
+    }
+    
+    private void overwrite(Path file, long position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+    
+    @Test
+    void reopensWhatWasWritten() throws IOException {
+        try (HistoryLog log = write(options(), 50)) {
+            assertTrue(files(".log").size() > 1, "the records fill several segments");
+            assertEquals(contents(0, 50), contents(log));
+        }
+        
+        try (HistoryLog log = HistoryLog.open(directory, options())) {
+            assertEquals(0, log.first());
+            assertEquals(50, log.count());
+            assertEquals(contents(0, 50), contents(log));
+            assertEquals(1042, log.read(42).time);
+        }
+    }
+    
+    @Test
+    void recoversFramesWrittenAfterTheIndex() throws IOException {
+        HistoryOptions options = new HistoryOptions(1 << 16, 64, 1000, 1, Long.MAX_VALUE, 365 * DAY);
+        
+        try (HistoryLog log = write(options, 5)) {
+            for (int i = 5; i < 10; i++) {
+                log.append(record(i));
+            }
+        }
+        assertEquals(5 * 4, Files.size(segmentFile(0, ".idx")), "the last records are not indexed");
+        
+        try (HistoryLog log = HistoryLog.open(directory, options)) {
+            assertEquals(10, log.count());
+            assertEquals(contents(0, 10), contents(log));
+        }
+        assertEquals(10 * 4, Files.size(segmentFile(0, ".idx")), "the index is written back");
+    }
+    
+    @Test
+    void dropsTornFrameAtTheEnd() throws IOException {
+        HistoryOptions options = new HistoryOptions(1 << 16, 64, 1000, 1, Long.MAX_VALUE, 365 * DAY);
+        write(options, 10).close();
+        
+        // Corrupts the content of the last frame, so its checksum no longer matches
+        int last = lastFramePosition(0);
+        overwrite(segmentFile(0, ".log"), last + HotSegment.FRAME_HEADER + 20, new byte[]{'X'});
+        
+        try (HistoryLog log = HistoryLog.open(directory, options)) {
+            assertEquals(9, log.count());
+            assertEquals(contents(0, 9), contents(log));
+            
+            log.append(record(9));
+            log.flush(true);
+        }
+        
+        try (HistoryLog log = HistoryLog.open(directory, options)) {
+            assertEquals(contents(0, 10), contents(log));
+        }
+    }
+    
+    @Test
+    void dropsFrameWithImpossibleLength() throws IOException {
+        HistoryOptions options = new HistoryOptions(1 << 16, 64, 1000, 1, Long.MAX_VALUE, 365 * DAY);
+        write(options, 10).close();
+        
+        overwrite(segmentFile(0, ".log"), lastFramePosition(0), ByteBuffer.allocate(4).putInt(1 << 20).array());
+        
+        try (HistoryLog log = HistoryLog.open(directory, options)) {
+            assertEquals(contents(0, 9), contents(log));
+        }
+    }
+    
+    @Test
+    void ignoresTornAndInvalidIndexEntries() throws IOException {
+        HistoryOptions options = new HistoryOptions(1 << 16, 64, 1000, 1, Long.MAX_VALUE, 365 * DAY);
+        write(options, 10).close();
+        
+        // A torn last entry, then an entry pointing past every frame
+        Path index = segmentFile(0, ".idx");
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+            channel.truncate(3 * 4 + 2);
+        }
+        try (HistoryLog log = HistoryLog.open(directory, options)) {
+            assertEquals(contents(0, 10), contents(log));
+        }
+        
+        overwrite(index, Files.size(index), ByteBuffer.allocate(4).putInt(60_000).array());
+        try (HistoryLog log = HistoryLog.open(directory, options)) {
+            assertEquals(contents(0, 10), contents(log));
+        }
+        assertEquals(10 * 4, Files.size(index));
+    }
+    
+    @Test
+    void growsEmptySegmentForLargeMessage() throws IOException {
+        String large = "x".repeat(3 * SEGMENT_SIZE);
+        
+        try (HistoryLog log = HistoryLog.open(directory, options())) {
+            log.append(new HistoryRecord(HistoryRecord.Direction.SENT, 1, null, large));
+            log.append(record(1));
+            log.flush(true);
+            
+            assertEquals(large, log.read(0).content);
+        }
+        
+        try (HistoryLog log = HistoryLog.open(directory, options())) {
+            assertEquals(2, log.count());
+            assertEquals(large, log.read(0).content);
+            assertNull(log.read(0).username);
+            assertEquals("message 1", log.read(1).content);
+        }
+    }
+    
+    @Test
+    void tombstoneHidesMessageAcrossReopens() throws IOException {
+        try (HistoryLog log = write(options(), 10)) {
+            log.delete(3);
+            log.flush(true);
+            
+            assertNull(log.read(3));
+            assertEquals(11, log.count(), "the tombstone takes an index of its own");
+        }
+        
+        try (HistoryLog log = HistoryLog.open(directory, options())) {
+            assertNull(log.read(3));
+            assertNull(log.read(10), "a tombstone is not a message");
+            
+            List<String> expected = contents(0, 10);
+            expected.remove("message 3");
+            assertEquals(expected, contents(log));
+        }
+    }
+    
+    @Test
+    void compactionKeepsTheMessagesAndRetiresTheHotFiles() throws IOException {
+        List<String> hotFiles;
+        
+        try (HistoryLog log = write(options(), 40)) {
+            hotFiles = files(".log");
+            
+            log.compact(2000);
+            
+            assertEquals(1, files(".cold").size());
+            assertEquals(contents(0, 40), contents(log));
+            
+            // The compacted files are still mapped, so are only listed to be deleted
+            List<String> retired = Files.readAllLines(directory.resolve("retired"), StandardCharsets.UTF_8);
+            assertEquals(2 * (hotFiles.size() - 1), retired.size());
+            assertTrue(retired.contains(hotFiles.get(0)));
+            assertFalse(retired.contains(hotFiles.get(hotFiles.size() - 1)), "the last segment is kept hot");
+            assertTrue(Files.exists(directory.resolve(hotFiles.get(0))));
+        }
+        
+        try (HistoryLog log = HistoryLog.open(directory, options())) {
+            assertEquals(List.of(hotFiles.get(hotFiles.size() - 1)), files(".log"));
+            assertFalse(Files.exists(directory.resolve("retired")));
+            assertEquals(40, log.count());
+            assertEquals(contents(0, 40), contents(log));
+            
+            log.append(record(40));
+            assertEquals(contents(0, 41), contents(log));
+        }
+    }
+    
+    @Test
+    void compactionDropsDeletedMessages() throws IOException {
+        try (HistoryLog log = write(options(), 40)) {
+            log.delete(3);
+            log.compact(2000);
+            
+            // Deleted after the first compaction, so the cold segment is rewritten
+            log.delete(5);
+            for (int i = 0; i < 20; i++) {
+                log.append(record(100 + i));
+            }
+            log.flush(true);
+            log.compact(2000);
+            
+            assertNull(log.read(3));
+            assertNull(log.read(5));
+        }
+        
+        try (HistoryLog log = HistoryLog.open(directory, options())) {
+            assertNull(log.read(3));
+            assertNull(log.read(5));
+            assertEquals("message 4", log.read(4).content);
+            
+            List<String> expected = contents(0, 40);
+            expected.remove("message 3");
+            expected.remove("message 5");
+            expected.addAll(contents(100, 120));
+            assertEquals(expected, contents(log));
+        }
+    }
+    
+    @Test
+    void openFinishesCompactionThatWasNotRetired() throws IOException {
+        try (HistoryLog log = write(options(), 40)) {
+            log.compact(2000);
+        }
+        
+        // As if the process stopped after the cold segment was moved into place, but
+        // before the hot segments it replaced were retired
+        Files.delete(directory.resolve("retired"));
+        Files.write(directory.resolve(Segment.name(40) + ".cold.tmp"), new byte[]{1, 2, 3});
+        
+        try (HistoryLog log = HistoryLog.open(directory, options())) {
+            assertEquals(1, files(".log").size());
+            assertEquals(List.of(), files(".tmp"));
+            assertEquals(contents(0, 40), contents(log), "no message is read twice");
+        }
+    }
+    
+    @Test
+    void deletesOldestSegmentsToKeepToTheSizeBudget() throws IOException {
+        long first;
+        
+        try (HistoryLog log = write(options(2, 3 * SEGMENT_SIZE), 60)) {
+            log.compact(2000);
+            
+            first = log.first();
+            assertTrue(first > 0, "the oldest messages are deleted");
+            assertNull(log.read(0));
+            assertEquals(60, log.count());
+            assertEquals(contents((int) first, 60), contents(log));
+        }
+        
+        try (HistoryLog log = HistoryLog.open(directory, options(2, 3 * SEGMENT_SIZE))) {
+            assertEquals(first, log.first());
+            assertEquals(contents((int) first, 60), contents(log));
+        }
+    }
+    
+    @Test
+    void deletesSegmentsOlderThanTheAgeBudget() throws IOException {
+        try (HistoryLog log = write(options(), 40)) {
+            long last = log.count();
+            
+            // Every message was written at about 1000ms, long before now
+            log.compact(2000 + 365 * DAY);
+            
+            assertTrue(log.first() > 0);
+            assertEquals(last, log.count(), "the last segment is never deleted");
+            assertEquals("message 39", log.read(39).content);
+        }
+    }
+}
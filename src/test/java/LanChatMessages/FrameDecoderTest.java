@@ -0,0 +1,268 @@
+package LanChatMessages;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameDecoderTest {
+    
+    private static Message msg(String content) {
+        return new Message(new JsonObject() {{
+            put("MsgType", "MSG");
+            put("Content", content);
+        }}, 3);
+    }
+    
+    private static byte[] frames(WireFormat format, List<String> contents) {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (String content : contents) {
+            frames.writeBytes(msg(content).toSendableBytes(format));
+        }
+        
+        return frames.toByteArray();
+    }
+    
+    /**
+     * Returns the compressed frames of each batch, compressed one after the other as
+     * a sender does
+     */
+    private static byte[] compressed(List<byte[]> batches) {
+        FrameCompressor compressor = new FrameCompressor();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (byte[] batch : batches) {
+            ByteBuffer compressedBatch = compressor.compress(ByteBuffer.wrap(batch));
+            frames.write(compressedBatch.array(), compressedBatch.position(), compressedBatch.remaining());
+        }
+        
+        return frames.toByteArray();
+    }
+    
+    /**
+     * Feeds the bytes to a new decoder in reads of at most the chunk size, decoding
+     * every whole frame after each read, as a listener does
+     *
+     * @return The contents of the decoded messages
+     */
+    private static List<String> decode(byte[] bytes, int chunk, int maxFrameSize) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(maxFrameSize);
+        InputStream stream = new ChunkedStream(bytes, chunk);
+        
+        List<String> contents = new ArrayList<>();
+        while (decoder.readFrom(stream) != -1) {
+            Message message;
+            while ((message = decoder.next(3)) != null) {
+                contents.add(message.get("Content"));
+            }
+        }
+        
+        return contents;
+    }
+    
+    private static List<String> decode(byte[] bytes, int chunk) throws IOException {
+        return decode(bytes, chunk, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+    }
+    
+    private static List<String> contents(int count, int seed) {
+        Random random = new Random(seed);
+        List<String> contents = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            contents.add("message " + i + " é 😀 " + "x".repeat(random.nextInt(300)));
+        }
+        
+        return contents;
+    }
+    
+    @Test
+    void decodesJsonFramesSplitAcrossReads() throws IOException {
+        List<String> contents = contents(50, 1);
+        byte[] bytes = frames(WireFormat.JSON, contents);
+        
+        for (int chunk : new int[]{1, 2, 3, 5, 4096, bytes.length}) {
+            assertEquals(contents, decode(bytes, chunk), "chunk " + chunk);
+        }
+    }
+    
+    @Test
+    void decodesBinaryFramesSplitAcrossReads() throws IOException {
+        List<String> contents = contents(50, 2);
+        byte[] bytes = frames(WireFormat.BINARY, contents);
+        
+        for (int chunk : new int[]{1, 2, 3, 5, 4096, bytes.length}) {
+            assertEquals(contents, decode(bytes, chunk), "chunk " + chunk);
+        }
+    }
+    
+    @Test
+    void decodesMixedFormats() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes(frames(WireFormat.JSON, List.of("a")));
+        bytes.writeBytes(frames(WireFormat.BINARY, List.of("b")));
+        bytes.writeBytes(frames(WireFormat.JSON, List.of("c")));
+        
+        assertEquals(List.of("a", "b", "c"), decode(bytes.toByteArray(), 3));
+    }
+    
+    @Test
+    void decodesFrameLargerThanTheBuffer() throws IOException {
+        List<String> contents = List.of("small", "y".repeat(2_000_000), "small again");
+        byte[] bytes = frames(WireFormat.JSON, contents);
+        
+        assertEquals(contents, decode(bytes, 8192));
+    }
+    
+    @Test
+    void acceptsFrameOfTheMaxSize() throws IOException {
+        byte[] bytes = frames(WireFormat.JSON, List.of("at the limit"));
+        int payload = bytes.length - 4;
+        
+        assertEquals(List.of("at the limit"), decode(bytes, 5, payload));
+    }
+    
+    @Test
+    void rejectsFrameAboveTheMaxSize() {
+        byte[] bytes = frames(WireFormat.JSON, List.of("over the limit"));
+        int payload = bytes.length - 4;
+        
+        assertThrows(IOException.class, () -> decode(bytes, 5, payload - 1));
+    }
+    
+    @Test
+    void rejectsNegativeLength() {
+        byte[] bytes = {(byte) 0x80, 0, 0, 0, '{', '}'};
+        
+        assertThrows(IOException.class, () -> decode(bytes, 1));
+    }
+    
+    @Test
+    void skipsZeroLengthFrame() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes(new byte[4]);
+        bytes.writeBytes(frames(WireFormat.JSON, List.of("after")));
+        
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.readFrom(new ChunkedStream(bytes.toByteArray(), Integer.MAX_VALUE));
+        
+        assertThrows(InvalidMessageException.class, () -> decoder.next(3));
+        assertEquals("after", decoder.next(3).get("Content"));
+        assertNull(decoder.next(3));
+    }
+    
+    @Test
+    void skipsInvalidMessageAndCarriesOn() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes(frames(WireFormat.JSON, List.of("before")));
+        bytes.writeBytes(new byte[]{0, 0, 0, 2, '{', '}'});
+        bytes.writeBytes(frames(WireFormat.BINARY, List.of("after")));
+        
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.readFrom(new ChunkedStream(bytes.toByteArray(), Integer.MAX_VALUE));
+        
+        assertEquals("before", decoder.next(3).get("Content"));
+        assertThrows(InvalidMessageException.class, () -> decoder.next(3));
+        assertEquals("after", decoder.next(3).get("Content"));
+        assertNull(decoder.next(3));
+    }
+    
+    @Test
+    void returnsNullUntilTheFrameHasArrived() throws IOException {
+        byte[] bytes = frames(WireFormat.JSON, List.of("whole"));
+        FrameDecoder decoder = new FrameDecoder();
+        
+        InputStream stream = new ChunkedStream(bytes, 1);
+        for (int i = 0; i < bytes.length - 1; i++) {
+            decoder.readFrom(stream);
+            assertNull(decoder.next(3));
+        }
+        
+        decoder.readFrom(stream);
+        assertEquals("whole", decoder.next(3).get("Content"));
+    }
+    
+    @Test
+    void decodesCompressedFramesSplitAcrossReads() throws IOException {
+        List<String> first = contents(40, 3);
+        List<String> second = contents(40, 4);
+        byte[] bytes = compressed(List.of(frames(WireFormat.JSON, first), frames(WireFormat.BINARY, second)));
+        
+        List<String> expected = new ArrayList<>(first);
+        expected.addAll(second);
+        for (int chunk : new int[]{1, 2, 7, 4096, bytes.length}) {
+            assertEquals(expected, decode(bytes, chunk), "chunk " + chunk);
+        }
+    }
+    
+    @Test
+    void decodesBatchCompressedIntoSeveralFrames() throws IOException {
+        // Random text does not compress, so the batch fills more than one compressed frame
+        Random random = new Random(5);
+        StringBuilder noise = new StringBuilder();
+        for (int i = 0; i < 3 * FrameCompressor.MAX_CHUNK; i++) {
+            noise.append((char) ('!' + random.nextInt(90)));
+        }
+        
+        List<String> contents = List.of("before", noise.toString(), "after");
+        byte[] bytes = compressed(List.of(frames(WireFormat.BINARY, contents)));
+        
+        for (int chunk : new int[]{13, 8192, bytes.length}) {
+            assertEquals(contents, decode(bytes, chunk), "chunk " + chunk);
+        }
+    }
+    
+    @Test
+    void decodesUncompressedFramesAfterCompressedOnes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes(compressed(List.of(frames(WireFormat.JSON, List.of("compressed")))));
+        bytes.writeBytes(frames(WireFormat.JSON, List.of("plain")));
+        
+        assertEquals(List.of("compressed", "plain"), decode(bytes.toByteArray(), 3));
+    }
+    
+    @Test
+    void rejectsCorruptCompressedFrame() {
+        byte[] bytes = {0, 0, 0, 5, FrameCompressor.COMPRESSED, 1, 2, 3, 4};
+        
+        assertThrows(IOException.class, () -> decode(bytes, 2));
+    }
+    
+    /**
+     * Returns at most a chunk of bytes from each read, as a socket may
+     */
+    private static final class ChunkedStream extends InputStream {
+        private final byte[] bytes;
+        private final int chunk;
+        private int position = 0;
+        
+        ChunkedStream(byte[] bytes, int chunk) {
+            this.bytes = bytes;
+            this.chunk = chunk;
+        }
+        
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xFF : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {return 0;}
+            if (position == bytes.length) {return -1;}
+            
+            int read = Math.min(Math.min(len, chunk), bytes.length - position);
+            System.arraycopy(bytes, position, b, off, read);
+            position += read;
+            
+            return read;
+        }
+    }
+}
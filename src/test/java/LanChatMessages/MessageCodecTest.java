@@ -0,0 +1,131 @@
+package LanChatMessages;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MessageCodecTest {
+    
+    /**
+     * Returns the fields of a {@link MessageTypes#MSG MSG}
+     */
+    private static MessageCodec.Fields msg(String content, String username, String unknown) {
+        String[] values = new String[MessageTypes.MSG.fields.length];
+        values[0] = "MSG";
+        values[MessageTypes.MSG.indexOf("Content")] = content;
+        values[MessageTypes.MSG.indexOf("Username")] = username;
+        
+        return new MessageCodec.Fields(MessageTypes.MSG, values, unknown);
+    }
+    
+    private static MessageCodec.Fields binaryRoundTrip(MessageCodec.Fields fields, int offset) {
+        int length = MessageCodec.binaryLength(fields);
+        ByteBuffer buffer = ByteBuffer.allocate(offset + length);
+        buffer.position(offset);
+        MessageCodec.putBinary(fields, buffer);
+        
+        assertEquals(offset + length, buffer.position());
+        return MessageCodec.decodeBinary(buffer, offset, length);
+    }
+    
+    @Test
+    void jsonRoundTrip() {
+        MessageCodec.Fields fields = msg("quote \" slash \\ line\nreturn\r tab\t bell\u0007 é 😀", "bob", null);
+        
+        String json = MessageCodec.encode(fields);
+        MessageCodec.Fields decoded = MessageCodec.decode(json);
+        
+        assertEquals(MessageTypes.MSG, decoded.type);
+        assertArrayEquals(fields.values, decoded.values);
+        assertNull(decoded.unknown);
+    }
+    
+    @Test
+    void jsonWritesMsgTypeFirst() {
+        String json = MessageCodec.encode(msg("hi", null, null));
+        
+        assertEquals("{\"MsgType\":\"MSG\",\"Content\":\"hi\"}", json);
+    }
+    
+    @Test
+    void jsonReadsMsgTypeAfterOtherMembers() {
+        MessageCodec.Fields decoded = MessageCodec.decode(" { \"Content\" : \"hi\", \"Username\":\"bob\" ,\"MsgType\":\"MSG\" } ");
+        
+        assertEquals(MessageTypes.MSG, decoded.type);
+        assertArrayEquals(msg("hi", "bob", null).values, decoded.values);
+    }
+    
+    @Test
+    void jsonKeepsUnknownMembers() {
+        MessageCodec.Fields decoded = MessageCodec.decode("{\"MsgType\":\"MSG\",\"Content\":\"hi\",\"Extra\":[1,{\"a\":null}]}");
+        
+        assertEquals("\"Extra\":[1,{\"a\":null}]", decoded.unknown);
+        assertEquals(decoded.unknown, MessageCodec.decode(MessageCodec.encode(decoded)).unknown);
+    }
+    
+    @Test
+    void jsonRejectsInvalidMessages() {
+        assertThrows(InvalidMessageException.class, () -> MessageCodec.decode(""));
+        assertThrows(InvalidMessageException.class, () -> MessageCodec.decode("{}"));
+        assertThrows(InvalidMessageException.class, () -> MessageCodec.decode("[\"MsgType\"]"));
+        assertThrows(InvalidMessageException.class, () -> MessageCodec.decode("{\"MsgType\":\"NOT_A_TYPE\"}"));
+        assertThrows(InvalidMessageException.class, () -> MessageCodec.decode("{\"MsgType\":\"MSG\""));
+        assertThrows(InvalidMessageException.class, () -> MessageCodec.decode("{\"MsgType\":\"MSG\"} trailing"));
+    }
+    
+    @Test
+    void binaryRoundTrip() {
+        MessageCodec.Fields fields = msg("line\nreturn\r é 😀", "bob", null);
+        
+        MessageCodec.Fields decoded = binaryRoundTrip(fields, 7);
+        
+        assertEquals(MessageTypes.MSG, decoded.type);
+        assertArrayEquals(fields.values, decoded.values);
+        assertNull(decoded.unknown);
+    }
+    
+    @Test
+    void binaryRoundTripOfEmptyAndMissingFields() {
+        MessageCodec.Fields fields = msg("", null, null);
+        
+        assertArrayEquals(fields.values, binaryRoundTrip(fields, 0).values);
+    }
+    
+    @Test
+    void binaryRoundTripOfLongField() {
+        // Long enough that its length takes a varint of several bytes
+        MessageCodec.Fields fields = msg("x".repeat(70_000), "bob", null);
+        
+        assertArrayEquals(fields.values, binaryRoundTrip(fields, 3).values);
+    }
+    
+    @Test
+    void binaryKeepsUnknownMembers() {
+        MessageCodec.Fields fields = msg("hi", null, "\"Extra\":true");
+        
+        assertEquals("\"Extra\":true", binaryRoundTrip(fields, 0).unknown);
+    }
+    
+    @Test
+    void binaryRejectsUnknownTypeTag() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) (MessageTypes.values().length + 1)});
+        
+        assertThrows(InvalidMessageException.class, () -> MessageCodec.decodeBinary(buffer, 0, 1));
+        assertThrows(InvalidMessageException.class, () -> MessageCodec.decodeBinary(ByteBuffer.wrap(new byte[]{0}), 0, 1));
+    }
+    
+    @Test
+    void binaryRejectsTruncatedMessage() {
+        MessageCodec.Fields fields = msg("hello", "bob", null);
+        int length = MessageCodec.binaryLength(fields);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        MessageCodec.putBinary(fields, buffer);
+        
+        assertThrows(InvalidMessageException.class, () -> MessageCodec.decodeBinary(buffer, 0, length - 2));
+    }
+}
@@ -0,0 +1,206 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboxTest {
+    
+    @TempDir
+    Path directory;
+    
+    /**
+     * Waits for the work handed to the writer thread, so it is done before the
+     * directory is deleted
+     */
+    @AfterEach
+    void sync() {
+        Outbox.sync();
+    }
+    
+    private Outbox open() {
+        return Outbox.open(directory, "bob", "192.168.0.2");
+    }
+    
+    /**
+     * Closes the outbox and waits for the writer thread to write its file
+     */
+    private static void closeAndSync(Outbox outbox) {
+        outbox.close();
+        Outbox.sync();
+    }
+    
+    private static List<Long> seqs(List<Outbox.Entry> entries) {
+        return entries.stream().map(Outbox.Entry::seq).toList();
+    }
+    
+    private Path file() throws IOException {
+        try (Stream<Path> list = Files.list(directory)) {
+            List<Path> outboxes = list.filter(file -> file.getFileName().toString().endsWith(".outbox")).toList();
+            assertEquals(1, outboxes.size());
+            
+            return outboxes.get(0);
+        }
+    }
+    
+    @Test
+    void replaysWhatHasNotBeenAcknowledged() {
+        Outbox outbox = Outbox.inMemory();
+        for (String content : List.of("a", "b", "c", "d", "e")) {
+            outbox.add(content);
+        }
+        
+        assertEquals(List.of(3L, 4L, 5L), seqs(outbox.after(2)));
+        
+        outbox.acknowledged(3);
+        assertEquals(2, outbox.size());
+        assertEquals(List.of(new Outbox.Entry(4, "d"), new Outbox.Entry(5, "e")), outbox.after(0));
+        
+        // An acknowledgement that arrives late changes nothing
+        outbox.acknowledged(1);
+        assertEquals(2, outbox.size());
+        
+        outbox.acknowledged(5);
+        assertEquals(List.of(), outbox.after(0));
+    }
+    
+    @Test
+    void keepsUnacknowledgedMessagesForTheNextOutbox() {
+        Outbox outbox = open();
+        outbox.add("a");
+        outbox.add("b é 😀");
+        outbox.add("c");
+        outbox.acknowledged(1);
+        closeAndSync(outbox);
+        
+        Outbox reopened = open();
+        assertEquals(2, reopened.unsentCount());
+        assertEquals(0, reopened.size());
+        assertEquals(List.of("b é 😀", "c"), reopened.takeUnsent());
+        
+        // Numbered from 1 again, as the next conversation starts its own sequence
+        assertEquals(1, reopened.add("d"));
+        closeAndSync(reopened);
+        
+        assertEquals(List.of("d"), open().takeUnsent());
+    }
+    
+    @Test
+    void unsentMessagesAreNotTouchedByAcknowledgements() {
+        Outbox outbox = open();
+        outbox.add("left");
+        closeAndSync(outbox);
+        
+        Outbox next = open();
+        assertEquals(1, next.unsentCount());
+        next.add("sent");
+        next.acknowledged(1);
+        closeAndSync(next);
+        
+        assertEquals(List.of("left"), open().takeUnsent());
+    }
+    
+    @Test
+    void takingTheUnsentMessagesEmptiesTheFile() throws IOException {
+        Outbox outbox = open();
+        outbox.add("a");
+        closeAndSync(outbox);
+        
+        Outbox next = open();
+        Path file = file();
+        assertEquals(List.of("a"), next.takeUnsent());
+        closeAndSync(next);
+        
+        assertFalse(Files.exists(file));
+        assertEquals(0, open().unsentCount());
+    }
+    
+    @Test
+    void emptiesTheFileOnceEverythingIsAcknowledged() throws IOException {
+        Outbox outbox = open();
+        outbox.add("a");
+        outbox.add("b");
+        outbox.acknowledged(2);
+        closeAndSync(outbox);
+        
+        assertEquals(0, Files.size(file()));
+        assertEquals(0, open().unsentCount());
+    }
+    
+    @Test
+    void ignoresRecordCutShort() throws IOException {
+        Outbox outbox = open();
+        outbox.add("first");
+        outbox.add("second");
+        closeAndSync(outbox);
+        
+        // As if LanChat stopped while the last record was written
+        Path file = file();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 2);
+        }
+        
+        assertEquals(List.of("first"), open().takeUnsent());
+    }
+    
+    @Test
+    void ignoresAcknowledgementCutShort() throws IOException {
+        Outbox outbox = open();
+        outbox.add("first");
+        outbox.add("second");
+        outbox.acknowledged(1);
+        closeAndSync(outbox);
+        
+        Path file = file();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 1);
+        }
+        
+        assertEquals(List.of("first", "second"), open().takeUnsent());
+    }
+    
+    @Test
+    void holdsMessagesInMemoryIfTheFileIsNotAnOutbox() throws IOException {
+        Outbox outbox = open();
+        outbox.add("a");
+        closeAndSync(outbox);
+        
+        Path file = file();
+        byte[] corrupt = Files.readAllBytes(file);
+        corrupt[0] = 42;
+        Files.write(file, corrupt);
+        
+        Outbox unreadable = open();
+        assertEquals(0, unreadable.unsentCount());
+        unreadable.add("b");
+        closeAndSync(unreadable);
+        
+        assertArrayEquals(corrupt, Files.readAllBytes(file), "the file is left as it was");
+    }
+    
+    @Test
+    void rewritesTheFileOnceItHasGrown() throws IOException {
+        String large = "x".repeat(300_000);
+        
+        Outbox outbox = open();
+        for (int i = 0; i < 4; i++) {
+            outbox.add(large + i);
+        }
+        outbox.acknowledged(3);
+        closeAndSync(outbox);
+        
+        assertTrue(Files.size(file()) < 2 * large.length(), "the acknowledged messages are rewritten away");
+        assertEquals(List.of(large + 3), open().takeUnsent());
+    }
+}